@@ -26,16 +26,23 @@ import android.content.pm.IPackageManager;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.ContentObserver;
+import android.location.Location;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteCallbackList;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Slog;
 import com.android.internal.content.PackageMonitor;
 import com.android.internal.os.BackgroundThread;
+import com.android.server.ServiceThread;
 import lineageos.app.LineageContextConstants;
 import lineageos.platform.Manifest;
 import lineageos.providers.LineageSettings;
@@ -46,12 +53,17 @@ import lineageos.weather.IRequestInfoListener;
 import lineageos.weather.IWeatherServiceProviderChangeListener;
 import lineageos.weather.RequestInfo;
 import lineageos.weather.WeatherInfo;
+import lineageos.weather.WeatherLocation;
 import lineageos.weatherservice.IWeatherProviderService;
 import lineageos.weatherservice.IWeatherProviderServiceClient;
 import lineageos.weatherservice.ServiceRequestResult;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 
 public class LineageWeatherManagerService extends LineageSystemService {
 
@@ -64,71 +76,273 @@ public class LineageWeatherManagerService extends LineageSystemService {
     private final RemoteCallbackList<IWeatherServiceProviderChangeListener> mProviderChangeListeners
             = new RemoteCallbackList<>();
     private volatile boolean mReconnectedDuePkgModified = false;
+    // Whether the bound provider takes several weather requests in one call
+    private volatile boolean mProviderSupportsBatch = false;
+
+    // Requests for a location already being fetched for longer than this aren't joined to the
+    // running one anymore, in case the provider dropped it
+    private static final long PENDING_REQUEST_TIMEOUT_MS = 60 * 1000;
+
+    /**
+     * A weather request forwarded to the provider, along with every request for the same
+     * location and temperature unit that came in while it was being processed.
+     */
+    private static final class PendingWeatherRequest {
+        final String key;
+        final RequestInfo upstream;
+        final long submitTime;
+        final ArrayList<RequestInfo> waiting = new ArrayList<>();
+        // Whether any of the waiting requests wants the content provider updated
+        boolean updateProvider;
+
+        PendingWeatherRequest(String key, RequestInfo upstream) {
+            this.key = key;
+            this.upstream = upstream;
+            this.submitTime = SystemClock.elapsedRealtime();
+            updateProvider = !upstream.isQueryOnlyWeatherRequest();
+        }
+    }
+
+    private static final int MAX_CACHED_WEATHER = 8;
+
+    /**
+     * The last weather result received for a location and temperature unit.
+     */
+    private static final class CachedWeather {
+        final WeatherInfo weatherInfo;
+        final long receiveTime;
+
+        CachedWeather(WeatherInfo weatherInfo) {
+            this.weatherInfo = weatherInfo;
+            this.receiveTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final long mCacheMaxAgeMs;
+    private final long mCacheStaleWindowMs;
+
+    // Guarded by mMutex
+    private final ArrayMap<String, PendingWeatherRequest> mPendingRequestsByKey = new ArrayMap<>();
+    private final ArrayMap<RequestInfo, PendingWeatherRequest> mPendingRequestsByUpstream =
+            new ArrayMap<>();
+    // Waiting requests submitted through updateWeatherBatch. Only these are answered with
+    // onWeatherRequestsCompleted, clients built against an older SDK don't know about it
+    private final ArraySet<RequestInfo> mBatchSubmittedRequests = new ArraySet<>();
+    private long mUpstreamRequestCount;
+    private long mCoalescedRequestCount;
+    // Provider calls saved by sending requests together
+    private long mBatchedRequestCount;
+    private final ArrayMap<String, CachedWeather> mWeatherCache = new ArrayMap<>();
+    private long mCacheHitCount;
+    private long mStaleCacheHitCount;
+
+    // Writes weather to the content provider, one write at a time
+    private final ServiceThread mWriterThread;
+    private final Handler mWriterHandler;
+    private final Object mWriteLock = new Object();
+    // Guarded by mWriteLock
+    private WeatherInfo mQueuedWeatherInfo;
+    // The weather the content provider holds once the queued write is done
+    private WeatherInfo mPersistedWeatherInfo;
+    private long mWriteCount;
+    private long mSupersededWriteCount;
+
+    private final Runnable mWriteWeatherInfo = new Runnable() {
+        @Override
+        public void run() {
+            final WeatherInfo weatherInfo;
+            synchronized (mWriteLock) {
+                weatherInfo = mQueuedWeatherInfo;
+                mQueuedWeatherInfo = null;
+            }
+            if (weatherInfo == null) return;
+            if (!writeWeatherInfo(weatherInfo)) {
+                synchronized (mWriteLock) {
+                    if (mPersistedWeatherInfo == weatherInfo) {
+                        mPersistedWeatherInfo = null;
+                    }
+                }
+            }
+        }
+    };
 
     private final IWeatherProviderServiceClient mServiceClient
             = new IWeatherProviderServiceClient.Stub() {
         @Override
         public void setServiceRequestState(RequestInfo requestInfo,
                 ServiceRequestResult result, int status) {
+            final WeatherResults results = new WeatherResults();
             synchronized (mMutex) {
+                setServiceRequestStateLocked(requestInfo, result, status, results);
+            }
+            deliverWeatherResults(results);
+        }
 
-                if (requestInfo == null) {
-                    //Invalid request info object
-                    return;
+        @Override
+        public void setServiceRequestStates(RequestInfo[] requestInfos,
+                ServiceRequestResult[] results, int[] states) {
+            if (requestInfos == null || results == null || states == null
+                    || results.length != requestInfos.length
+                    || states.length != requestInfos.length) {
+                //Malformed batch
+                return;
+            }
+            final WeatherResults weatherResults = new WeatherResults();
+            synchronized (mMutex) {
+                for (int i = 0; i < requestInfos.length; i++) {
+                    setServiceRequestStateLocked(requestInfos[i], results[i], states[i],
+                            weatherResults);
                 }
+            }
+            deliverWeatherResults(weatherResults);
+        }
 
-                if (!isValidRequestInfoStatus(status)) {
-                    //Invalid request status
-                    return;
-                }
+        @Override
+        public void setBatchRequestsSupported(boolean supported) {
+            mProviderSupportsBatch = supported;
+        }
+    };
 
-                final IRequestInfoListener listener = requestInfo.getRequestListener();
-                final int requestType = requestInfo.getRequestType();
-
-                switch (requestType) {
-                    case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
-                    case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
-                        WeatherInfo weatherInfo = null;
-                        if (status == LineageWeatherManager.RequestStatus.COMPLETED) {
-                            weatherInfo = (result != null) ? result.getWeatherInfo() : null;
-                            if (weatherInfo == null) {
-                                //This should never happen! WEATHER_REQUEST_COMPLETED is set
-                                //only if the weatherinfo object was not null when the request
-                                //was marked as completed
-                                status = LineageWeatherManager.RequestStatus.FAILED;
-                            } else {
-                                if (!requestInfo.isQueryOnlyWeatherRequest()) {
-                                    final long identity = Binder.clearCallingIdentity();
-                                    try {
-                                        updateWeatherInfoLocked(weatherInfo);
-                                    } finally {
-                                        Binder.restoreCallingIdentity(identity);
-                                    }
-                                }
-                            }
-                        }
-                        if (isValidListener(listener)) {
-                            try {
-                                listener.onWeatherRequestCompleted(requestInfo, status,
-                                        weatherInfo);
-                            } catch (RemoteException e) {
-                            }
-                        }
-                        break;
-                    case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
-                        if (isValidListener(listener)) {
-                            try {
-                                //Result might be null if the provider marked the request as failed
-                                listener.onLookupCityRequestCompleted(requestInfo, status,
-                                        result != null ? result.getLocationLookupList() : null);
-                            } catch (RemoteException e) {
-                            }
+    /**
+     * Weather request results to hand to the request listeners. Requests that were submitted
+     * together get all of their results in a single call.
+     */
+    private static final class WeatherResults {
+        final ArrayList<RequestInfo> requests = new ArrayList<>();
+        final ArrayList<Integer> statuses = new ArrayList<>();
+        final ArrayList<WeatherInfo> weatherInfos = new ArrayList<>();
+        final ArrayList<Boolean> batched = new ArrayList<>();
+        // The newest weather to write to the content provider, if any
+        WeatherInfo persist;
+
+        void add(RequestInfo request, int status, WeatherInfo weatherInfo, boolean batch) {
+            requests.add(request);
+            statuses.add(status);
+            weatherInfos.add(weatherInfo);
+            batched.add(batch);
+        }
+    }
+
+    private void setServiceRequestStateLocked(RequestInfo requestInfo,
+            ServiceRequestResult result, int status, WeatherResults results) {
+        if (requestInfo == null) {
+            //Invalid request info object
+            return;
+        }
+
+        if (!isValidRequestInfoStatus(status)) {
+            //Invalid request status
+            return;
+        }
+
+        final IRequestInfoListener listener = requestInfo.getRequestListener();
+        final int requestType = requestInfo.getRequestType();
+
+        switch (requestType) {
+            case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
+            case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                // Every request that was waiting on this one gets the same answer
+                final PendingWeatherRequest pending = removePendingRequestLocked(
+                        mPendingRequestsByUpstream.get(requestInfo));
+                final String key = (pending != null)
+                        ? pending.key : getCoalescingKey(requestInfo);
+                final List<RequestInfo> waiting = (pending != null)
+                        ? pending.waiting : Collections.singletonList(requestInfo);
+                final boolean updateProvider = (pending != null)
+                        ? pending.updateProvider : !requestInfo.isQueryOnlyWeatherRequest();
+
+                WeatherInfo weatherInfo = null;
+                if (status == LineageWeatherManager.RequestStatus.COMPLETED) {
+                    weatherInfo = (result != null) ? result.getWeatherInfo() : null;
+                    if (weatherInfo == null) {
+                        //This should never happen! WEATHER_REQUEST_COMPLETED is set
+                        //only if the weatherinfo object was not null when the request
+                        //was marked as completed
+                        status = LineageWeatherManager.RequestStatus.FAILED;
+                    } else {
+                        cacheWeatherLocked(key, weatherInfo);
+                        if (updateProvider) {
+                            results.persist = weatherInfo;
                         }
-                        break;
+                    }
+                }
+                for (RequestInfo info : waiting) {
+                    results.add(info, status, weatherInfo, mBatchSubmittedRequests.remove(info));
                 }
+                break;
+            case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
+                if (isValidListener(listener)) {
+                    try {
+                        //Result might be null if the provider marked the request as failed
+                        listener.onLookupCityRequestCompleted(requestInfo, status,
+                                result != null ? result.getLocationLookupList() : null);
+                    } catch (RemoteException e) {
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Notifies the request listeners, then queues the content provider write. Nobody has to wait
+     * for the content provider to be written.
+     */
+    private void deliverWeatherResults(WeatherResults results) {
+        // Requests submitted together share their listener
+        final ArrayMap<IBinder, ArrayList<Integer>> byListener = new ArrayMap<>();
+        for (int i = 0; i < results.requests.size(); i++) {
+            final IRequestInfoListener listener = results.requests.get(i).getRequestListener();
+            if (listener == null) continue;
+            if (!results.batched.get(i)) {
+                if (isValidListener(listener)) {
+                    try {
+                        listener.onWeatherRequestCompleted(results.requests.get(i),
+                                results.statuses.get(i), results.weatherInfos.get(i));
+                    } catch (RemoteException e) {
+                    }
+                }
+                continue;
+            }
+            ArrayList<Integer> indices = byListener.get(listener.asBinder());
+            if (indices == null) {
+                indices = new ArrayList<>();
+                byListener.put(listener.asBinder(), indices);
             }
+            indices.add(i);
         }
-    };
+
+        for (int i = 0; i < byListener.size(); i++) {
+            final ArrayList<Integer> indices = byListener.valueAt(i);
+            final IRequestInfoListener listener =
+                    results.requests.get(indices.get(0)).getRequestListener();
+            if (!isValidListener(listener)) continue;
+
+            final int count = indices.size();
+            try {
+                if (count == 1) {
+                    final int index = indices.get(0);
+                    listener.onWeatherRequestCompleted(results.requests.get(index),
+                            results.statuses.get(index), results.weatherInfos.get(index));
+                } else {
+                    final RequestInfo[] requests = new RequestInfo[count];
+                    final int[] statuses = new int[count];
+                    final WeatherInfo[] weatherInfos = new WeatherInfo[count];
+                    for (int j = 0; j < count; j++) {
+                        final int index = indices.get(j);
+                        requests[j] = results.requests.get(index);
+                        statuses[j] = results.statuses.get(index);
+                        weatherInfos[j] = results.weatherInfos.get(index);
+                    }
+                    listener.onWeatherRequestsCompleted(requests, statuses, weatherInfos);
+                }
+            } catch (RemoteException e) {
+            }
+        }
+
+        if (results.persist != null) {
+            queueWeatherInfoWrite(results.persist);
+        }
+    }
 
     private boolean isValidRequestInfoStatus(int state) {
         switch (state) {
@@ -202,6 +416,46 @@ public class LineageWeatherManagerService extends LineageSystemService {
             enforcePermission();
             processCancelRequest(requestId);
         }
+
+        @Override
+        public void updateWeatherBatch(RequestInfo[] infos) {
+            enforcePermission();
+            if (infos != null) {
+                processWeatherUpdateRequests(infos, true);
+            }
+        }
+
+        @Override
+        public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("LineageWeatherManagerService State:");
+            pw.println("  Provider bound: " + mIsWeatherProviderServiceBound);
+            synchronized (mWriteLock) {
+                pw.println("  Content provider writes: " + mWriteCount
+                        + " (superseded before being written: " + mSupersededWriteCount + ")");
+            }
+            synchronized (mMutex) {
+                pw.println("  Weather requests sent to the provider: " + mUpstreamRequestCount);
+                pw.println("  Weather requests coalesced: " + mCoalescedRequestCount);
+                pw.println("  Provider calls saved by batching: " + mBatchedRequestCount);
+                pw.println("  Weather requests answered from cache: " + mCacheHitCount
+                        + " (stale: " + mStaleCacheHitCount + ")");
+                pw.println("  Pending weather requests: " + mPendingRequestsByKey.size());
+                final long now = SystemClock.elapsedRealtime();
+                for (PendingWeatherRequest pending : mPendingRequestsByKey.values()) {
+                    pw.println("    " + pending.upstream + " waiting=" + pending.waiting.size()
+                            + " age=" + (now - pending.submitTime) + "ms");
+                }
+                pw.println("  Cached weather: " + mWeatherCache.size() + " (max age "
+                        + mCacheMaxAgeMs + "ms, stale window " + mCacheStaleWindowMs + "ms)");
+                for (int i = 0; i < mWeatherCache.size(); i++) {
+                    pw.println("    " + mWeatherCache.keyAt(i) + " age="
+                            + (now - mWeatherCache.valueAt(i).receiveTime) + "ms");
+                }
+            }
+        }
     };
 
     private String getComponentLabel(ComponentName componentName) {
@@ -218,6 +472,15 @@ public class LineageWeatherManagerService extends LineageSystemService {
     public LineageWeatherManagerService(Context context) {
         super(context);
         mContext = context;
+        mCacheMaxAgeMs = context.getResources().getInteger(
+                org.lineageos.platform.internal.R.integer.config_weatherCacheMaxAge);
+        mCacheStaleWindowMs = context.getResources().getInteger(
+                org.lineageos.platform.internal.R.integer.config_weatherCacheStaleWindow);
+
+        mWriterThread = new ServiceThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND, true /*allowIo*/);
+        mWriterThread.start();
+        mWriterHandler = new Handler(mWriterThread.getLooper());
     }
 
     @Override
@@ -256,30 +519,198 @@ public class LineageWeatherManagerService extends LineageSystemService {
         }
     }
 
-    private boolean canProcessWeatherUpdateRequest(RequestInfo info) {
-        final IRequestInfoListener listener = info.getRequestListener();
+    private void processWeatherUpdateRequest(RequestInfo info) {
+        processWeatherUpdateRequests(new RequestInfo[] { info }, false);
+    }
 
-        if (!mIsWeatherProviderServiceBound) {
-            if (listener != null && listener.asBinder().pingBinder()) {
-                try {
-                    listener.onWeatherRequestCompleted(info,
-                            LineageWeatherManager.RequestStatus.FAILED, null);
-                } catch (RemoteException e) {
+    private synchronized void processWeatherUpdateRequests(RequestInfo[] infos,
+            boolean submittedAsBatch) {
+        final WeatherResults answered = new WeatherResults();
+        final ArrayList<RequestInfo> upstream = new ArrayList<>(infos.length);
+        final boolean bound = mIsWeatherProviderServiceBound;
+        final boolean batch = mProviderSupportsBatch;
+
+        synchronized (mMutex) {
+            final long now = SystemClock.elapsedRealtime();
+            for (RequestInfo info : infos) {
+                if (info == null) continue;
+                final String key = getCoalescingKey(info);
+                final CachedWeather cached = getCachedWeatherLocked(key);
+                if (cached != null) {
+                    mCacheHitCount++;
+                    answered.add(info, LineageWeatherManager.RequestStatus.COMPLETED,
+                            cached.weatherInfo, submittedAsBatch);
+                    if (!info.isQueryOnlyWeatherRequest()) {
+                        answered.persist = cached.weatherInfo;
+                    }
+                    if (now - cached.receiveTime <= mCacheMaxAgeMs) continue;
+                    mStaleCacheHitCount++;
+                    // Already answered, refresh the cache for whoever asks next
+                    if (bound && trackWeatherUpdateRequestLocked(key, info, false)) {
+                        upstream.add(info);
+                    }
+                } else if (!bound) {
+                    answered.add(info, LineageWeatherManager.RequestStatus.FAILED, null,
+                            submittedAsBatch);
+                } else {
+                    if (submittedAsBatch) {
+                        mBatchSubmittedRequests.add(info);
+                    }
+                    if (trackWeatherUpdateRequestLocked(key, info, true)) {
+                        upstream.add(info);
+                    }
+                }
+            }
+            if (batch && upstream.size() > 1) {
+                mBatchedRequestCount += upstream.size() - 1;
+            }
+        }
+
+        deliverWeatherResults(answered);
+        if (upstream.isEmpty()) return;
+        try {
+            if (batch && upstream.size() > 1) {
+                mWeatherProviderService.processWeatherUpdateRequests(
+                        upstream.toArray(new RequestInfo[upstream.size()]));
+            } else {
+                for (RequestInfo info : upstream) {
+                    mWeatherProviderService.processWeatherUpdateRequest(info);
                 }
             }
+        } catch (RemoteException e) {
+        }
+    }
+
+    /**
+     * Tracks a weather request, unless the provider is already fetching the same location.
+     * @param key The coalescing key of the request
+     * @param info The request
+     * @param wait Whether to notify the request listener once the provider answers
+     * @return Whether the request has to be sent to the provider
+     */
+    private boolean trackWeatherUpdateRequestLocked(String key, RequestInfo info,
+            boolean wait) {
+        final PendingWeatherRequest pending = mPendingRequestsByKey.get(key);
+        if (pending != null && SystemClock.elapsedRealtime() - pending.submitTime
+                < PENDING_REQUEST_TIMEOUT_MS) {
+            // The provider is already fetching this, wait for that answer instead
+            if (wait) pending.waiting.add(info);
+            pending.updateProvider |= !info.isQueryOnlyWeatherRequest();
+            mCoalescedRequestCount++;
             return false;
         }
+        if (removePendingRequestLocked(pending) != null) {
+            // Given up on, nobody answers these anymore
+            mBatchSubmittedRequests.removeAll(pending.waiting);
+        }
+        final PendingWeatherRequest request = new PendingWeatherRequest(key, info);
+        if (wait) request.waiting.add(info);
+        mPendingRequestsByKey.put(key, request);
+        mPendingRequestsByUpstream.put(info, request);
+        mUpstreamRequestCount++;
         return true;
     }
 
-    private synchronized void processWeatherUpdateRequest(RequestInfo info) {
-        if (!canProcessWeatherUpdateRequest(info)) return;
-        try {
-            mWeatherProviderService.processWeatherUpdateRequest(info);
-        } catch (RemoteException e) {
+    /**
+     * @return The cached weather for a coalescing key, or null if there is none or it's too
+     * old to be answered with even while refreshing it
+     */
+    private CachedWeather getCachedWeatherLocked(String key) {
+        final CachedWeather cached = mWeatherCache.get(key);
+        if (cached != null && SystemClock.elapsedRealtime() - cached.receiveTime
+                > mCacheMaxAgeMs + mCacheStaleWindowMs) {
+            mWeatherCache.remove(key);
+            return null;
+        }
+        return cached;
+    }
+
+    private void cacheWeatherLocked(String key, WeatherInfo weatherInfo) {
+        if (mCacheMaxAgeMs <= 0) return;
+        mWeatherCache.put(key, new CachedWeather(weatherInfo));
+        if (mWeatherCache.size() > MAX_CACHED_WEATHER) {
+            int oldest = 0;
+            for (int i = 1; i < mWeatherCache.size(); i++) {
+                if (mWeatherCache.valueAt(i).receiveTime
+                        < mWeatherCache.valueAt(oldest).receiveTime) {
+                    oldest = i;
+                }
+            }
+            mWeatherCache.removeAt(oldest);
         }
     }
 
+    /**
+     * Queues a write of the weather to the content provider. If an earlier write is still
+     * queued, it is replaced, as only the newest weather matters.
+     */
+    private void queueWeatherInfoWrite(WeatherInfo weatherInfo) {
+        synchronized (mWriteLock) {
+            if (weatherInfo == mPersistedWeatherInfo) {
+                // Already what the content provider holds, or will
+                return;
+            }
+            mPersistedWeatherInfo = weatherInfo;
+            if (mQueuedWeatherInfo != null) {
+                mSupersededWriteCount++;
+            } else {
+                mWriterHandler.post(mWriteWeatherInfo);
+            }
+            mQueuedWeatherInfo = weatherInfo;
+        }
+    }
+
+    /**
+     * Stops tracking a pending request, so no further requests are joined to it.
+     * @return The request, null if it was null
+     */
+    private PendingWeatherRequest removePendingRequestLocked(PendingWeatherRequest pending) {
+        if (pending != null) {
+            if (mPendingRequestsByKey.get(pending.key) == pending) {
+                mPendingRequestsByKey.remove(pending.key);
+            }
+            mPendingRequestsByUpstream.remove(pending.upstream);
+        }
+        return pending;
+    }
+
+    private void clearPendingRequests() {
+        synchronized (mMutex) {
+            mPendingRequestsByKey.clear();
+            mPendingRequestsByUpstream.clear();
+            mBatchSubmittedRequests.clear();
+        }
+    }
+
+    /**
+     * @return A key identifying what a weather request asks the provider for, the same for
+     * requests that can be answered with the same result
+     */
+    private static String getCoalescingKey(RequestInfo info) {
+        final StringBuilder key = new StringBuilder();
+        if (info.getRequestType() == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
+            // Two decimal places are about a kilometer, finer than any weather data
+            final Location location = info.getLocation();
+            key.append("geo:")
+                    .append(Math.round(location.getLatitude() * 100)).append(',')
+                    .append(Math.round(location.getLongitude() * 100));
+        } else {
+            final WeatherLocation location = info.getWeatherLocation();
+            key.append("location:")
+                    .append(normalize(location.getCityId())).append('|')
+                    .append(normalize(location.getCity())).append('|')
+                    .append(normalize(location.getState())).append('|')
+                    .append(normalize(location.getPostalCode())).append('|')
+                    .append(normalize(location.getCountryId())).append('|')
+                    .append(normalize(location.getCountry()));
+        }
+        return key.append(':').append(info.getTemperatureUnit()).toString();
+    }
+
+    private static String normalize(String value) {
+        return value != null ? value.trim().toLowerCase(Locale.ROOT) : "";
+    }
+
     private void processCityNameLookupRequest(RequestInfo info) {
         if (!mIsWeatherProviderServiceBound) {
             final IRequestInfoListener listener = info.getRequestListener();
@@ -299,6 +730,23 @@ public class LineageWeatherManagerService extends LineageSystemService {
     }
 
     private void processCancelRequest(int requestId) {
+        synchronized (mMutex) {
+            for (int i = 0; i < mPendingRequestsByKey.size(); i++) {
+                final PendingWeatherRequest pending = mPendingRequestsByKey.valueAt(i);
+                final List<RequestInfo> waiting = pending.waiting;
+                for (int j = 0; j < waiting.size(); j++) {
+                    if (waiting.get(j).hashCode() != requestId) continue;
+                    mBatchSubmittedRequests.remove(waiting.remove(j));
+                    if (!waiting.isEmpty()) {
+                        // Others still want the answer, keep the provider going
+                        return;
+                    }
+                    removePendingRequestLocked(pending);
+                    requestId = pending.upstream.hashCode();
+                    break;
+                }
+            }
+        }
         if (mIsWeatherProviderServiceBound) {
             try {
                 mWeatherProviderService.cancelRequest(requestId);
@@ -312,6 +760,8 @@ public class LineageWeatherManagerService extends LineageSystemService {
         public void onServiceConnected(ComponentName name, IBinder service) {
             mWeatherProviderService = IWeatherProviderService.Stub.asInterface(service);
             mIsWeatherProviderServiceBound = true;
+            // Until the provider says otherwise
+            mProviderSupportsBatch = false;
             try {
                 mWeatherProviderService.setServiceClient(mServiceClient);
             } catch(RemoteException e) {
@@ -326,6 +776,8 @@ public class LineageWeatherManagerService extends LineageSystemService {
         public void onServiceDisconnected(ComponentName name) {
             mWeatherProviderService = null;
             mIsWeatherProviderServiceBound = false;
+            mProviderSupportsBatch = false;
+            clearPendingRequests();
             Slog.d(TAG, "Connection with " + name.flattenToString() + " has been closed");
         }
     };
@@ -348,7 +800,7 @@ public class LineageWeatherManagerService extends LineageSystemService {
         mProviderChangeListeners.finishBroadcast();
     }
 
-    private boolean updateWeatherInfoLocked(WeatherInfo wi) {
+    private boolean writeWeatherInfo(WeatherInfo wi) {
         final int size = wi.getForecasts().size() + 1;
         List<ContentValues> contentValuesList = new ArrayList<>(size);
         ContentValues contentValues = new ContentValues();
@@ -380,6 +832,9 @@ public class LineageWeatherManagerService extends LineageSystemService {
             Slog.w(TAG, "Failed to update the weather content provider");
             return false;
         }
+        synchronized (mWriteLock) {
+            mWriteCount++;
+        }
         return true;
     }
 
@@ -512,6 +967,12 @@ public class LineageWeatherManagerService extends LineageSystemService {
 
             getContext().unbindService(mWeatherServiceProviderConnection);
             mIsWeatherProviderServiceBound = false;
+            mProviderSupportsBatch = false;
+            clearPendingRequests();
+            synchronized (mMutex) {
+                // Results from another provider aren't what was asked for anymore
+                mWeatherCache.clear();
+            }
         }
     }
 }
@@ -26,7 +26,10 @@ import android.net.Uri;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Message;
+import android.os.Parcel;
 import android.util.ArraySet;
+import android.util.AtomicFile;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.policy.IKeyguardService;
 import lineageos.providers.LineageSettings;
 import org.xmlpull.v1.XmlPullParser;
@@ -48,20 +51,33 @@ import android.os.IBinder;
 import android.text.TextUtils;
 import android.util.Log;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 
 import lineageos.app.LineageContextConstants;
 import lineageos.app.Profile;
 import lineageos.app.ProfileGroup;
 import lineageos.app.ProfileManager;
+import lineageos.app.ProfileStore;
+import lineageos.app.ProfileUuidIndex;
 import lineageos.app.IProfileManager;
 
 import java.util.Collection;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -79,17 +95,63 @@ public class ProfileManagerService extends LineageSystemService {
 
     /* package */ static final File PROFILE_FILE =
             new File(Environment.getDataSystemDirectory(), "profiles.xml");
+    // Binary copy of the above, loaded instead of it when it is usable
+    /* package */ static final File PROFILE_STORE_FILE =
+            new File(Environment.getDataSystemDirectory(), "profiles.bin");
 
     private static final int MSG_SEND_PROFILE_STATE = 10;
 
-    private Map<UUID, Profile> mProfiles;
+    // Changes coming in within this long of each other are written out together
+    private static final long PERSIST_DELAY_MS = 500;
+    // ... unless they keep coming for longer than this
+    private static final long PERSIST_MAX_DELAY_MS = 5000;
+
+    /**
+     * Immutable view of the profiles and notification groups. Writers publish a new one after
+     * every change, so readers never lock and always see a consistent state.
+     */
+    private static final class Registry {
+        static final Registry EMPTY = new Registry(Collections.<UUID, Profile>emptyMap(),
+                Collections.<String, UUID>emptyMap(),
+                Collections.<UUID, NotificationGroup>emptyMap(),
+                Collections.<String, NotificationGroup>emptyMap(), new ProfileUuidIndex(), null);
+
+        final Map<UUID, Profile> profiles;
+        // Primary and secondary UUIDs of the profiles
+        final ProfileUuidIndex profileUuids;
+        // Match UUIDs and names, used for reverse compatibility
+        final Map<String, UUID> profileNames;
+        final Map<UUID, NotificationGroup> groups;
+        // The group each package belongs to
+        final Map<String, NotificationGroup> packageGroups;
+        final Profile activeProfile;
+
+        Registry(Map<UUID, Profile> profiles, Map<String, UUID> profileNames,
+                Map<UUID, NotificationGroup> groups, Map<String, NotificationGroup> packageGroups,
+                ProfileUuidIndex profileUuids, Profile activeProfile) {
+            this.profiles = Collections.unmodifiableMap(new HashMap<>(profiles));
+            this.profileUuids = new ProfileUuidIndex(profileUuids);
+            this.profileNames = Collections.unmodifiableMap(new HashMap<>(profileNames));
+            this.groups = Collections.unmodifiableMap(new HashMap<>(groups));
+            this.packageGroups = Collections.unmodifiableMap(new HashMap<>(packageGroups));
+            this.activeProfile = activeProfile;
+        }
+    }
 
-    // Match UUIDs and names, used for reverse compatibility
-    private Map<String, UUID> mProfileNames;
+    // Serializes all changes, readers go through mRegistry instead
+    private final Object mLock = new Object();
+    private volatile Registry mRegistry = Registry.EMPTY;
 
+    // Working copies the writers change, published through mRegistry. Guarded by mLock
+    private Map<UUID, Profile> mProfiles;
+    private ProfileUuidIndex mProfileUuids;
+    private Map<String, UUID> mProfileNames;
     private Map<UUID, NotificationGroup> mGroups;
-
+    private Map<String, NotificationGroup> mPackageGroups;
     private Profile mActiveProfile;
+    // Whether profiles were added, replaced or removed since the last publish, which
+    // invalidates the trigger index. Guarded by mLock
+    private boolean mProfilesChanged;
 
     // Well-known UUID of the wildcard group
     private static final UUID mWildcardUUID =
@@ -98,7 +160,20 @@ public class ProfileManagerService extends LineageSystemService {
 
     private Context mContext;
     private Handler mHandler;
+    // Guarded by mLock
     private boolean mDirty;
+    private final AtomicFile mProfileFile = new AtomicFile(PROFILE_FILE);
+    private final AtomicFile mStoreFile = new AtomicFile(PROFILE_STORE_FILE);
+    // Serialized form of each notification group as of the last write. Guarded by this
+    private Map<NotificationGroup, String> mGroupXml = new IdentityHashMap<>();
+    // Uptime of the first change not written out yet, 0 if none. Guarded by mLock
+    private long mPersistPendingSince;
+    private final Runnable mPersist = new Runnable() {
+        @Override
+        public void run() {
+            persistNow();
+        }
+    };
     private BackupManager mBackupManager;
     private ProfileTriggerHelper mTriggerHelper;
     private Profile mEmptyProfile;
@@ -132,10 +207,12 @@ public class ProfileManagerService extends LineageSystemService {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (action.equals(Intent.ACTION_LOCALE_CHANGED)) {
-                persistIfDirty();
+                persistNow();
+                // The binary store holds names already resolved for the old locale
+                mStoreFile.delete();
                 initialize();
             } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
-                persistIfDirty();
+                persistNow();
             }
         }
     };
@@ -160,10 +237,11 @@ public class ProfileManagerService extends LineageSystemService {
     };
 
     private void maybeApplyActiveProfile() {
+        final Profile activeProfile = getActiveProfileInternal();
         final List<Profile.ProfileTrigger> wiFiTriggers
-                = mActiveProfile.getTriggersFromType(Profile.TriggerType.WIFI);
+                = activeProfile.getTriggersFromType(Profile.TriggerType.WIFI);
         final List<Profile.ProfileTrigger> blueToothTriggers
-                = mActiveProfile.getTriggersFromType(Profile.TriggerType.BLUETOOTH);
+                = activeProfile.getTriggersFromType(Profile.TriggerType.BLUETOOTH);
 
         boolean selectProfile = false;
         if (wiFiTriggers.size() == 0 && blueToothTriggers.size() == 0) {
@@ -196,7 +274,7 @@ public class ProfileManagerService extends LineageSystemService {
             }
         }
 
-        if (selectProfile) mActiveProfile.doSelect(mContext, mKeyguardService);
+        if (selectProfile) activeProfile.doSelect(mContext, mKeyguardService);
     }
 
     private String removeDoubleQuotes(String string) {
@@ -300,32 +378,78 @@ public class ProfileManagerService extends LineageSystemService {
     }
 
     private void initialize(boolean skipFile) {
-        mTriggerHelper = new ProfileTriggerHelper(mContext, mHandler, this);
-        mProfiles = new HashMap<UUID, Profile>();
-        mProfileNames = new HashMap<String, UUID>();
-        mGroups = new HashMap<UUID, NotificationGroup>();
-        mEmptyProfile = new Profile("EmptyProfile");
-        mDirty = false;
-
-        boolean init = skipFile;
+        synchronized (mLock) {
+            mTriggerHelper = new ProfileTriggerHelper(mContext, mHandler, this);
+            mProfiles = new HashMap<UUID, Profile>();
+            mProfileUuids = new ProfileUuidIndex();
+            mProfileNames = new HashMap<String, UUID>();
+            mGroups = new HashMap<UUID, NotificationGroup>();
+            mPackageGroups = new HashMap<String, NotificationGroup>();
+            mEmptyProfile = new Profile("EmptyProfile");
+            mDirty = false;
+            mProfilesChanged = true;
+
+            boolean init = skipFile;
+
+            if (!skipFile) {
+                try {
+                    loadFromFile();
+                } catch (XmlPullParserException e) {
+                    init = true;
+                } catch (IOException e) {
+                    init = true;
+                }
+            }
 
-        if (!skipFile) {
-            try {
-                loadFromFile();
-            } catch (XmlPullParserException e) {
-                init = true;
-            } catch (IOException e) {
-                init = true;
+            if (init) {
+                try {
+                    initialiseStructure();
+                } catch (Throwable ex) {
+                    Log.e(TAG, "Error loading xml from resource: ", ex);
+                }
             }
+            publishLocked();
         }
+    }
 
-        if (init) {
-            try {
-                initialiseStructure();
-            } catch (Throwable ex) {
-                Log.e(TAG, "Error loading xml from resource: ", ex);
-            }
+    /**
+     * Makes the working copies visible to readers. Called with mLock held after every change.
+     */
+    private void publishLocked() {
+        mRegistry = new Registry(mProfiles, mProfileNames, mGroups, mPackageGroups,
+                mProfileUuids, mActiveProfile);
+        // Switching profiles or changing notification groups leaves the triggers alone
+        if (mProfilesChanged) {
+            mProfilesChanged = false;
+            mTriggerHelper.onProfilesChanged();
+        }
+    }
+
+    /**
+     * Returns a profile of the working copy that can be changed in place. Published profiles
+     * may be in use by readers, so they are replaced with a copy first.
+     */
+    private Profile editProfileLocked(Profile profile) {
+        if (mRegistry.profiles.get(profile.getUuid()) != profile) {
+            return profile;
+        }
+        final Profile copy;
+        final Parcel parcel = Parcel.obtain();
+        try {
+            profile.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            copy = Profile.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
         }
+        mProfiles.put(copy.getUuid(), copy);
+        mProfileUuids.put(copy);
+        // The trigger index holds the published instance
+        mProfilesChanged = true;
+        if (mActiveProfile == profile) {
+            mActiveProfile = copy;
+        }
+        return copy;
     }
 
     private final IBinder mService = new IProfileManager.Stub() {
@@ -345,7 +469,8 @@ public class ProfileManagerService extends LineageSystemService {
                 Log.w(TAG, "Unable to set active profile because profiles are disabled.");
                 return false;
             }
-            if (!mProfileNames.containsKey(profileName)) {
+            final Registry registry = mRegistry;
+            if (!registry.profileNames.containsKey(profileName)) {
                 // Since profileName could not be casted into a UUID, we can call it a string.
                 Log.w(TAG, "Unable to find profile to set active, based on string: " + profileName);
                 return false;
@@ -361,7 +486,8 @@ public class ProfileManagerService extends LineageSystemService {
              * - broadcast INTENT_ACTION_PROFILE_SELECTED
              */
             long token = clearCallingIdentity();
-            setActiveProfileInternal(mProfiles.get(mProfileNames.get(profileName)), true);
+            setActiveProfileInternal(registry.profiles.get(
+                    registry.profileNames.get(profileName)), true);
             restoreCallingIdentity(token);
             return true;
         }
@@ -387,7 +513,10 @@ public class ProfileManagerService extends LineageSystemService {
         @Override
         public boolean addProfile(Profile profile) {
             enforceChangePermissions();
-            addProfileInternal(profile);
+            synchronized (mLock) {
+                addProfileInternal(profile);
+                publishLocked();
+            }
             long token = clearCallingIdentity();
             persistIfDirty();
             restoreCallingIdentity(token);
@@ -397,10 +526,11 @@ public class ProfileManagerService extends LineageSystemService {
         @Override
         @Deprecated
         public Profile getProfileByName(String profileName) {
-            if (mProfileNames.containsKey(profileName)) {
-                return mProfiles.get(mProfileNames.get(profileName));
-            } else if (mProfiles.containsKey(UUID.fromString((profileName)))) {
-                return mProfiles.get(UUID.fromString(profileName));
+            final Registry registry = mRegistry;
+            if (registry.profileNames.containsKey(profileName)) {
+                return registry.profiles.get(registry.profileNames.get(profileName));
+            } else if (registry.profiles.containsKey(UUID.fromString((profileName)))) {
+                return registry.profiles.get(UUID.fromString(profileName));
             } else {
                 return null;
             }
@@ -431,37 +561,49 @@ public class ProfileManagerService extends LineageSystemService {
         @Override
         public boolean removeProfile(Profile profile) {
             enforceChangePermissions();
-            if (mProfileNames.remove(profile.getName()) != null
-                    && mProfiles.remove(profile.getUuid()) != null) {
+            synchronized (mLock) {
+                if (mProfileNames.remove(profile.getName()) == null
+                        || mProfiles.remove(profile.getUuid()) == null) {
+                    return false;
+                }
+                mProfileUuids.remove(profile.getUuid());
                 mDirty = true;
-                long token = clearCallingIdentity();
-                persistIfDirty();
-                restoreCallingIdentity(token);
-                return true;
-            } else {
-                return false;
+                mProfilesChanged = true;
+                publishLocked();
             }
+            long token = clearCallingIdentity();
+            persistIfDirty();
+            restoreCallingIdentity(token);
+            return true;
         }
 
         @Override
         public void updateProfile(Profile profile) {
             enforceChangePermissions();
-            Profile old = mProfiles.get(profile.getUuid());
+            final boolean active;
+            synchronized (mLock) {
+                Profile old = mProfiles.get(profile.getUuid());
 
-            if (old == null) {
-                return;
-            }
+                if (old == null) {
+                    return;
+                }
 
-            mProfileNames.remove(old.getName());
-            mProfileNames.put(profile.getName(), profile.getUuid());
-            mProfiles.put(profile.getUuid(), profile);
-            /* no need to set mDirty, if the profile was actually changed,
-             * it's marked as dirty by itself */
+                mProfileNames.remove(old.getName());
+                mProfileNames.put(profile.getName(), profile.getUuid());
+                mProfiles.put(profile.getUuid(), profile);
+                mProfileUuids.put(profile);
+                mProfilesChanged = true;
+                active = mActiveProfile != null
+                        && mActiveProfile.getUuid().equals(profile.getUuid());
+                /* no need to set mDirty, if the profile was actually changed,
+                 * it's marked as dirty by itself */
+                publishLocked();
+            }
             long token = clearCallingIdentity();
             persistIfDirty();
 
             // Also update if we changed the active profile
-            if (mActiveProfile != null && mActiveProfile.getUuid().equals(profile.getUuid())) {
+            if (active) {
                 setActiveProfileInternal(profile, true);
             }
             restoreCallingIdentity(token);
@@ -469,13 +611,13 @@ public class ProfileManagerService extends LineageSystemService {
 
         @Override
         public boolean profileExists(ParcelUuid profileUuid) {
-            return mProfiles.containsKey(profileUuid.getUuid());
+            return mRegistry.profiles.containsKey(profileUuid.getUuid());
         }
 
         @Override
         @Deprecated
         public boolean profileExistsByName(String profileName) {
-            for (Map.Entry<String, UUID> entry : mProfileNames.entrySet()) {
+            for (Map.Entry<String, UUID> entry : mRegistry.profileNames.entrySet()) {
                 if (entry.getKey().equalsIgnoreCase(profileName)) {
                     return true;
                 }
@@ -486,7 +628,7 @@ public class ProfileManagerService extends LineageSystemService {
         @Override
         @Deprecated
         public boolean notificationGroupExistsByName(String notificationGroupName) {
-            for (NotificationGroup group : mGroups.values()) {
+            for (NotificationGroup group : mRegistry.groups.values()) {
                 if (group.getName().equalsIgnoreCase(notificationGroupName)) {
                     return true;
                 }
@@ -496,13 +638,16 @@ public class ProfileManagerService extends LineageSystemService {
 
         @Override
         public NotificationGroup[] getNotificationGroups() {
-            return mGroups.values().toArray(new NotificationGroup[0]);
+            return mRegistry.groups.values().toArray(new NotificationGroup[0]);
         }
 
         @Override
         public void addNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            addNotificationGroupInternal(group);
+            synchronized (mLock) {
+                addNotificationGroupInternal(group);
+                publishLocked();
+            }
             long token = clearCallingIdentity();
             persistIfDirty();
             restoreCallingIdentity(token);
@@ -511,11 +656,20 @@ public class ProfileManagerService extends LineageSystemService {
         @Override
         public void removeNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            mDirty |= mGroups.remove(group.getUuid()) != null;
-            // Remove the corresponding ProfileGroup from all the profiles too if
-            // they use it.
-            for (Profile profile : mProfiles.values()) {
-                profile.removeProfileGroup(group.getUuid());
+            synchronized (mLock) {
+                NotificationGroup removed = mGroups.remove(group.getUuid());
+                if (removed != null) {
+                    unindexGroupLocked(removed);
+                    mDirty = true;
+                }
+                // Remove the corresponding ProfileGroup from all the profiles too if
+                // they use it.
+                for (Profile profile : mProfiles.values().toArray(new Profile[0])) {
+                    if (profile.getProfileGroup(group.getUuid()) != null) {
+                        editProfileLocked(profile).removeProfileGroup(group.getUuid());
+                    }
+                }
+                publishLocked();
             }
             long token = clearCallingIdentity();
             persistIfDirty();
@@ -525,14 +679,19 @@ public class ProfileManagerService extends LineageSystemService {
         @Override
         public void updateNotificationGroup(NotificationGroup group) {
             enforceChangePermissions();
-            NotificationGroup old = mGroups.get(group.getUuid());
-            if (old == null) {
-                return;
-            }
+            synchronized (mLock) {
+                NotificationGroup old = mGroups.get(group.getUuid());
+                if (old == null) {
+                    return;
+                }
 
-            mGroups.put(group.getUuid(), group);
-            /* no need to set mDirty, if the group was actually changed,
-             * it's marked as dirty by itself */
+                mGroups.put(group.getUuid(), group);
+                unindexGroupLocked(old);
+                indexGroupLocked(group);
+                /* no need to set mDirty, if the group was actually changed,
+                 * it's marked as dirty by itself */
+                publishLocked();
+            }
             long token = clearCallingIdentity();
             persistIfDirty();
             restoreCallingIdentity(token);
@@ -540,12 +699,20 @@ public class ProfileManagerService extends LineageSystemService {
 
         @Override
         public NotificationGroup getNotificationGroupForPackage(String pkg) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.hasPackage(pkg)) {
-                    return group;
-                }
+            return mRegistry.packageGroups.get(pkg);
+        }
+
+        @Override
+        public NotificationGroup[] getNotificationGroupsForPackages(String[] pkgs) {
+            if (pkgs == null) {
+                return new NotificationGroup[0];
             }
-            return null;
+            final Map<String, NotificationGroup> packageGroups = mRegistry.packageGroups;
+            final NotificationGroup[] groups = new NotificationGroup[pkgs.length];
+            for (int i = 0; i < pkgs.length; i++) {
+                groups[i] = packageGroups.get(pkgs[i]);
+            }
+            return groups;
         }
 
         @Override
@@ -553,7 +720,7 @@ public class ProfileManagerService extends LineageSystemService {
             if (uuid.getUuid().equals(mWildcardGroup.getUuid())) {
                 return mWildcardGroup;
             }
-            return mGroups.get(uuid.getUuid());
+            return mRegistry.groups.get(uuid.getUuid());
         }
 
         @Override
@@ -577,8 +744,10 @@ public class ProfileManagerService extends LineageSystemService {
         }
         ensureGroupInProfile(profile, mWildcardGroup, true);
         mProfiles.put(profile.getUuid(), profile);
+        mProfileUuids.put(profile);
         mProfileNames.put(profile.getName(), profile.getUuid());
         mDirty = true;
+        mProfilesChanged = true;
     }
 
     private void ensureGroupInProfile(Profile profile,
@@ -596,76 +765,135 @@ public class ProfileManagerService extends LineageSystemService {
         }
 
         /* didn't find any, create new group */
-        profile.addProfileGroup(new ProfileGroup(group.getUuid(), defaultGroup));
+        editProfileLocked(profile).addProfileGroup(new ProfileGroup(group.getUuid(), defaultGroup));
     }
 
     private Profile getProfileInternal(UUID profileUuid) {
-        // use primary UUID first
-        if (mProfiles.containsKey(profileUuid)) {
-            return mProfiles.get(profileUuid);
-        }
-        // if no match was found: try secondary UUID
-        for (Profile p : mProfiles.values()) {
-            for (UUID uuid : p.getSecondaryUuids()) {
-                if (profileUuid.equals(uuid)) {
-                    return p;
-                }
-            }
-        }
-        // nothing found
-        return null;
+        // Covers secondary UUIDs too, primary ones taking precedence
+        return mRegistry.profileUuids.get(profileUuid);
     }
 
     /* package */ Collection<Profile> getProfileList() {
-        return mProfiles.values();
+        return mRegistry.profiles.values();
     }
 
-    private String getXmlString() {
+    private void writeXml(Writer out, Registry registry) throws IOException {
         StringBuilder builder = new StringBuilder();
         builder.append("<profiles>\n<active>");
-        builder.append(TextUtils.htmlEncode(mActiveProfile.getUuid().toString()));
+        builder.append(TextUtils.htmlEncode(registry.activeProfile.getUuid().toString()));
         builder.append("</active>\n");
 
-        for (Profile p : mProfiles.values()) {
+        // Profiles keep their own serialized form, only the changed ones are serialized again
+        for (Profile p : registry.profiles.values()) {
             p.getXmlString(builder, mContext);
         }
-        for (NotificationGroup g : mGroups.values()) {
-            g.getXmlString(builder, mContext);
+        out.append(builder);
+
+        // NotificationGroup can't cache its own, so keep it here
+        Map<NotificationGroup, String> groupXml = new IdentityHashMap<>(registry.groups.size());
+        for (NotificationGroup g : registry.groups.values()) {
+            String xml = mGroupXml.get(g);
+            if (xml == null || g.isDirty()) {
+                builder.setLength(0);
+                g.getXmlString(builder, mContext);
+                xml = builder.toString();
+            }
+            groupXml.put(g, xml);
+            out.write(xml);
         }
-        builder.append("</profiles>\n");
-        return builder.toString();
+        mGroupXml = groupXml;
+        out.write("</profiles>\n");
     }
 
-    private synchronized void persistIfDirty() {
-        boolean dirty = mDirty;
-        if (!dirty) {
-            for (Profile profile : mProfiles.values()) {
-                if (profile.isDirty()) {
-                    dirty = true;
-                    break;
-                }
+    private boolean isDirtyLocked() {
+        if (mDirty) {
+            return true;
+        }
+        for (Profile profile : mProfiles.values()) {
+            if (profile.isDirty()) {
+                return true;
             }
         }
-        if (!dirty) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.isDirty()) {
-                    dirty = true;
-                    break;
-                }
+        for (NotificationGroup group : mGroups.values()) {
+            if (group.isDirty()) {
+                return true;
             }
         }
-        if (dirty) {
-            try {
-                Log.d(TAG, "Saving profile data...");
-                FileWriter fw = new FileWriter(PROFILE_FILE);
-                fw.write(getXmlString());
-                fw.close();
-                Log.d(TAG, "Save completed.");
-                mDirty = false;
-                mBackupManager.dataChanged();
-            } catch (Throwable e) {
-                e.printStackTrace();
+        return false;
+    }
+
+    /**
+     * Schedules writing out the profiles if anything changed. The write happens on the
+     * background thread once changes stop coming in for a while, so bursts of changes
+     * only cost one write.
+     */
+    private void persistIfDirty() {
+        synchronized (mLock) {
+            if (mProfiles == null || !isDirtyLocked()) {
+                return;
+            }
+            final long now = SystemClock.uptimeMillis();
+            if (mPersistPendingSince == 0) {
+                mPersistPendingSince = now;
+            }
+            final long delay = Math.max(0, Math.min(PERSIST_DELAY_MS,
+                    mPersistPendingSince + PERSIST_MAX_DELAY_MS - now));
+            final Handler handler = BackgroundThread.getHandler();
+            handler.removeCallbacks(mPersist);
+            handler.postDelayed(mPersist, delay);
+        }
+    }
+
+    /**
+     * Writes out the profiles right away if anything changed. Writes are serialized on this,
+     * and only ever look at a published registry, so they don't hold up changes.
+     */
+    private synchronized void persistNow() {
+        final Registry registry;
+        synchronized (mLock) {
+            BackgroundThread.getHandler().removeCallbacks(mPersist);
+            mPersistPendingSince = 0;
+            if (mProfiles == null || !isDirtyLocked()) {
+                return;
+            }
+            // Cleared first, so changes made while writing get written again
+            mDirty = false;
+            registry = mRegistry;
+        }
+        AtomicFile file = null;
+        FileOutputStream fos = null;
+        try {
+            Log.d(TAG, "Saving profile data...");
+            // The binary store must never be loaded in place of a newer XML file
+            mStoreFile.delete();
+
+            file = mProfileFile;
+            fos = file.startWrite();
+            Writer out = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+            writeXml(out, registry);
+            out.flush();
+            file.finishWrite(fos);
+            fos = null;
+            // XML is what gets backed up, so let the backup know before the binary copy
+            mBackupManager.dataChanged();
+
+            file = mStoreFile;
+            fos = file.startWrite();
+            new ProfileStore(registry.activeProfile.getUuid(), registry.profiles.values(),
+                    registry.groups.values()).writeTo(new BufferedOutputStream(fos));
+            file.finishWrite(fos);
+            fos = null;
+            Log.d(TAG, "Save completed.");
+        } catch (Throwable e) {
+            Log.e(TAG, "Unable to save profile data", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+            // Try again in a bit
+            synchronized (mLock) {
+                mDirty = true;
             }
+            persistIfDirty();
         }
     }
 
@@ -677,23 +905,76 @@ public class ProfileManagerService extends LineageSystemService {
 
     // Called by SystemBackupAgent after files are restored to disk.
     void settingsRestored() {
+        // Only the XML file is restored, the binary store is out of date
+        mStoreFile.delete();
         initialize();
-        for (Profile p : mProfiles.values()) {
-            p.validateRingtones(mContext);
+        synchronized (mLock) {
+            for (Profile p : mProfiles.values().toArray(new Profile[0])) {
+                editProfileLocked(p).validateRingtones(mContext);
+            }
+            publishLocked();
         }
-        persistIfDirty();
+        persistNow();
     }
 
     private void loadFromFile() throws XmlPullParserException, IOException {
+        if (loadFromStore()) {
+            persistIfDirty();
+            return;
+        }
         XmlPullParserFactory xppf = XmlPullParserFactory.newInstance();
         XmlPullParser xpp = xppf.newPullParser();
-        FileReader fr = new FileReader(PROFILE_FILE);
-        xpp.setInput(fr);
-        loadXml(xpp, mContext);
-        fr.close();
+        FileInputStream fis = mProfileFile.openRead();
+        try {
+            xpp.setInput(new InputStreamReader(fis, StandardCharsets.UTF_8));
+            loadXml(xpp, mContext);
+        } finally {
+            fis.close();
+        }
         persistIfDirty();
     }
 
+    /**
+     * Loads the profiles from the binary store, which is a lot cheaper than parsing the XML.
+     * @return false if there is no usable store, in which case nothing was loaded
+     */
+    private boolean loadFromStore() {
+        ProfileStore store;
+        try {
+            FileInputStream fis = mStoreFile.openRead();
+            try {
+                store = ProfileStore.readFrom(new BufferedInputStream(fis));
+            } finally {
+                fis.close();
+            }
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + PROFILE_STORE_FILE + ", falling back to XML", e);
+            return false;
+        }
+        if (store == null || store.getProfiles().isEmpty()) {
+            if (LOCAL_LOGV) Log.v(TAG, "Ignoring stale " + PROFILE_STORE_FILE);
+            return false;
+        }
+
+        for (Profile profile : store.getProfiles()) {
+            addProfileInternal(profile);
+        }
+        for (NotificationGroup group : store.getNotificationGroups()) {
+            addNotificationGroupInternal(group);
+        }
+        UUID active = store.getActiveProfile();
+        if (active != null && mProfiles.containsKey(active)) {
+            setActiveProfileInternal(active, false);
+            // Nothing changed, unless groups had to be added to profiles, which marks them
+            mDirty = false;
+        } else {
+            setActiveProfileInternal(mProfiles.values().iterator().next(), false);
+        }
+        return true;
+    }
+
     private void loadXml(XmlPullParser xpp, Context context) throws
             XmlPullParserException, IOException {
         int event = xpp.next();
@@ -751,19 +1032,23 @@ public class ProfileManagerService extends LineageSystemService {
     }
 
     private boolean setActiveProfileInternal(UUID profileUuid, boolean doInit) {
-        if (!mProfiles.containsKey(profileUuid)) {
+        final Profile profile;
+        synchronized (mLock) {
+            profile = mProfileUuids.get(profileUuid);
+        }
+        if (profile == null) {
             Log.e(TAG, "Cannot set active profile to: "
                     + profileUuid.toString() + " - does not exist.");
             return false;
         }
 
-        if (LOCAL_LOGV) Log.v(TAG, "setActiveProfile(UUID, boolean) found UUID in mProfiles.");
-        setActiveProfileInternal(mProfiles.get(profileUuid), doInit);
+        if (LOCAL_LOGV) Log.v(TAG, "setActiveProfile(UUID, boolean) found UUID in mProfileUuids.");
+        setActiveProfileInternal(profile, doInit);
         return true;
     }
 
     /* package */ Profile getActiveProfileInternal() {
-        return mActiveProfile;
+        return mRegistry.activeProfile;
     }
 
     /* package */ void setActiveProfileInternal(Profile newActiveProfile, boolean doInit) {
@@ -780,21 +1065,25 @@ public class ProfileManagerService extends LineageSystemService {
         Log.d(TAG, "Set active profile to: " + newActiveProfile.getUuid().toString()
                 + " - " + newActiveProfile.getName());
 
-        Profile lastProfile = mActiveProfile;
-        mActiveProfile = newActiveProfile;
-        mDirty = true;
+        final Profile lastProfile;
+        synchronized (mLock) {
+            lastProfile = mActiveProfile;
+            mActiveProfile = newActiveProfile;
+            mDirty = true;
+            publishLocked();
+        }
 
         if (doInit) {
             if (LOCAL_LOGV) Log.v(TAG, "setActiveProfile(Profile, boolean) - Running init");
             // Call profile's "doSelect"
-            mActiveProfile.doSelect(mContext, mKeyguardService);
+            newActiveProfile.doSelect(mContext, mKeyguardService);
 
             // Notify other applications of newly selected profile.
             Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_SELECTED);
             broadcast.putExtra(ProfileManager.EXTRA_PROFILE_NAME,
-                    mActiveProfile.getName());
+                    newActiveProfile.getName());
             broadcast.putExtra(ProfileManager.EXTRA_PROFILE_UUID,
-                    mActiveProfile.getUuid().toString());
+                    newActiveProfile.getUuid().toString());
             broadcast.putExtra(ProfileManager.EXTRA_LAST_PROFILE_NAME,
                     lastProfile.getName());
             broadcast.putExtra(ProfileManager.EXTRA_LAST_PROFILE_UUID,
@@ -803,25 +1092,55 @@ public class ProfileManagerService extends LineageSystemService {
 
             mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
             persistIfDirty();
-        } else if (lastProfile != mActiveProfile && ActivityManagerNative.isSystemReady()) {
+        } else if (lastProfile != newActiveProfile && ActivityManagerNative.isSystemReady()) {
             // Something definitely changed: notify.
             Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_UPDATED);
             broadcast.putExtra(ProfileManager.EXTRA_PROFILE_NAME,
-                    mActiveProfile.getName());
+                    newActiveProfile.getName());
             broadcast.putExtra(ProfileManager.EXTRA_PROFILE_UUID,
-                    mActiveProfile.getUuid().toString());
+                    newActiveProfile.getUuid().toString());
             mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
         }
     }
 
     private void addNotificationGroupInternal(NotificationGroup group) {
-        if (mGroups.put(group.getUuid(), group) == null) {
+        NotificationGroup old = mGroups.put(group.getUuid(), group);
+        if (old == null) {
             // If the above is true, then the ProfileGroup shouldn't exist in
             // the profile. Ensure it is added.
-            for (Profile profile : mProfiles.values()) {
+            for (Profile profile : mProfiles.values().toArray(new Profile[0])) {
                 ensureGroupInProfile(profile, group, false);
             }
+        } else {
+            unindexGroupLocked(old);
         }
+        indexGroupLocked(group);
         mDirty = true;
     }
+
+    private void indexGroupLocked(NotificationGroup group) {
+        for (String pkg : group.getPackages()) {
+            // A package listed by several groups stays with the one it was found in first
+            if (!mPackageGroups.containsKey(pkg)) {
+                mPackageGroups.put(pkg, group);
+            }
+        }
+    }
+
+    private void unindexGroupLocked(NotificationGroup group) {
+        for (String pkg : group.getPackages()) {
+            NotificationGroup indexed = mPackageGroups.get(pkg);
+            if (indexed == null || !indexed.getUuid().equals(group.getUuid())) {
+                continue;
+            }
+            mPackageGroups.remove(pkg);
+            // Hand the package over to any other group listing it
+            for (NotificationGroup other : mGroups.values()) {
+                if (other.hasPackage(pkg)) {
+                    mPackageGroups.put(pkg, other);
+                    break;
+                }
+            }
+        }
+    }
 }
@@ -27,12 +27,16 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Handler;
 import android.os.UserHandle;
+import android.util.ArrayMap;
 import android.util.Log;
 import lineageos.app.Profile;
 import lineageos.app.Profile.ProfileTrigger;
 import lineageos.app.ProfileManager;
 import lineageos.providers.LineageSettings;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -50,6 +54,16 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
     private IntentFilter mIntentFilter;
     private boolean mFilterRegistered = false;
 
+    private static final Profile[] NO_PROFILES = new Profile[0];
+
+    // Profiles having a trigger for a given id, one map per trigger type, so an event
+    // doesn't have to look at every profile. Only touched on the handler thread.
+    @SuppressWarnings("unchecked")
+    private final ArrayMap<String, Profile[]>[] mTriggerIndex =
+            new ArrayMap[Profile.TriggerType.BLUETOOTH + 1];
+    // Cleared whenever profiles are added, replaced or removed
+    private volatile boolean mTriggerIndexValid;
+
     private class SettingsObserver extends ContentObserver {
         public SettingsObserver(Handler handler) {
             super(handler);
@@ -97,6 +111,54 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Called by {@link ProfileManagerService} whenever a profile is added, replaced or removed.
+     * The trigger index is rebuilt on the next trigger event.
+     */
+    public void onProfilesChanged() {
+        mTriggerIndexValid = false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void rebuildTriggerIndex() {
+        // Marked valid first, so a change coming in while rebuilding triggers another rebuild
+        mTriggerIndexValid = true;
+        final ArrayMap<String, List<Profile>>[] index = new ArrayMap[mTriggerIndex.length];
+        final Collection<Profile> profiles = mManagerService.getProfileList();
+        for (int type = 0; type < index.length; type++) {
+            index[type] = new ArrayMap<String, List<Profile>>();
+            for (Profile p : profiles) {
+                for (ProfileTrigger trigger : p.getTriggersFromType(type)) {
+                    List<Profile> list = index[type].get(trigger.getId());
+                    if (list == null) {
+                        list = new ArrayList<Profile>(1);
+                        index[type].put(trigger.getId(), list);
+                    }
+                    list.add(p);
+                }
+            }
+        }
+        for (int type = 0; type < index.length; type++) {
+            final ArrayMap<String, Profile[]> map =
+                    new ArrayMap<String, Profile[]>(index[type].size());
+            for (int i = 0; i < index[type].size(); i++) {
+                map.put(index[type].keyAt(i), index[type].valueAt(i).toArray(NO_PROFILES));
+            }
+            mTriggerIndex[type] = map;
+        }
+    }
+
+    private Profile[] getProfilesForTrigger(int type, String id) {
+        if (!mTriggerIndexValid) {
+            rebuildTriggerIndex();
+        }
+        if (id == null || type < 0 || type >= mTriggerIndex.length) {
+            return NO_PROFILES;
+        }
+        final Profile[] profiles = mTriggerIndex[type].get(id);
+        return profiles != null ? profiles : NO_PROFILES;
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
         String action = intent.getAction();
@@ -138,43 +200,36 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
     private void checkTriggers(int type, String id, int newState) {
         final Profile activeProfile = mManagerService.getActiveProfileInternal();
         final UUID currentProfileUuid = activeProfile.getUuid();
+        final Profile[] profiles = getProfilesForTrigger(type, id);
 
         boolean newProfileSelected = false;
-        for (Profile p : mManagerService.getProfileList()) {
-            final int profileTriggerState = p.getTriggerState(type, id);
-            if (newState != profileTriggerState) {
-                    continue;
+        boolean activeProfileTriggered = false;
+        for (Profile p : profiles) {
+            if (currentProfileUuid.equals(p.getUuid())) {
+                activeProfileTriggered = true;
+                continue;
             }
-
-            if (!currentProfileUuid.equals(p.getUuid())) {
+            if (newState == p.getTriggerState(type, id)) {
                 mManagerService.setActiveProfileInternal(p, true);
                 newProfileSelected = true;
             }
         }
 
-        if (!newProfileSelected) {
-            //Does the active profile actually cares about this event?
-            for (ProfileTrigger trigger : activeProfile.getTriggersFromType(type)) {
-                final String triggerID = trigger.getId();
-                if (triggerID.equals(id)) {
-                    Intent intent
-                            = new Intent(ProfileManager.INTENT_ACTION_PROFILE_TRIGGER_STATE_CHANGED);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_ID, id);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_TYPE, type);
-                    intent.putExtra(ProfileManager.EXTRA_TRIGGER_STATE, newState);
-                    mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
-
-                    final int triggerState = trigger.getState();
-                    if ((newState == Profile.TriggerState.ON_CONNECT
-                            && triggerState == Profile.TriggerState.ON_CONNECT) ||
-                            (newState == Profile.TriggerState.ON_DISCONNECT
-                            && triggerState == Profile.TriggerState.ON_DISCONNECT)) {
-                        activeProfile.doSelect(mContext, null);
-                    }
-                    break;
-                }
+        if (!newProfileSelected && activeProfileTriggered) {
+            // The active profile cares about this event
+            Intent intent = new Intent(ProfileManager.INTENT_ACTION_PROFILE_TRIGGER_STATE_CHANGED);
+            intent.putExtra(ProfileManager.EXTRA_TRIGGER_ID, id);
+            intent.putExtra(ProfileManager.EXTRA_TRIGGER_TYPE, type);
+            intent.putExtra(ProfileManager.EXTRA_TRIGGER_STATE, newState);
+            mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
+
+            final int triggerState = activeProfile.getTriggerState(type, id);
+            if ((newState == Profile.TriggerState.ON_CONNECT
+                    && triggerState == Profile.TriggerState.ON_CONNECT) ||
+                    (newState == Profile.TriggerState.ON_DISCONNECT
+                    && triggerState == Profile.TriggerState.ON_DISCONNECT)) {
+                activeProfile.doSelect(mContext, null);
             }
-
         }
     }
 
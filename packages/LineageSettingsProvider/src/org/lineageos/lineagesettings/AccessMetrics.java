@@ -0,0 +1,389 @@
+/**
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import lineageos.providers.LineageSettings;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sampled access counters of the provider: per calling uid, per table, per key, and latency
+ * histograms per operation.
+ *
+ * Everything lives in fixed size atomic arrays, so recording takes no lock and allocates
+ * nothing. Uids and keys are kept in open addressing tables; once those are full, further ones
+ * are counted together in an overflow slot. With sampling off, the only cost left is reading
+ * the sampling rate.
+ */
+final class AccessMetrics {
+    static final int OP_GET = 0;
+    static final int OP_PUT = 1;
+    static final int OP_LIST = 2;
+    static final int OP_DELETE = 3;
+    static final int OP_GET_MULTI = 4;
+    static final int OP_PUT_MULTI = 5;
+    static final int OP_QUERY = 6;
+    static final int OP_INSERT = 7;
+    static final int OP_OTHER = 8;
+    private static final int OP_COUNT = 9;
+    private static final String[] OP_NAMES = new String[] {
+            "get", "put", "list", "delete", "get_multi", "put_multi", "query", "insert", "other"
+    };
+
+    static final int TABLE_NONE = -1;
+    private static final String[] TABLE_NAMES = new String[] {
+            LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM,
+            LineageDatabaseHelper.LineageTableNames.TABLE_SECURE,
+            LineageDatabaseHelper.LineageTableNames.TABLE_GLOBAL
+    };
+
+    // Whether a read was served from memory, unknown for anything else
+    static final int SOURCE_NONE = -1;
+    static final int SOURCE_MEMORY = 0;
+    static final int SOURCE_STORAGE = 1;
+
+    // Bucket i counts latencies below 2^i us, the last one everything above
+    private static final int LATENCY_BUCKETS = 16;
+
+    private static final int UID_SLOTS = 64;
+    private static final int UID_READS = 0;
+    private static final int UID_WRITES = 1;
+    private static final int UID_LATENCY_US = 2;
+    private static final int UID_COUNTERS = 3;
+
+    private static final int TABLE_READS = 0;
+    private static final int TABLE_WRITES = 1;
+    private static final int TABLE_MEMORY_READS = 2;
+    private static final int TABLE_STORAGE_READS = 3;
+    private static final int TABLE_COUNTERS = 4;
+
+    private static final int KEY_SLOTS = 256;
+    private static final int KEY_READS = 0;
+    private static final int KEY_WRITES = 1;
+    private static final int KEY_COUNTERS = 2;
+
+    // Hot keys listed by dump()
+    private static final int DUMP_TOP_KEYS = 20;
+
+    private volatile int mSampling;
+
+    // Uids are stored plus one, so 0 marks a free slot; the extra slot counts overflow
+    private final AtomicIntegerArray mUids = new AtomicIntegerArray(UID_SLOTS);
+    private final AtomicLongArray mUidCounts = new AtomicLongArray((UID_SLOTS + 1) * UID_COUNTERS);
+
+    private final AtomicLongArray mTableCounts =
+            new AtomicLongArray(TABLE_NAMES.length * TABLE_COUNTERS);
+
+    // One key table per settings table, so a slot is identified by its name alone
+    private final AtomicReferenceArray<String> mKeys =
+            new AtomicReferenceArray<String>(TABLE_NAMES.length * KEY_SLOTS);
+    private final AtomicLongArray mKeyCounts =
+            new AtomicLongArray((TABLE_NAMES.length * KEY_SLOTS + 1) * KEY_COUNTERS);
+
+    private final AtomicLongArray mLatency = new AtomicLongArray(OP_COUNT * LATENCY_BUCKETS);
+
+    AccessMetrics(int sampling) {
+        mSampling = Math.max(0, sampling);
+    }
+
+    int getSampling() {
+        return mSampling;
+    }
+
+    /**
+     * @param sampling Record one access in that many, 0 to stop recording.
+     */
+    void setSampling(int sampling) {
+        mSampling = Math.max(0, sampling);
+    }
+
+    /**
+     * Decides whether to record the access about to start.
+     * @return The start time to pass to {@link #record}, or -1 if the access is not sampled.
+     */
+    long begin() {
+        final int sampling = mSampling;
+        if (sampling == 0
+                || (sampling > 1 && ThreadLocalRandom.current().nextInt(sampling) != 0)) {
+            return -1;
+        }
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Records a sampled access.
+     * @param startNs The value returned by {@link #begin()}.
+     * @param op The operation, one of the OP_ constants.
+     * @param uid The calling uid.
+     * @param table The index of the table, see {@link #tableIndex}, or {@link #TABLE_NONE}.
+     * @param key The key accessed, or null if not a single key.
+     * @param source Where a read was served from, one of the SOURCE_ constants.
+     */
+    void record(long startNs, int op, int uid, int table, String key, int source) {
+        final long latencyUs = (SystemClock.elapsedRealtimeNanos() - startNs) / 1000;
+        final boolean write = isWrite(op);
+
+        mLatency.incrementAndGet(op * LATENCY_BUCKETS + latencyBucket(latencyUs));
+
+        final int uidBase = uidSlot(uid) * UID_COUNTERS;
+        mUidCounts.incrementAndGet(uidBase + (write ? UID_WRITES : UID_READS));
+        mUidCounts.addAndGet(uidBase + UID_LATENCY_US, latencyUs);
+
+        if (table == TABLE_NONE) {
+            return;
+        }
+        final int tableBase = table * TABLE_COUNTERS;
+        mTableCounts.incrementAndGet(tableBase + (write ? TABLE_WRITES : TABLE_READS));
+        if (source == SOURCE_MEMORY) {
+            mTableCounts.incrementAndGet(tableBase + TABLE_MEMORY_READS);
+        } else if (source == SOURCE_STORAGE) {
+            mTableCounts.incrementAndGet(tableBase + TABLE_STORAGE_READS);
+        }
+
+        if (key != null) {
+            mKeyCounts.incrementAndGet(keySlot(table, key) * KEY_COUNTERS
+                    + (write ? KEY_WRITES : KEY_READS));
+        }
+    }
+
+    /**
+     * Clears every counter. Accesses recorded concurrently may be partly kept.
+     */
+    void reset() {
+        for (int i = 0; i < mUids.length(); i++) {
+            mUids.set(i, 0);
+        }
+        clear(mUidCounts);
+        clear(mTableCounts);
+        for (int i = 0; i < mKeys.length(); i++) {
+            mKeys.set(i, null);
+        }
+        clear(mKeyCounts);
+        clear(mLatency);
+    }
+
+    /**
+     * @param tableName The name of a table.
+     * @return The index of the table, or {@link #TABLE_NONE} if unknown.
+     */
+    static int tableIndex(String tableName) {
+        for (int i = 0; i < TABLE_NAMES.length; i++) {
+            if (TABLE_NAMES[i].equals(tableName)) {
+                return i;
+            }
+        }
+        return TABLE_NONE;
+    }
+
+    private static boolean isWrite(int op) {
+        return op == OP_PUT || op == OP_DELETE || op == OP_PUT_MULTI || op == OP_INSERT;
+    }
+
+    private static int latencyBucket(long latencyUs) {
+        return Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(latencyUs));
+    }
+
+    private int uidSlot(int uid) {
+        final int stored = uid + 1;
+        int slot = (stored * 0x9e3779b9) >>> 26; // log2(UID_SLOTS) top bits
+        for (int probe = 0; probe < UID_SLOTS; probe++) {
+            int current = mUids.get(slot);
+            if (current == 0) {
+                if (mUids.compareAndSet(slot, 0, stored)) {
+                    return slot;
+                }
+                current = mUids.get(slot);
+            }
+            if (current == stored) {
+                return slot;
+            }
+            slot = (slot + 1) & (UID_SLOTS - 1);
+        }
+        return UID_SLOTS;
+    }
+
+    private int keySlot(int table, String key) {
+        final int base = table * KEY_SLOTS;
+        final int hash = key.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & (KEY_SLOTS - 1);
+        for (int probe = 0; probe < KEY_SLOTS; probe++) {
+            String current = mKeys.get(base + slot);
+            if (current == null) {
+                if (mKeys.compareAndSet(base + slot, null, key)) {
+                    return base + slot;
+                }
+                current = mKeys.get(base + slot);
+            }
+            if (key.equals(current)) {
+                return base + slot;
+            }
+            slot = (slot + 1) & (KEY_SLOTS - 1);
+        }
+        return TABLE_NAMES.length * KEY_SLOTS;
+    }
+
+    private static void clear(AtomicLongArray array) {
+        for (int i = 0; i < array.length(); i++) {
+            array.set(i, 0);
+        }
+    }
+
+    /**
+     * Copies the metrics into the result of {@link LineageSettings#CALL_METHOD_GET_METRICS}.
+     */
+    Bundle toBundle() {
+        final Bundle ret = new Bundle();
+        ret.putInt(LineageSettings.CALL_METHOD_METRICS_SAMPLING_KEY, mSampling);
+
+        final ArrayList<Integer> uidSlots = usedUidSlots();
+        final int[] uids = new int[uidSlots.size()];
+        final long[] uidCounts = new long[uidSlots.size() * UID_COUNTERS];
+        for (int i = 0; i < uids.length; i++) {
+            final int slot = uidSlots.get(i);
+            uids[i] = slot == UID_SLOTS ? -1 : mUids.get(slot) - 1;
+            for (int c = 0; c < UID_COUNTERS; c++) {
+                uidCounts[i * UID_COUNTERS + c] = mUidCounts.get(slot * UID_COUNTERS + c);
+            }
+        }
+        ret.putIntArray(LineageSettings.CALL_METHOD_METRICS_UIDS_KEY, uids);
+        ret.putLongArray(LineageSettings.CALL_METHOD_METRICS_UID_COUNTS_KEY, uidCounts);
+
+        ret.putLongArray(LineageSettings.CALL_METHOD_METRICS_TABLE_COUNTS_KEY,
+                toArray(mTableCounts));
+
+        final ArrayList<String> keys = new ArrayList<String>();
+        final ArrayList<Long> keyCounts = new ArrayList<Long>();
+        for (int slot = 0; slot <= TABLE_NAMES.length * KEY_SLOTS; slot++) {
+            final long reads = mKeyCounts.get(slot * KEY_COUNTERS + KEY_READS);
+            final long writes = mKeyCounts.get(slot * KEY_COUNTERS + KEY_WRITES);
+            if (reads == 0 && writes == 0) {
+                continue;
+            }
+            keys.add(keyName(slot));
+            keyCounts.add(reads);
+            keyCounts.add(writes);
+        }
+        ret.putStringArray(LineageSettings.CALL_METHOD_METRICS_KEYS_KEY,
+                keys.toArray(new String[keys.size()]));
+        final long[] keyCountsArray = new long[keyCounts.size()];
+        for (int i = 0; i < keyCountsArray.length; i++) {
+            keyCountsArray[i] = keyCounts.get(i);
+        }
+        ret.putLongArray(LineageSettings.CALL_METHOD_METRICS_KEY_COUNTS_KEY, keyCountsArray);
+
+        ret.putStringArray(LineageSettings.CALL_METHOD_METRICS_OPS_KEY, OP_NAMES);
+        ret.putLongArray(LineageSettings.CALL_METHOD_METRICS_LATENCY_KEY, toArray(mLatency));
+        return ret;
+    }
+
+    void dump(PrintWriter pw) {
+        final int sampling = mSampling;
+        pw.println("Access metrics: "
+                + (sampling == 0 ? "off" : "sampling 1 in " + sampling));
+
+        pw.println("  By uid (reads, writes, average latency):");
+        for (int slot : usedUidSlots()) {
+            final long reads = mUidCounts.get(slot * UID_COUNTERS + UID_READS);
+            final long writes = mUidCounts.get(slot * UID_COUNTERS + UID_WRITES);
+            final long latencyUs = mUidCounts.get(slot * UID_COUNTERS + UID_LATENCY_US);
+            pw.println("    " + (slot == UID_SLOTS ? "other" : mUids.get(slot) - 1) + ": "
+                    + reads + ", " + writes + ", " + latencyUs / Math.max(1, reads + writes)
+                    + "us");
+        }
+
+        pw.println("  By table (reads, writes, from memory, from storage):");
+        for (int table = 0; table < TABLE_NAMES.length; table++) {
+            final int base = table * TABLE_COUNTERS;
+            pw.println("    " + TABLE_NAMES[table] + ": "
+                    + mTableCounts.get(base + TABLE_READS) + ", "
+                    + mTableCounts.get(base + TABLE_WRITES) + ", "
+                    + mTableCounts.get(base + TABLE_MEMORY_READS) + ", "
+                    + mTableCounts.get(base + TABLE_STORAGE_READS));
+        }
+
+        pw.println("  Hot keys (reads, writes):");
+        final int slots = TABLE_NAMES.length * KEY_SLOTS + 1;
+        final boolean[] listed = new boolean[slots];
+        for (int rank = 0; rank < DUMP_TOP_KEYS; rank++) {
+            int best = -1;
+            long bestTotal = 0;
+            for (int slot = 0; slot < slots; slot++) {
+                final long total = mKeyCounts.get(slot * KEY_COUNTERS + KEY_READS)
+                        + mKeyCounts.get(slot * KEY_COUNTERS + KEY_WRITES);
+                if (!listed[slot] && total > bestTotal) {
+                    best = slot;
+                    bestTotal = total;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            listed[best] = true;
+            pw.println("    " + keyName(best) + ": "
+                    + mKeyCounts.get(best * KEY_COUNTERS + KEY_READS) + ", "
+                    + mKeyCounts.get(best * KEY_COUNTERS + KEY_WRITES));
+        }
+
+        pw.println("  Latency histograms (<1us, <2us, <4us, ...):");
+        for (int op = 0; op < OP_COUNT; op++) {
+            final StringBuilder sb = new StringBuilder("    ").append(OP_NAMES[op]).append(':');
+            long total = 0;
+            for (int bucket = 0; bucket < LATENCY_BUCKETS; bucket++) {
+                final long count = mLatency.get(op * LATENCY_BUCKETS + bucket);
+                total += count;
+                sb.append(' ').append(count);
+            }
+            if (total > 0) {
+                pw.println(sb);
+            }
+        }
+    }
+
+    private ArrayList<Integer> usedUidSlots() {
+        final ArrayList<Integer> slots = new ArrayList<Integer>();
+        for (int slot = 0; slot <= UID_SLOTS; slot++) {
+            final int base = slot * UID_COUNTERS;
+            if (mUidCounts.get(base + UID_READS) != 0 || mUidCounts.get(base + UID_WRITES) != 0) {
+                slots.add(slot);
+            }
+        }
+        return slots;
+    }
+
+    private String keyName(int slot) {
+        if (slot == TABLE_NAMES.length * KEY_SLOTS) {
+            return "other";
+        }
+        return TABLE_NAMES[slot / KEY_SLOTS] + "/" + mKeys.get(slot);
+    }
+
+    private static long[] toArray(AtomicLongArray array) {
+        final long[] ret = new long[array.length()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = array.get(i);
+        }
+        return ret;
+    }
+}
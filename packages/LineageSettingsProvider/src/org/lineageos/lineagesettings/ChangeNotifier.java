@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.SystemProperties;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Coalesces settings change notifications, so a burst of writes reaches every observer as a
+ * single notification instead of one per write.
+ *
+ * Changes made inside a batch scope opened with {@link #beginBatch()} are sent when the
+ * outermost scope of the thread ends. Any other change is held back for at most
+ * {@link #COALESCE_WINDOW_MS}, together with the changes that follow it. Either way each
+ * distinct uri is notified once, so observers registered for a single key still see it.
+ *
+ * The version property of every changed table is bumped once per flush as well, right before
+ * its observers are notified. Property writes go through init, so keeping them off every
+ * single write matters as much as coalescing the notifications.
+ */
+final class ChangeNotifier {
+    private static final String TAG = "LineageChangeNotifier";
+    private static final boolean LOCAL_LOGV = false;
+
+    // Changes arriving within this window after the first one go out together
+    private static final long COALESCE_WINDOW_MS = 50;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+    // Guarded by mLock. Changes waiting for the window to close.
+    private Changes mPending = new Changes();
+
+    // The batch scope opened by the current thread, if any
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    private static class Changes {
+        // Uris to notify, by the user to notify
+        final SparseArray<ArraySet<Uri>> uris = new SparseArray<ArraySet<Uri>>();
+        // Version properties of the tables that changed
+        final ArraySet<String> versionProperties = new ArraySet<String>();
+
+        boolean isEmpty() {
+            return uris.size() == 0 && versionProperties.isEmpty();
+        }
+    }
+
+    private static final class Batch extends Changes {
+        int depth;
+    }
+
+    private final Runnable mSendRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Changes pending;
+            synchronized (mLock) {
+                pending = mPending;
+                mPending = new Changes();
+            }
+            send(pending);
+        }
+    };
+
+    ChangeNotifier(ContentResolver resolver, Handler handler) {
+        mResolver = resolver;
+        mHandler = handler;
+    }
+
+    /**
+     * Opens a batch scope on the calling thread. Scopes nest; every call must be paired with
+     * a call to {@link #endBatch()}, typically in a finally block.
+     */
+    public void beginBatch() {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            batch = new Batch();
+            mBatch.set(batch);
+        }
+        batch.depth++;
+    }
+
+    /**
+     * Closes a batch scope on the calling thread, sending every change made inside it once the
+     * outermost scope is closed.
+     */
+    public void endBatch() {
+        final Batch batch = mBatch.get();
+        if (batch == null) {
+            throw new IllegalStateException("endBatch() without beginBatch()");
+        }
+        if (--batch.depth == 0) {
+            mBatch.remove();
+            send(batch);
+        }
+    }
+
+    /**
+     * Queues a change notification.
+     * @param uris The uris that changed.
+     * @param userHandle The user to notify, or {@link android.os.UserHandle#USER_ALL}.
+     * @param versionProperty The version property of the table that changed, or null if it
+     *                        has none.
+     */
+    public void notifyChange(Uri[] uris, int userHandle, String versionProperty) {
+        final Batch batch = mBatch.get();
+        if (batch != null) {
+            add(batch, uris, userHandle, versionProperty);
+            return;
+        }
+        synchronized (mLock) {
+            if (mPending.isEmpty()) {
+                mHandler.postDelayed(mSendRunnable, COALESCE_WINDOW_MS);
+            }
+            add(mPending, uris, userHandle, versionProperty);
+        }
+    }
+
+    private static void add(Changes changes, Uri[] uris, int userHandle,
+            String versionProperty) {
+        ArraySet<Uri> set = changes.uris.get(userHandle);
+        if (set == null) {
+            set = new ArraySet<Uri>(uris.length);
+            changes.uris.put(userHandle, set);
+        }
+        for (Uri uri : uris) {
+            set.add(uri);
+        }
+        if (versionProperty != null) {
+            changes.versionProperties.add(versionProperty);
+        }
+    }
+
+    private void send(Changes changes) {
+        // Bumped first, so observers reading a version when notified see the new one
+        for (int i = 0; i < changes.versionProperties.size(); i++) {
+            final String property = changes.versionProperties.valueAt(i);
+            final long version = SystemProperties.getLong(property, 0) + 1;
+            if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
+            SystemProperties.set(property, Long.toString(version));
+        }
+
+        final SparseArray<ArraySet<Uri>> byUser = changes.uris;
+        final long oldId = Binder.clearCallingIdentity();
+        try {
+            for (int i = 0; i < byUser.size(); i++) {
+                final ArraySet<Uri> uris = byUser.valueAt(i);
+                mResolver.notifyChange(uris.toArray(new Uri[uris.size()]), null,
+                        ContentResolver.NOTIFY_SYNC_TO_NETWORK, byUser.keyAt(i));
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "notified " + uris.size() + " uri(s) for " + byUser.keyAt(i));
+                }
+            }
+        } finally {
+            Binder.restoreCallingIdentity(oldId);
+        }
+    }
+}
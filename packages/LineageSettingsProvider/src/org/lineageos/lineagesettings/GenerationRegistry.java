@@ -0,0 +1,336 @@
+/**
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings;
+
+import android.os.Bundle;
+import android.os.SystemProperties;
+import android.util.Log;
+import android.util.MemoryIntArray;
+
+import lineageos.providers.LineageSettings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Publishes generation counters for Lineage settings through a shared memory
+ * {@link MemoryIntArray}, so clients can validate their caches with a single read instead of
+ * polling a system property per table.
+ *
+ * Every (user, table, name) tuple a client asks about gets its own slot, bumped only when that
+ * key changes. Every (user, table) also owns a table slot that is bumped on any change to the
+ * table. Once all slots are in use, new keys share their table slot, which degrades to per-table
+ * invalidation rather than failing.
+ *
+ * If the array ever fails, it is replaced and {@link LineageSettings#SYS_PROP_GENERATION_EPOCH}
+ * is bumped. Clients still holding the old array see the epoch change and drop their caches,
+ * instead of trusting slots that are no longer bumped.
+ */
+final class GenerationRegistry {
+    private static final String TAG = "LineageGenerationRegistry";
+    private static final boolean LOCAL_LOGV = false;
+
+    private final Object mLock = new Object();
+
+    // Key is "userId/table/name"; table slots use an empty name.
+    private final HashMap<String, Integer> mKeyToIndex = new HashMap<String, Integer>();
+    private final ArrayList<Integer> mFreeIndices = new ArrayList<Integer>();
+    private int mNextIndex;
+
+    private MemoryIntArray mBackingStore;
+    // The epoch published for mBackingStore
+    private long mEpoch;
+
+    /**
+     * Bumps the generation of a single key, and of the table it lives in.
+     * @param userId The user owning the table.
+     * @param tableName The table the key belongs to.
+     * @param name The name of the key that changed.
+     */
+    public void incrementGeneration(int userId, String tableName, String name) {
+        synchronized (mLock) {
+            final MemoryIntArray backingStore = getBackingStoreLocked();
+            if (backingStore == null) {
+                return;
+            }
+            try {
+                final Integer keyIndex = mKeyToIndex.get(makeKey(userId, tableName, name));
+                if (keyIndex != null) {
+                    incrementLocked(backingStore, keyIndex);
+                }
+                final Integer tableIndex = mKeyToIndex.get(makeKey(userId, tableName, ""));
+                if (tableIndex != null && !tableIndex.equals(keyIndex)) {
+                    incrementLocked(backingStore, tableIndex);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error updating generation for " + tableName + "/" + name, e);
+                destroyBackingStoreLocked();
+            }
+        }
+    }
+
+    /**
+     * Bumps the generation of every tracked key in a table. Used when a change cannot be
+     * attributed to individual keys.
+     * @param userId The user owning the table.
+     * @param tableName The table that changed.
+     */
+    public void incrementGenerationForTable(int userId, String tableName) {
+        synchronized (mLock) {
+            final MemoryIntArray backingStore = getBackingStoreLocked();
+            if (backingStore == null) {
+                return;
+            }
+            final String prefix = makeKey(userId, tableName, "");
+            try {
+                for (Map.Entry<String, Integer> entry : mKeyToIndex.entrySet()) {
+                    if (entry.getKey().startsWith(prefix)) {
+                        incrementLocked(backingStore, entry.getValue());
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error updating generations for " + tableName, e);
+                destroyBackingStoreLocked();
+            }
+        }
+    }
+
+    /**
+     * Adds the generation slot of a key to a call() response bundle.
+     * @param bundle The response to add to.
+     * @param userId The user owning the table.
+     * @param tableName The table the key belongs to.
+     * @param name The name of the key, or null for the table slot.
+     * @param includeBackingStore Whether to also parcel the shared memory itself, which clients
+     *     only need once.
+     */
+    public void addGenerationData(Bundle bundle, int userId, String tableName, String name,
+            boolean includeBackingStore) {
+        synchronized (mLock) {
+            final MemoryIntArray backingStore = getBackingStoreLocked();
+            if (backingStore == null) {
+                return;
+            }
+            try {
+                final int index = getKeyIndexLocked(backingStore,
+                        makeKey(userId, tableName, name == null ? "" : name),
+                        makeKey(userId, tableName, ""));
+                if (index < 0) {
+                    return;
+                }
+                if (includeBackingStore) {
+                    putBackingStoreLocked(bundle, backingStore);
+                }
+                bundle.putInt(LineageSettings.CALL_METHOD_GENERATION_INDEX_KEY, index);
+                bundle.putInt(LineageSettings.CALL_METHOD_GENERATION_KEY,
+                        backingStore.get(index));
+            } catch (IOException e) {
+                Log.e(TAG, "Error adding generation data", e);
+                destroyBackingStoreLocked();
+            }
+        }
+    }
+
+    /**
+     * Adds the generation slots of several keys to a call() response bundle, as parallel
+     * arrays. Must be called before the values are read.
+     * @param bundle The response to add to.
+     * @param userId The user owning the table.
+     * @param tableName The table the keys belong to.
+     * @param names The names of the keys.
+     * @param includeBackingStore Whether to also parcel the shared memory itself, which clients
+     *     only need once.
+     */
+    public void addGenerationDataForKeys(Bundle bundle, int userId, String tableName,
+            String[] names, boolean includeBackingStore) {
+        synchronized (mLock) {
+            final MemoryIntArray backingStore = getBackingStoreLocked();
+            if (backingStore == null) {
+                return;
+            }
+            try {
+                if (addKeysLocked(bundle, backingStore, userId, tableName, names)
+                        && includeBackingStore) {
+                    putBackingStoreLocked(bundle, backingStore);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error adding generation data", e);
+                destroyBackingStoreLocked();
+            }
+        }
+    }
+
+    /**
+     * Adds the generation slots of several keys that were just listed to a call() response
+     * bundle, as parallel arrays. Nothing is added if the table changed since its generation
+     * was sampled, because a value read in between might then be paired with a newer
+     * generation.
+     * @param bundle The response to add to.
+     * @param userId The user owning the table.
+     * @param tableName The table the keys belong to.
+     * @param names The names of the keys.
+     * @param tableGeneration The generation of the table sampled before the values were read.
+     */
+    public void addGenerationDataForListedKeys(Bundle bundle, int userId, String tableName,
+            String[] names, int tableGeneration) {
+        synchronized (mLock) {
+            final MemoryIntArray backingStore = getBackingStoreLocked();
+            if (backingStore == null) {
+                return;
+            }
+            final String tableKey = makeKey(userId, tableName, "");
+            try {
+                final Integer tableIndex = mKeyToIndex.get(tableKey);
+                if (tableIndex == null || backingStore.get(tableIndex) != tableGeneration) {
+                    if (LOCAL_LOGV) Log.v(TAG, tableKey + " changed while being listed");
+                    return;
+                }
+                addKeysLocked(bundle, backingStore, userId, tableName, names);
+            } catch (IOException e) {
+                Log.e(TAG, "Error adding generation data", e);
+                destroyBackingStoreLocked();
+            }
+        }
+    }
+
+    private boolean addKeysLocked(Bundle bundle, MemoryIntArray backingStore, int userId,
+            String tableName, String[] names) throws IOException {
+        final String tableKey = makeKey(userId, tableName, "");
+        final int[] indices = new int[names.length];
+        final int[] generations = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            indices[i] = getKeyIndexLocked(backingStore,
+                    makeKey(userId, tableName, names[i]), tableKey);
+            if (indices[i] < 0) {
+                return false;
+            }
+            generations[i] = backingStore.get(indices[i]);
+        }
+        bundle.putIntArray(LineageSettings.CALL_METHOD_LIST_GENERATION_INDICES_KEY, indices);
+        bundle.putIntArray(LineageSettings.CALL_METHOD_LIST_GENERATIONS_KEY, generations);
+        return true;
+    }
+
+    /**
+     * Releases every slot owned by a removed user. The slots are bumped when they are handed
+     * out again, so stale client entries pointing at them can never match.
+     * @param userId The id of the removed user.
+     */
+    public void onUserRemoved(int userId) {
+        synchronized (mLock) {
+            final String prefix = userId + "/";
+            final Iterator<Map.Entry<String, Integer>> it = mKeyToIndex.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<String, Integer> entry = it.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    // Keys that ran out of slots share their table slot, free it only once
+                    if (!mFreeIndices.contains(entry.getValue())) {
+                        mFreeIndices.add(entry.getValue());
+                    }
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void putBackingStoreLocked(Bundle bundle, MemoryIntArray backingStore) {
+        bundle.putParcelable(LineageSettings.CALL_METHOD_GENERATION_ARRAY_KEY, backingStore);
+        bundle.putLong(LineageSettings.CALL_METHOD_GENERATION_EPOCH_KEY, mEpoch);
+    }
+
+    private static String makeKey(int userId, String tableName, String name) {
+        return userId + "/" + tableName + "/" + name;
+    }
+
+    private int getKeyIndexLocked(MemoryIntArray backingStore, String key, String tableKey)
+            throws IOException {
+        Integer index = mKeyToIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        index = allocateIndexLocked(backingStore);
+        if (index < 0) {
+            if (key.equals(tableKey)) {
+                return -1;
+            }
+            // Out of slots, share the table slot
+            final int tableIndex = getKeyIndexLocked(backingStore, tableKey, tableKey);
+            if (tableIndex >= 0) {
+                mKeyToIndex.put(key, tableIndex);
+            }
+            return tableIndex;
+        }
+        mKeyToIndex.put(key, index);
+        if (LOCAL_LOGV) Log.v(TAG, "Allocated slot " + index + " for " + key);
+        return index;
+    }
+
+    private int allocateIndexLocked(MemoryIntArray backingStore) throws IOException {
+        if (!mFreeIndices.isEmpty()) {
+            final int index = mFreeIndices.remove(mFreeIndices.size() - 1);
+            incrementLocked(backingStore, index);
+            return index;
+        }
+        if (mNextIndex < backingStore.size()) {
+            return mNextIndex++;
+        }
+        return -1;
+    }
+
+    private static void incrementLocked(MemoryIntArray backingStore, int index)
+            throws IOException {
+        backingStore.set(index, backingStore.get(index) + 1);
+    }
+
+    private MemoryIntArray getBackingStoreLocked() {
+        if (mBackingStore == null) {
+            try {
+                mBackingStore = new MemoryIntArray(MemoryIntArray.getMaxSize());
+            } catch (IOException e) {
+                Log.e(TAG, "Error creating generation tracker", e);
+                return null;
+            }
+            // Published before any client can get the array, so arrays handed out by an
+            // earlier instance or before a failure are told apart
+            mEpoch = SystemProperties.getLong(LineageSettings.SYS_PROP_GENERATION_EPOCH, 0) + 1;
+            SystemProperties.set(LineageSettings.SYS_PROP_GENERATION_EPOCH,
+                    Long.toString(mEpoch));
+        }
+        return mBackingStore;
+    }
+
+    private void destroyBackingStoreLocked() {
+        if (mBackingStore != null) {
+            try {
+                mBackingStore.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot close generation memory array", e);
+            }
+            mBackingStore = null;
+            // Clients holding it fall back to reading through the provider
+            SystemProperties.set(LineageSettings.SYS_PROP_GENERATION_EPOCH,
+                    Long.toString(mEpoch + 1));
+        }
+        // Slots are meaningless without their backing store
+        mKeyToIndex.clear();
+        mFreeIndices.clear();
+        mNextIndex = 0;
+    }
+}
@@ -18,19 +18,15 @@
 package org.lineageos.lineagesettings;
 
 import android.content.Context;
-import android.content.pm.PackageManager;
-import android.content.res.AssetManager;
-import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
-import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.text.TextUtils;
-import android.util.DisplayMetrics;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import lineageos.providers.LineageSettings;
@@ -48,33 +44,123 @@ public class LineageDatabaseHelper extends SQLiteOpenHelper{
     private static final boolean LOCAL_LOGV = false;
 
     private static final String DATABASE_NAME = "lineagesettings.db";
-    private static final int DATABASE_VERSION = 14;
+    // Package visible so snapshots can tell which schema they were written against
+    static final int DATABASE_VERSION = 15;
 
     private static final String DATABASE_NAME_OLD = "cmsettings.db";
 
+    private static final String SNAPSHOT_NAME_FORMAT = "lineagesettings_%s.snapshot";
+
     public static class LineageTableNames {
         public static final String TABLE_SYSTEM = "system";
         public static final String TABLE_SECURE = "secure";
         public static final String TABLE_GLOBAL = "global";
     }
 
+    // Keyed on name alone, so every write maintains a single b-tree
     private static final String CREATE_TABLE_SQL_FORMAT = "CREATE TABLE %s (" +
-            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
-            "name TEXT UNIQUE ON CONFLICT REPLACE," +
+            "name TEXT PRIMARY KEY ON CONFLICT REPLACE," +
             "value TEXT" +
-            ");)";
-
-    private static final String CREATE_INDEX_SQL_FORMAT = "CREATE INDEX %sIndex%d ON %s (name);";
+            ") WITHOUT ROWID;";
 
     private static final String DROP_TABLE_SQL_FORMAT = "DROP TABLE IF EXISTS %s;";
 
     private static final String DROP_INDEX_SQL_FORMAT = "DROP INDEX IF EXISTS %sIndex%d;";
 
-    private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
+    // How the resource of a default setting is turned into its value
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_BOOLEAN = 1;
+    private static final int TYPE_INTEGER = 2;
+
+    /**
+     * A setting loaded from a resource when its table is created.
+     */
+    private static final class DefaultSetting {
+        final String table;
+        final String name;
+        final int type;
+        final int resId;
+        // A boolean resource that has to be true for the setting to be loaded, or 0
+        final int conditionResId;
+
+        DefaultSetting(String table, String name, int type, int resId) {
+            this(table, name, type, resId, 0);
+        }
+
+        DefaultSetting(String table, String name, int type, int resId, int conditionResId) {
+            this.table = table;
+            this.name = name;
+            this.type = type;
+            this.resId = resId;
+            this.conditionResId = conditionResId;
+        }
+    }
+
+    private static final DefaultSetting[] DEFAULT_SETTINGS = new DefaultSetting[] {
+        // System
+        new DefaultSetting(LineageTableNames.TABLE_SYSTEM,
+                LineageSettings.System.FORCE_SHOW_NAVBAR,
+                TYPE_INTEGER, R.integer.def_force_show_navbar),
+        new DefaultSetting(LineageTableNames.TABLE_SYSTEM,
+                LineageSettings.System.STATUS_BAR_QUICK_QS_PULLDOWN,
+                TYPE_INTEGER, R.integer.def_qs_quick_pulldown),
+        new DefaultSetting(LineageTableNames.TABLE_SYSTEM,
+                LineageSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL,
+                TYPE_INTEGER, R.integer.def_battery_brightness_level),
+        new DefaultSetting(LineageTableNames.TABLE_SYSTEM,
+                LineageSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                TYPE_INTEGER, R.integer.def_battery_brightness_level_zen),
+        new DefaultSetting(LineageTableNames.TABLE_SYSTEM,
+                LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
+                TYPE_INTEGER, R.integer.def_notification_brightness_level),
+        new DefaultSetting(LineageTableNames.TABLE_SYSTEM,
+                LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                TYPE_INTEGER, R.integer.def_notification_brightness_level_zen),
+        new DefaultSetting(LineageTableNames.TABLE_SYSTEM,
+                LineageSettings.System.SYSTEM_PROFILES_ENABLED,
+                TYPE_BOOLEAN, R.bool.def_profiles_enabled),
+        new DefaultSetting(LineageTableNames.TABLE_SYSTEM,
+                LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
+                TYPE_BOOLEAN, R.bool.def_notification_pulse_custom_enable),
+        new DefaultSetting(LineageTableNames.TABLE_SYSTEM,
+                LineageSettings.System.SWAP_VOLUME_KEYS_ON_ROTATION,
+                TYPE_BOOLEAN, R.bool.def_swap_volume_keys_on_rotation),
+        new DefaultSetting(LineageTableNames.TABLE_SYSTEM,
+                LineageSettings.System.STATUS_BAR_BATTERY_STYLE,
+                TYPE_INTEGER, R.integer.def_battery_style),
+        new DefaultSetting(LineageTableNames.TABLE_SYSTEM,
+                LineageSettings.System.STATUS_BAR_CLOCK,
+                TYPE_INTEGER, R.integer.def_clock_position),
+        new DefaultSetting(LineageTableNames.TABLE_SYSTEM,
+                LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
+                TYPE_STRING, R.string.def_notification_pulse_custom_value,
+                R.bool.def_notification_pulse_custom_enable),
+
+        // Secure
+        new DefaultSetting(LineageTableNames.TABLE_SECURE,
+                LineageSettings.Secure.ADVANCED_MODE,
+                TYPE_BOOLEAN, R.bool.def_advanced_mode),
+        new DefaultSetting(LineageTableNames.TABLE_SECURE,
+                LineageSettings.Secure.STATS_COLLECTION,
+                TYPE_BOOLEAN, R.bool.def_stats_collection),
+        new DefaultSetting(LineageTableNames.TABLE_SECURE,
+                LineageSettings.Secure.LOCKSCREEN_VISUALIZER_ENABLED,
+                TYPE_BOOLEAN, R.bool.def_lockscreen_visualizer),
+        new DefaultSetting(LineageTableNames.TABLE_SECURE,
+                LineageSettings.Secure.VOLUME_PANEL_ON_LEFT,
+                TYPE_BOOLEAN, R.bool.def_volume_panel_on_left),
+        new DefaultSetting(LineageTableNames.TABLE_SECURE,
+                LineageSettings.Secure.PROTECTED_COMPONENT_MANAGERS,
+                TYPE_STRING, R.string.def_protected_component_managers),
+
+        // Global
+        new DefaultSetting(LineageTableNames.TABLE_GLOBAL,
+                LineageSettings.Global.WEATHER_TEMPERATURE_UNIT,
+                TYPE_INTEGER, R.integer.def_temperature_unit),
+    };
 
     private Context mContext;
     private int mUserHandle;
-    private String mPublicSrcDir;
 
     /**
      * Gets the appropriate database path for a specific user
@@ -131,6 +217,24 @@ public class LineageDatabaseHelper extends SQLiteOpenHelper{
                         + newFile);
             }
         }
+        // Snapshots of the replaced database no longer match
+        for (String tableName : new String[] { LineageTableNames.TABLE_SYSTEM,
+                LineageTableNames.TABLE_SECURE, LineageTableNames.TABLE_GLOBAL }) {
+            FileUtils.delete(snapshotNameForUser(context, userId, tableName));
+        }
+    }
+
+    private static String snapshotNameForUser(Context context, int userId, String tableName) {
+        return dbNameForUser(context, userId, String.format(SNAPSHOT_NAME_FORMAT, tableName));
+    }
+
+    /**
+     * Gets the file holding the snapshot of one of this user's tables.
+     * @param tableName The name of the table.
+     * @return The snapshot file, which may not exist.
+     */
+    File getSnapshotFile(String tableName) {
+        return new File(snapshotNameForUser(mContext, mUserHandle, tableName));
     }
 
     /**
@@ -143,13 +247,9 @@ public class LineageDatabaseHelper extends SQLiteOpenHelper{
         mContext = context;
         mUserHandle = userId;
 
-        try {
-            String packageName = mContext.getPackageName();
-            mPublicSrcDir = mContext.getPackageManager().getApplicationInfo(packageName, 0)
-                    .publicSourceDir;
-        } catch (PackageManager.NameNotFoundException e) {
-            e.printStackTrace();
-        }
+        // Readers don't block the writer, and a commit appends to the log instead of
+        // rewriting pages through a rollback journal
+        setWriteAheadLoggingEnabled(true);
     }
 
     /**
@@ -180,18 +280,34 @@ public class LineageDatabaseHelper extends SQLiteOpenHelper{
     }
 
     /**
-     * Creates a table and index for the specified database and table name
-     * @param db The {@link SQLiteDatabase} to create the table and index in.
+     * Creates a table for the specified database and table name
+     * @param db The {@link SQLiteDatabase} to create the table in.
      * @param tableName The name of the database table to create.
      */
     private void createDbTable(SQLiteDatabase db, String tableName) {
-        if (LOCAL_LOGV) Log.d(TAG, "Creating table and index for: " + tableName);
+        if (LOCAL_LOGV) Log.d(TAG, "Creating table for: " + tableName);
 
         String createTableSql = String.format(CREATE_TABLE_SQL_FORMAT, tableName);
         db.execSQL(createTableSql);
+    }
 
-        String createIndexSql = String.format(CREATE_INDEX_SQL_FORMAT, tableName, 1, tableName);
-        db.execSQL(createIndexSql);
+    /**
+     * Rebuilds a table created before version 15, with its _id column and separate name index,
+     * in the current layout, keeping its rows.
+     * @param db The {@link SQLiteDatabase} holding the table.
+     * @param tableName The name of the database table to rebuild.
+     */
+    private void rebuildDbTable(SQLiteDatabase db, String tableName) {
+        if (LOCAL_LOGV) Log.d(TAG, "Rebuilding table: " + tableName);
+
+        final String oldTableName = tableName + "_old";
+        db.execSQL("ALTER TABLE " + tableName + " RENAME TO " + oldTableName + ";");
+        createDbTable(db, tableName);
+        // Names are unique already; rows without one can't be looked up and are dropped
+        db.execSQL("INSERT INTO " + tableName + " (name,value) SELECT name,value FROM "
+                + oldTableName + " WHERE name IS NOT NULL;");
+        // Takes the old name index along with it
+        db.execSQL(String.format(DROP_TABLE_SQL_FORMAT, oldTableName));
     }
 
     @Override
@@ -200,13 +316,7 @@ public class LineageDatabaseHelper extends SQLiteOpenHelper{
         int upgradeVersion = oldVersion;
 
         if (upgradeVersion < 2) {
-            db.beginTransaction();
-            try {
-                loadSettings(db);
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
-            }
+            loadSettings(db);
             upgradeVersion = 2;
         }
 
@@ -459,6 +569,22 @@ public class LineageDatabaseHelper extends SQLiteOpenHelper{
             }
             upgradeVersion = 14;
         }
+
+        if (upgradeVersion < 15) {
+            // Switch to tables keyed on name without a rowid, dropping the duplicate index
+            db.beginTransaction();
+            try {
+                rebuildDbTable(db, LineageTableNames.TABLE_SYSTEM);
+                rebuildDbTable(db, LineageTableNames.TABLE_SECURE);
+                if (mUserHandle == UserHandle.USER_OWNER) {
+                    rebuildDbTable(db, LineageTableNames.TABLE_GLOBAL);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            upgradeVersion = 15;
+        }
         // *** Remember to update DATABASE_VERSION above!
     }
 
@@ -512,143 +638,60 @@ public class LineageDatabaseHelper extends SQLiteOpenHelper{
     }
 
     /**
-     * Loads default values for specific settings into the database.
+     * Loads default values for specific settings into the database, in a single transaction.
      * @param db The {@link SQLiteDatabase} to insert into.
      */
     private void loadSettings(SQLiteDatabase db) {
-        loadSystemSettings(db);
-        loadSecureSettings(db);
-        // The global table only exists for the 'owner' user
-        if (mUserHandle == UserHandle.USER_OWNER) {
-            loadGlobalSettings(db);
-        }
-    }
+        final Resources res = mContext.getResources();
+        final ArrayMap<String, SQLiteStatement> statements =
+                new ArrayMap<String, SQLiteStatement>(3);
 
-    private void loadSecureSettings(SQLiteDatabase db) {
-        SQLiteStatement stmt = null;
-        try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO secure(name,value)"
-                    + " VALUES(?,?);");
-            // Secure
-            loadBooleanSetting(stmt, LineageSettings.Secure.ADVANCED_MODE,
-                    R.bool.def_advanced_mode);
-
-            loadBooleanSetting(stmt, LineageSettings.Secure.STATS_COLLECTION,
-                    R.bool.def_stats_collection);
-
-            loadBooleanSetting(stmt, LineageSettings.Secure.LOCKSCREEN_VISUALIZER_ENABLED,
-                    R.bool.def_lockscreen_visualizer);
-
-            loadBooleanSetting(stmt, LineageSettings.Secure.VOLUME_PANEL_ON_LEFT,
-                    R.bool.def_volume_panel_on_left);
-
-            loadStringSetting(stmt,
-                    LineageSettings.Secure.PROTECTED_COMPONENT_MANAGERS,
-                    R.string.def_protected_component_managers);
-        } finally {
-            if (stmt != null) stmt.close();
-        }
-    }
-
-    private void loadSystemSettings(SQLiteDatabase db) {
-        SQLiteStatement stmt = null;
+        db.beginTransaction();
         try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO system(name,value)"
-                    + " VALUES(?,?);");
-            // System
-            loadIntegerSetting(stmt, LineageSettings.System.FORCE_SHOW_NAVBAR,
-                    R.integer.def_force_show_navbar);
-
-            loadIntegerSetting(stmt, LineageSettings.System.STATUS_BAR_QUICK_QS_PULLDOWN,
-                    R.integer.def_qs_quick_pulldown);
-
-            loadIntegerSetting(stmt, LineageSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL,
-                    R.integer.def_battery_brightness_level);
-
-            loadIntegerSetting(stmt, LineageSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN,
-                    R.integer.def_battery_brightness_level_zen);
-
-            loadIntegerSetting(stmt, LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
-                    R.integer.def_notification_brightness_level);
-
-            loadIntegerSetting(stmt, LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
-                    R.integer.def_notification_brightness_level_zen);
-
-            loadBooleanSetting(stmt, LineageSettings.System.SYSTEM_PROFILES_ENABLED,
-                    R.bool.def_profiles_enabled);
-
-            loadBooleanSetting(stmt, LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
-                    R.bool.def_notification_pulse_custom_enable);
-
-            loadBooleanSetting(stmt, LineageSettings.System.SWAP_VOLUME_KEYS_ON_ROTATION,
-                    R.bool.def_swap_volume_keys_on_rotation);
-
-            loadIntegerSetting(stmt, LineageSettings.System.STATUS_BAR_BATTERY_STYLE,
-                    R.integer.def_battery_style);
-
-            loadIntegerSetting(stmt, LineageSettings.System.STATUS_BAR_CLOCK,
-                    R.integer.def_clock_position);
+            for (DefaultSetting setting : DEFAULT_SETTINGS) {
+                // The global table only exists for the 'owner' user
+                if (LineageTableNames.TABLE_GLOBAL.equals(setting.table)
+                        && mUserHandle != UserHandle.USER_OWNER) {
+                    continue;
+                }
+                if (setting.conditionResId != 0 && !res.getBoolean(setting.conditionResId)) {
+                    continue;
+                }
 
-            if (mContext.getResources().getBoolean(R.bool.def_notification_pulse_custom_enable)) {
-                loadStringSetting(stmt, LineageSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
-                        R.string.def_notification_pulse_custom_value);
+                SQLiteStatement stmt = statements.get(setting.table);
+                if (stmt == null) {
+                    stmt = db.compileStatement("INSERT OR IGNORE INTO " + setting.table
+                            + "(name,value) VALUES(?,?);");
+                    statements.put(setting.table, stmt);
+                }
+                loadSetting(stmt, setting.name, getDefaultValue(res, setting.type, setting.resId));
             }
+            db.setTransactionSuccessful();
         } finally {
-            if (stmt != null) stmt.close();
-        }
-    }
-
-    private void loadGlobalSettings(SQLiteDatabase db) {
-        SQLiteStatement stmt = null;
-        try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO global(name,value)"
-                    + " VALUES(?,?);");
-            // Global
-            loadIntegerSetting(stmt, LineageSettings.Global.WEATHER_TEMPERATURE_UNIT,
-                    R.integer.def_temperature_unit);
-        } finally {
-            if (stmt != null) stmt.close();
+            for (int i = 0; i < statements.size(); i++) {
+                statements.valueAt(i).close();
+            }
+            db.endTransaction();
         }
     }
 
     /**
-     * Loads a region locked string setting into a database table. If the resource for the specific
-     * mcc is not found, the setting is loaded from the default resources.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
-     * @param name The name of the value to insert into the table.
-     * @param resId The name of the string resource.
+     * Resolves the default value of a setting.
+     * @param res The resources of the provider.
+     * @param type The type of the resource, one of the TYPE_ constants.
+     * @param resId The id of the resource.
+     * @return The value to store.
      */
-    private void loadRegionLockedStringSetting(SQLiteStatement stmt, String name, int resId) {
-        String mcc = SystemProperties.get(MCC_PROP_NAME);
-        Resources customResources = null;
-
-        if (!TextUtils.isEmpty(mcc)) {
-            Configuration tempConfiguration = new Configuration();
-            boolean useTempConfig = false;
-
-            try {
-                tempConfiguration.mcc = Integer.parseInt(mcc);
-                useTempConfig = true;
-            } catch (NumberFormatException e) {
-                // not able to parse mcc, catch exception and exit out of this logic
-                e.printStackTrace();
-            }
-
-            if (useTempConfig) {
-                AssetManager assetManager = new AssetManager();
-
-                if (!TextUtils.isEmpty(mPublicSrcDir)) {
-                    assetManager.addAssetPath(mPublicSrcDir);
-                }
-
-                customResources = new Resources(assetManager, new DisplayMetrics(),
-                        tempConfiguration);
-            }
+    private String getDefaultValue(Resources res, int type, int resId) {
+        switch (type) {
+            case TYPE_BOOLEAN:
+                return res.getBoolean(resId) ? "1" : "0";
+            case TYPE_INTEGER:
+                return Integer.toString(res.getInteger(resId));
+            case TYPE_STRING:
+            default:
+                return res.getString(resId);
         }
-
-        String value = customResources == null ? mContext.getResources().getString(resId)
-                : customResources.getString(resId);
-        loadSetting(stmt, name, value);
     }
 
     /**
@@ -659,19 +702,7 @@ public class LineageDatabaseHelper extends SQLiteOpenHelper{
      * @param resId The name of the string resource.
      */
     private void loadStringSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name, mContext.getResources().getString(resId));
-    }
-
-    /**
-     * Loads a boolean resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
-     * @param name The name of the value to insert into the table.
-     * @param resId The name of the boolean resource.
-     */
-    private void loadBooleanSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name,
-                mContext.getResources().getBoolean(resId) ? "1" : "0");
+        loadSetting(stmt, name, getDefaultValue(mContext.getResources(), TYPE_STRING, resId));
     }
 
     /**
@@ -682,8 +713,7 @@ public class LineageDatabaseHelper extends SQLiteOpenHelper{
      * @param resId The name of the integer resource.
      */
     private void loadIntegerSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name,
-                Integer.toString(mContext.getResources().getInteger(resId)));
+        loadSetting(stmt, name, getDefaultValue(mContext.getResources(), TYPE_INTEGER, resId));
     }
 
     private void loadSetting(SQLiteStatement stmt, String key, Object value) {
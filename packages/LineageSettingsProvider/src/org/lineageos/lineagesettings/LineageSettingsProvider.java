@@ -19,16 +19,21 @@ package org.lineageos.lineagesettings;
 
 import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
@@ -36,18 +41,36 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
 
 import lineageos.providers.LineageSettings;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 /**
@@ -61,6 +84,12 @@ public class LineageSettingsProvider extends ContentProvider {
 
     private static final boolean USER_CHECK_THROWS = true;
 
+    // Default access metrics sampling, 1 in that many accesses is recorded, 0 for none
+    private static final String METRICS_SAMPLING_PROP = "persist.lineage.settings_metrics";
+
+    // Users migrated at once, the rest queue up
+    private static final int MAX_MIGRATION_THREADS = 4;
+
     public static final String PREF_HAS_MIGRATED_LINEAGE_SETTINGS =
             "migrated_settings_to_lineage_17_0";
 
@@ -69,6 +98,24 @@ public class LineageSettingsProvider extends ContentProvider {
     // Each defined user has their own settings
     protected final SparseArray<LineageDatabaseHelper> mDbHelpers = new SparseArray<LineageDatabaseHelper>();
 
+    // Shared memory generation counters backing the client-side caches
+    private final GenerationRegistry mGenerationRegistry = new GenerationRegistry();
+
+    // In-memory copies of each user's tables, keyed by user id and then table name
+    private final SparseArray<ArrayMap<String, SettingsStore>> mSettingsStores =
+            new SparseArray<ArrayMap<String, SettingsStore>>();
+
+    // Writes the settings stores back to the databases
+    private Handler mWriteHandler;
+    private ChangeNotifier mChangeNotifier;
+
+    // Sampled access counters, see dump() and CALL_METHOD_GET_METRICS
+    private final AccessMetrics mMetrics =
+            new AccessMetrics(SystemProperties.getInt(METRICS_SAMPLING_PROP, 0));
+
+    // Keeps concurrent migration requests from migrating everything twice
+    private final Object mMigrationLock = new Object();
+
     private static final int SYSTEM = 1;
     private static final int SECURE = 2;
     private static final int GLOBAL = 3;
@@ -112,7 +159,21 @@ public class LineageSettingsProvider extends ContentProvider {
 
         mUserManager = UserManager.get(getContext());
 
-        establishDbTracking(UserHandle.USER_OWNER);
+        HandlerThread writeThread = new HandlerThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        writeThread.start();
+        mWriteHandler = new Handler(writeThread.getLooper());
+        mChangeNotifier = new ChangeNotifier(getContext().getContentResolver(), mWriteHandler);
+
+        // Until the owner's database is open, and upgraded if needed, reads are served from the
+        // snapshots of its tables, so boot doesn't wait on SQLite
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                establishDbTracking(UserHandle.USER_OWNER);
+                loadSettingsStores(UserHandle.USER_OWNER);
+            }
+        });
 
         mUriBuilder = new Uri.Builder();
         mUriBuilder.scheme(ContentResolver.SCHEME_CONTENT);
@@ -122,6 +183,7 @@ public class LineageSettingsProvider extends ContentProvider {
 
         IntentFilter userFilter = new IntentFilter();
         userFilter.addAction(Intent.ACTION_USER_REMOVED);
+        userFilter.addAction(Intent.ACTION_SHUTDOWN);
         getContext().registerReceiver(new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -133,6 +195,8 @@ public class LineageSettingsProvider extends ContentProvider {
 
                 if (action.equals(Intent.ACTION_USER_REMOVED)) {
                     onUserRemoved(userId);
+                } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
+                    flushSettingsStores(UserHandle.USER_ALL);
                 }
             }
         }, userFilter);
@@ -140,30 +204,84 @@ public class LineageSettingsProvider extends ContentProvider {
         return true;
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        for (int i = 0; args != null && i < args.length; i++) {
+            if ("--metrics-sampling".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    mMetrics.setSampling(Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    pw.println("Invalid sampling: " + args[i]);
+                }
+            } else if ("--metrics-reset".equals(args[i])) {
+                mMetrics.reset();
+            }
+        }
+        mMetrics.dump(pw);
+    }
+
+    @Override
+    public void shutdown() {
+        flushSettingsStores(UserHandle.USER_ALL);
+        super.shutdown();
+    }
+
     // region Migration Methods
 
     /**
-     * Migrates Lineage settings for all existing users if this has not been run before.
+     * Migrates Lineage settings for all existing users if this has not been run before. Users
+     * are migrated in parallel, and the migration is retried on next boot if any of them fails.
      */
     private void migrateLineageSettingsForExistingUsersIfNeeded() {
-        boolean hasMigratedLineageSettings = mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_LINEAGE_SETTINGS,
-                false);
+        synchronized (mMigrationLock) {
+            boolean hasMigratedLineageSettings = mSharedPrefs.getBoolean(
+                    PREF_HAS_MIGRATED_LINEAGE_SETTINGS, false);
+
+            if (!hasMigratedLineageSettings) {
+                long startTime = SystemClock.elapsedRealtime();
+
+                // Remove any lingering old shared_prefs file
+                getContext().deleteSharedPreferences(SHARED_PREF_NAME_OLD);
+
+                final List<UserInfo> users = mUserManager.getUsers();
+                final ExecutorService executor = Executors.newFixedThreadPool(
+                        Math.max(1, Math.min(users.size(), MAX_MIGRATION_THREADS)));
+                final ArrayList<Future<?>> migrations = new ArrayList<Future<?>>(users.size());
+                for (final UserInfo user : users) {
+                    migrations.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            migrateLineageSettingsForUser(user.id);
+                        }
+                    }));
+                }
 
-        if (!hasMigratedLineageSettings) {
-            long startTime = System.currentTimeMillis();
+                boolean succeeded = true;
+                try {
+                    for (int i = 0; i < migrations.size(); i++) {
+                        try {
+                            migrations.get(i).get();
+                        } catch (ExecutionException e) {
+                            Log.e(TAG, "Unable to migrate settings for user "
+                                    + users.get(i).id, e.getCause());
+                            succeeded = false;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while migrating settings", e);
+                    succeeded = false;
+                } finally {
+                    executor.shutdown();
+                }
 
-            // Remove any lingering old shared_prefs file
-            getContext().deleteSharedPreferences(SHARED_PREF_NAME_OLD);
+                if (succeeded) {
+                    mSharedPrefs.edit().putBoolean(PREF_HAS_MIGRATED_LINEAGE_SETTINGS, true)
+                            .commit();
+                }
 
-            for (UserInfo user : mUserManager.getUsers()) {
-                migrateLineageSettingsForUser(user.id);
+                Log.i(TAG, "Migrated settings of " + users.size() + " user(s) in "
+                        + (SystemClock.elapsedRealtime() - startTime) + " ms");
             }
-
-            mSharedPrefs.edit().putBoolean(PREF_HAS_MIGRATED_LINEAGE_SETTINGS, true).commit();
-
-            // TODO: Add this as part of a boot message to the UI
-            long timeDiffMillis = System.currentTimeMillis() - startTime;
-            if (LOCAL_LOGV) Log.d(TAG, "Migration finished in " + timeDiffMillis + " milliseconds");
         }
     }
 
@@ -172,36 +290,78 @@ public class LineageSettingsProvider extends ContentProvider {
      * @param userId The id of the user to run Lineage settings migration for.
      */
     private void migrateLineageSettingsForUser(int userId) {
-        synchronized (this) {
-            if (LOCAL_LOGV) Log.d(TAG, "Lineage settings will be migrated for user id: " + userId);
+        final long startTime = SystemClock.elapsedRealtime();
+        if (LOCAL_LOGV) Log.d(TAG, "Lineage settings will be migrated for user id: " + userId);
 
+        synchronized (this) {
             // Rename database files (if needed)
-            LineageDatabaseHelper dbHelper = mDbHelpers.get(userId);
-            if (dbHelper != null) {
-                dbHelper.close();
-                mDbHelpers.delete(userId);
-            }
-            LineageDatabaseHelper.migrateDbFiles(getContext(), userId);
-            if (dbHelper != null) {
-                establishDbTracking(userId);
-                dbHelper = null;
+            final LineageDatabaseHelper dbHelper = mDbHelpers.get(userId);
+            if (dbHelper == null) {
+                LineageDatabaseHelper.migrateDbFiles(getContext(), userId);
+            } else {
+                // The stores hold on to the helper and may be in use by other threads, they
+                // are moved over to the new one with their reads and writes held off
+                final ArrayMap<String, SettingsStore> stores = mSettingsStores.get(userId);
+                replaceDatabaseLocked(userId, dbHelper, stores == null
+                        ? new ArrayList<SettingsStore>()
+                        : new ArrayList<SettingsStore>(stores.values()), 0);
             }
+        }
+
+        // The tables are migrated outside the provider monitor, so other users can be migrated
+        // and settings served meanwhile. Each table is written in a single transaction, and
+        // migrating the same values twice is harmless.
 
+        // Observers hear about the whole migration at once
+        mChangeNotifier.beginBatch();
+        try {
             // Migrate system settings
-            int rowsMigrated = migrateLineageSettingsForTable(userId,
-                    LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM, LineageSettings.System.LEGACY_SYSTEM_SETTINGS);
-            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to Lineage system table");
+            migrateLineageSettingsForTable(userId,
+                    LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM,
+                    LineageSettings.System.LEGACY_SYSTEM_SETTINGS);
 
             // Migrate secure settings
-            rowsMigrated = migrateLineageSettingsForTable(userId,
-                    LineageDatabaseHelper.LineageTableNames.TABLE_SECURE, LineageSettings.Secure.LEGACY_SECURE_SETTINGS);
-            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to Lineage secure table");
+            migrateLineageSettingsForTable(userId,
+                    LineageDatabaseHelper.LineageTableNames.TABLE_SECURE,
+                    LineageSettings.Secure.LEGACY_SECURE_SETTINGS);
 
             // Migrate global settings
-            rowsMigrated = migrateLineageSettingsForTable(userId,
-                    LineageDatabaseHelper.LineageTableNames.TABLE_GLOBAL, LineageSettings.Global.LEGACY_GLOBAL_SETTINGS);
-            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to Lineage global table");
+            migrateLineageSettingsForTable(userId,
+                    LineageDatabaseHelper.LineageTableNames.TABLE_GLOBAL,
+                    LineageSettings.Global.LEGACY_GLOBAL_SETTINGS);
+        } finally {
+            mChangeNotifier.endBatch();
+        }
+
+        Log.i(TAG, "Migrated settings of user " + userId + " in "
+                + (SystemClock.elapsedRealtime() - startTime) + " ms");
+    }
+
+    /**
+     * Renames the database files of a user that already has a helper, and reopens them. Runs
+     * within {@link SettingsStore#replaceDatabase} of every store of the user, nested.
+     * @param userId The id of the user.
+     * @param dbHelper The current helper of the user.
+     * @param stores The settings stores of the user.
+     * @param index The first store whose lock isn't held yet.
+     * @return The new helper of the user.
+     */
+    private LineageDatabaseHelper replaceDatabaseLocked(final int userId,
+            final LineageDatabaseHelper dbHelper, final List<SettingsStore> stores,
+            final int index) {
+        if (index < stores.size()) {
+            return stores.get(index).replaceDatabase(new SettingsStore.DatabaseReplacement() {
+                @Override
+                public LineageDatabaseHelper replace() {
+                    return replaceDatabaseLocked(userId, dbHelper, stores, index + 1);
+                }
+            });
         }
+        dbHelper.close();
+        mDbHelpers.delete(userId);
+        LineageDatabaseHelper.migrateDbFiles(getContext(), userId);
+        establishDbTracking(userId);
+        return mDbHelpers.get(userId);
     }
 
     /**
@@ -212,32 +372,23 @@ public class LineageSettingsProvider extends ContentProvider {
      * @return Number of rows migrated.
      */
     private int migrateLineageSettingsForTable(int userId, String tableName, String[] settings) {
-        ContentResolver contentResolver = getContext().getContentResolver();
-        ContentValues[] contentValues = new ContentValues[settings.length];
+        final long startTime = SystemClock.elapsedRealtime();
+        final ArrayMap<String, String> legacyValues = readLegacySettings(userId, tableName,
+                settings);
+        ContentValues[] contentValues = new ContentValues[legacyValues.size()];
 
         int migrateSettingsCount = 0;
-        for (String settingsKey : settings) {
-            String settingsValue = null;
-
-            if (tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM)) {
-                settingsValue = Settings.System.getStringForUser(contentResolver, settingsKey,
-                        userId);
-            }
-            else if (tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_SECURE)) {
-                settingsValue = Settings.Secure.getStringForUser(contentResolver, settingsKey,
-                        userId);
-                if (settingsValue != null && settingsKey.equals(LineageSettings.Secure.STATS_COLLECTION)
-                        && LineageSettings.Secure.getStringForUser(contentResolver, settingsKey, userId)
-                        != null) {
-                    // incorrect migration from YOG4P -> YOG7D failed to remove
-                    // Settings.Secure.STATS_COLLECTION after migration; so it may exist in both
-                    // providers; so if it exists in the new database, prefer it.
-                    continue;
-                }
-            }
-            else if (tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_GLOBAL)) {
-                settingsValue = Settings.Global.getStringForUser(contentResolver, settingsKey,
-                        userId);
+        for (int i = 0; i < legacyValues.size(); i++) {
+            final String settingsKey = legacyValues.keyAt(i);
+            final String settingsValue = legacyValues.valueAt(i);
+
+            if (tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_SECURE)
+                    && settingsKey.equals(LineageSettings.Secure.STATS_COLLECTION)
+                    && getSettingsStore(userId, tableName).getValue(settingsKey) != null) {
+                // incorrect migration from YOG4P -> YOG7D failed to remove
+                // Settings.Secure.STATS_COLLECTION after migration; so it may exist in both
+                // providers; so if it exists in the new database, prefer it.
+                continue;
             }
 
             if (LOCAL_LOGV) Log.d(TAG, "Table: " + tableName + ", Key: " + settingsKey + ", Value: "
@@ -258,15 +409,98 @@ public class LineageSettingsProvider extends ContentProvider {
         }
 
         int rowsInserted = 0;
-        if (contentValues.length > 0) {
+        if (migrateSettingsCount > 0) {
             Uri uri = mUriBuilder.build();
             uri = uri.buildUpon().appendPath(tableName).build();
             rowsInserted = bulkInsertForUser(userId, uri, contentValues);
         }
 
+        Log.i(TAG, "Migrated " + rowsInserted + " " + tableName + " setting(s) of user " + userId
+                + " in " + (SystemClock.elapsedRealtime() - startTime) + " ms");
         return rowsInserted;
     }
 
+    /**
+     * Reads the current values of legacy keys from the framework settings table of the same
+     * name, with a single query for the whole table rather than one per key. Keys the framework
+     * moved to another table are still read one by one, through the framework getters that
+     * follow the move.
+     * @param userId The id of the user to read the settings of.
+     * @param tableName The name of the table to read.
+     * @param settings The keys to read.
+     * @return The keys that are set, mapped to their values.
+     */
+    private ArrayMap<String, String> readLegacySettings(int userId, String tableName,
+            String[] settings) {
+        final Uri tableUri;
+        final ArraySet<String> moved = new ArraySet<String>();
+        if (tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM)) {
+            tableUri = Settings.System.CONTENT_URI;
+            Settings.System.getMovedToSecureSettings(moved);
+            Settings.System.getMovedToGlobalSettings(moved);
+        } else if (tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_SECURE)) {
+            tableUri = Settings.Secure.CONTENT_URI;
+            Settings.Secure.getMovedToGlobalSettings(moved);
+        } else {
+            tableUri = Settings.Global.CONTENT_URI;
+            Settings.Global.getMovedToSecureSettings(moved);
+        }
+
+        final ArraySet<String> wanted = new ArraySet<String>(settings.length);
+        final ArrayList<String> movedWanted = new ArrayList<String>();
+        for (String key : settings) {
+            if (moved.contains(key)) {
+                movedWanted.add(key);
+            } else {
+                wanted.add(key);
+            }
+        }
+
+        final ArrayMap<String, String> values = new ArrayMap<String, String>(settings.length);
+        final ContentResolver contentResolver = getContext().getContentResolver();
+        final long oldId = Binder.clearCallingIdentity();
+        try {
+            for (String key : movedWanted) {
+                final String value = readLegacySetting(contentResolver, tableName, key, userId);
+                if (value != null) {
+                    values.put(key, value);
+                }
+            }
+            if (wanted.isEmpty()) {
+                return values;
+            }
+            try (Cursor cursor = contentResolver.query(
+                    ContentProvider.maybeAddUserId(tableUri, userId),
+                    new String[] { Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE },
+                    null, null, null)) {
+                if (cursor == null) {
+                    Log.w(TAG, "Unable to read legacy " + tableName + " settings of user "
+                            + userId);
+                    return values;
+                }
+                while (cursor.moveToNext()) {
+                    final String name = cursor.getString(0);
+                    if (wanted.contains(name)) {
+                        values.put(name, cursor.getString(1));
+                    }
+                }
+            }
+        } finally {
+            Binder.restoreCallingIdentity(oldId);
+        }
+        return values;
+    }
+
+    private static String readLegacySetting(ContentResolver contentResolver, String tableName,
+            String key, int userId) {
+        if (tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM)) {
+            return Settings.System.getStringForUser(contentResolver, key, userId);
+        } else if (tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_SECURE)) {
+            return Settings.Secure.getStringForUser(contentResolver, key, userId);
+        }
+        return Settings.Global.getStringForUser(contentResolver, key, userId);
+    }
+
     private List<String> delimitedStringToList(String s, String delimiter) {
         List<String> list = new ArrayList<String>();
         if (!TextUtils.isEmpty(s)) {
@@ -291,6 +525,14 @@ public class LineageSettingsProvider extends ContentProvider {
             // our helpers and other internal bookkeeping.
 
             mDbHelpers.delete(userId);
+            final ArrayMap<String, SettingsStore> stores = mSettingsStores.get(userId);
+            if (stores != null) {
+                for (int i = 0; i < stores.size(); i++) {
+                    stores.valueAt(i).discard();
+                }
+                mSettingsStores.delete(userId);
+            }
+            mGenerationRegistry.onUserRemoved(userId);
 
             if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
         }
@@ -302,8 +544,75 @@ public class LineageSettingsProvider extends ContentProvider {
 
     @Override
     public Bundle call(String method, String request, Bundle args) {
-        if (LOCAL_LOGV) Log.d(TAG, "Call method: " + method + " " + request);
+        final int callingUserId = resolveCallingUserId(args);
+        final long sampleStartNs = mMetrics.begin();
+        if (sampleStartNs < 0) {
+            return callForUser(method, request, args, callingUserId);
+        }
 
+        // Known only for call() methods named after their table, like GET_system
+        final String tableName = method.substring(method.lastIndexOf('_') + 1);
+        final int op = getMetricsOp(method);
+        int source = AccessMetrics.SOURCE_NONE;
+        if ((op == AccessMetrics.OP_GET || op == AccessMetrics.OP_GET_MULTI)
+                && AccessMetrics.tableIndex(tableName) != AccessMetrics.TABLE_NONE) {
+            // Sampling must not create or open a store the call itself may not need
+            final SettingsStore store = peekSettingsStore(callingUserId, tableName);
+            source = store != null && store.isLoaded()
+                    ? AccessMetrics.SOURCE_MEMORY : AccessMetrics.SOURCE_STORAGE;
+        }
+        try {
+            return callForUser(method, request, args, callingUserId);
+        } finally {
+            final boolean singleKey = op == AccessMetrics.OP_GET || op == AccessMetrics.OP_PUT
+                    || op == AccessMetrics.OP_DELETE;
+            mMetrics.record(sampleStartNs, op, Binder.getCallingUid(),
+                    AccessMetrics.tableIndex(tableName), singleKey ? request : null, source);
+        }
+    }
+
+    private static int getMetricsOp(String method) {
+        if (method.startsWith("GET_MULTI_")) {
+            return AccessMetrics.OP_GET_MULTI;
+        } else if (method.startsWith("PUT_MULTI_")) {
+            return AccessMetrics.OP_PUT_MULTI;
+        } else if (method.startsWith("GET_")) {
+            return AccessMetrics.OP_GET;
+        } else if (method.startsWith("PUT_")) {
+            return AccessMetrics.OP_PUT;
+        } else if (method.startsWith("LIST_")) {
+            return AccessMetrics.OP_LIST;
+        } else if (method.startsWith("DELETE_")) {
+            return AccessMetrics.OP_DELETE;
+        }
+        return AccessMetrics.OP_OTHER;
+    }
+
+    /**
+     * Records a sampled access to a table uri.
+     * @param sampleStartNs The value returned by {@link AccessMetrics#begin()}.
+     * @param op The operation.
+     * @param uri The uri accessed.
+     * @param key The key accessed, or null to take it from an item uri.
+     * @param source Where a read was served from.
+     */
+    private void recordUriAccess(long sampleStartNs, int op, Uri uri, String key, int source) {
+        final List<String> segments = uri.getPathSegments();
+        final String tableName = segments.isEmpty() ? null : segments.get(0);
+        if (key == null && segments.size() > 1) {
+            key = segments.get(segments.size() - 1);
+        }
+        mMetrics.record(sampleStartNs, op, Binder.getCallingUid(),
+                AccessMetrics.tableIndex(tableName), key, source);
+    }
+
+    /**
+     * Resolves the user a call() is for, which may be another user than the caller's if it has
+     * the permission to access it.
+     * @param args The call() arguments, possibly naming a user.
+     * @return The id of the user.
+     */
+    private int resolveCallingUserId(Bundle args) {
         int callingUserId = UserHandle.getCallingUserId();
         if (args != null) {
             int reqUser = args.getInt(LineageSettings.CALL_METHOD_USER_KEY, callingUserId);
@@ -314,6 +623,11 @@ public class LineageSettingsProvider extends ContentProvider {
                 if (LOCAL_LOGV) Log.v(TAG, "   access setting for user " + callingUserId);
             }
         }
+        return callingUserId;
+    }
+
+    private Bundle callForUser(String method, String request, Bundle args, int callingUserId) {
+        if (LOCAL_LOGV) Log.d(TAG, "Call method: " + method + " " + request);
 
         switch (method) {
             // Migrate methods
@@ -327,13 +641,13 @@ public class LineageSettingsProvider extends ContentProvider {
             // Get methods
             case LineageSettings.CALL_METHOD_GET_SYSTEM:
                 return lookupSingleValue(callingUserId, LineageSettings.System.CONTENT_URI,
-                        request);
+                        request, args);
             case LineageSettings.CALL_METHOD_GET_SECURE:
                 return lookupSingleValue(callingUserId, LineageSettings.Secure.CONTENT_URI,
-                        request);
+                        request, args);
             case LineageSettings.CALL_METHOD_GET_GLOBAL:
                 return lookupSingleValue(callingUserId, LineageSettings.Global.CONTENT_URI,
-                        request);
+                        request, args);
 
             // Put methods
             case LineageSettings.CALL_METHOD_PUT_SYSTEM:
@@ -353,11 +667,11 @@ public class LineageSettingsProvider extends ContentProvider {
 
             // List methods
             case LineageSettings.CALL_METHOD_LIST_SYSTEM:
-                return callHelperList(callingUserId, LineageSettings.System.CONTENT_URI);
+                return callHelperList(callingUserId, LineageSettings.System.CONTENT_URI, args);
             case LineageSettings.CALL_METHOD_LIST_SECURE:
-                return callHelperList(callingUserId, LineageSettings.Secure.CONTENT_URI);
+                return callHelperList(callingUserId, LineageSettings.Secure.CONTENT_URI, args);
             case LineageSettings.CALL_METHOD_LIST_GLOBAL:
-                return callHelperList(callingUserId, LineageSettings.Global.CONTENT_URI);
+                return callHelperList(callingUserId, LineageSettings.Global.CONTENT_URI, args);
 
             // Delete methods
             case LineageSettings.CALL_METHOD_DELETE_SYSTEM:
@@ -374,11 +688,55 @@ public class LineageSettingsProvider extends ContentProvider {
                         lineageos.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
                 return callHelperDelete(callingUserId, LineageSettings.Global.CONTENT_URI,
                         request);
+
+            // Multi get methods
+            case LineageSettings.CALL_METHOD_GET_MULTI_SYSTEM:
+                return callHelperGetMulti(callingUserId, LineageSettings.System.CONTENT_URI,
+                        args);
+            case LineageSettings.CALL_METHOD_GET_MULTI_SECURE:
+                return callHelperGetMulti(callingUserId, LineageSettings.Secure.CONTENT_URI,
+                        args);
+            case LineageSettings.CALL_METHOD_GET_MULTI_GLOBAL:
+                return callHelperGetMulti(callingUserId, LineageSettings.Global.CONTENT_URI,
+                        args);
+
+            // Multi put methods
+            case LineageSettings.CALL_METHOD_PUT_MULTI_SYSTEM:
+                enforceWritePermission(lineageos.platform.Manifest.permission.WRITE_SETTINGS);
+                callHelperPutMulti(callingUserId, LineageSettings.System.CONTENT_URI, args);
+                return null;
+            case LineageSettings.CALL_METHOD_PUT_MULTI_SECURE:
+                enforceWritePermission(
+                        lineageos.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                callHelperPutMulti(callingUserId, LineageSettings.Secure.CONTENT_URI, args);
+                return null;
+            case LineageSettings.CALL_METHOD_PUT_MULTI_GLOBAL:
+                enforceWritePermission(
+                        lineageos.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                callHelperPutMulti(callingUserId, LineageSettings.Global.CONTENT_URI, args);
+                return null;
+
+            // Metrics
+            case LineageSettings.CALL_METHOD_GET_METRICS:
+                return callHelperGetMetrics(args);
         }
 
         return null;
     }
 
+    // Helper for call() CALL_METHOD_GET_METRICS
+    private Bundle callHelperGetMetrics(Bundle args) {
+        getContext().enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+        if (args != null && args.containsKey(LineageSettings.CALL_METHOD_METRICS_SAMPLING_KEY)) {
+            mMetrics.setSampling(args.getInt(LineageSettings.CALL_METHOD_METRICS_SAMPLING_KEY));
+        }
+        final Bundle ret = mMetrics.toBundle();
+        if (args != null && args.getBoolean(LineageSettings.CALL_METHOD_METRICS_RESET_KEY)) {
+            mMetrics.reset();
+        }
+        return ret;
+    }
+
     private void enforceWritePermission(String permission) {
         if (getContext().checkCallingOrSelfPermission(permission)
                 != PackageManager.PERMISSION_GRANTED) {
@@ -398,23 +756,95 @@ public class LineageSettingsProvider extends ContentProvider {
     }
 
     // Helper for call() CALL_METHOD_LIST_* methods
-    private Bundle callHelperList(int callingUserId, Uri contentUri) {
-        final ArrayList<String> lines = new ArrayList<String>();
-        final Cursor cursor = queryForUser(callingUserId, contentUri, null, null, null, null);
-        try {
-            while (cursor != null && cursor.moveToNext()) {
-                lines.add(cursor.getString(1) + "=" + cursor.getString(2));
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+    private Bundle callHelperList(int callingUserId, Uri contentUri, Bundle args) {
+        final String prefix = (args == null)
+                ? null : args.getString(LineageSettings.CALL_METHOD_PREFIX_KEY);
+        if (args != null && args.getInt(LineageSettings.CALL_METHOD_PAGE_SIZE_KEY) > 0) {
+            return callHelperListPage(callingUserId, contentUri, prefix,
+                    args.getString(LineageSettings.CALL_METHOD_PAGE_TOKEN_KEY),
+                    args.getInt(LineageSettings.CALL_METHOD_PAGE_SIZE_KEY));
+        }
+        if (args != null && args.getBoolean(LineageSettings.CALL_METHOD_TRACK_GENERATION_KEY)) {
+            return callHelperFillCache(callingUserId, contentUri, prefix,
+                    args.getBoolean(LineageSettings.CALL_METHOD_NEED_GENERATION_ARRAY_KEY));
+        }
+
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<String> values = new ArrayList<String>();
+        getSettingsStore(callingUserId, getTableNameFromUri(contentUri))
+                .getValues(prefix, names, values);
+        final ArrayList<String> lines = new ArrayList<String>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            lines.add(names.get(i) + "=" + values.get(i));
         }
         final Bundle ret = new Bundle();
         ret.putStringArrayList(RESULT_SETTINGS_LIST, lines);
         return ret;
     }
 
+    /**
+     * Lists a page of a table in name order, so large tables can be listed with bounded memory
+     * on both sides.
+     * @param callingUserId The id of the user to list the table for.
+     * @param contentUri The uri of the table to list.
+     * @param prefix The prefix to filter names with, or null for the whole table.
+     * @param pageToken The token returned with the previous page, or null for the first page.
+     * @param pageSize The maximum number of entries to list.
+     * @return The names and values in parallel arrays, and the token of the next page if any.
+     */
+    private Bundle callHelperListPage(int callingUserId, Uri contentUri, String prefix,
+            String pageToken, int pageSize) {
+        final ArrayList<String> names = new ArrayList<String>(pageSize);
+        final ArrayList<String> values = new ArrayList<String>(pageSize);
+        final boolean hasMore = getSettingsStore(callingUserId, getTableNameFromUri(contentUri))
+                .getPage(prefix, pageToken, pageSize, names, values);
+
+        final Bundle ret = new Bundle();
+        ret.putStringArray(LineageSettings.CALL_METHOD_LIST_NAMES_KEY,
+                names.toArray(new String[names.size()]));
+        ret.putStringArray(LineageSettings.CALL_METHOD_LIST_VALUES_KEY,
+                values.toArray(new String[values.size()]));
+        if (hasMore) {
+            // The token is simply the last name listed, pages pick up after it
+            ret.putString(LineageSettings.CALL_METHOD_PAGE_TOKEN_KEY,
+                    names.get(names.size() - 1));
+        }
+        return ret;
+    }
+
+    /**
+     * Lists a table, or the keys of it starting with a prefix, along with the generation data
+     * the client needs to cache every returned value and the absence of every other key.
+     * @param callingUserId The id of the user to list the table for.
+     * @param contentUri The uri of the table to list.
+     * @param prefix The prefix to filter names with, or null for the whole table.
+     * @param needArray Whether the client still needs the shared generation array.
+     * @return The names and values in parallel arrays, with their generation data.
+     */
+    private Bundle callHelperFillCache(int callingUserId, Uri contentUri, String prefix,
+            boolean needArray) {
+        final String tableName = getTableNameFromUri(contentUri);
+        final int tableUserId = getUserIdForTable(tableName, callingUserId);
+        final Bundle ret = new Bundle();
+
+        // Sample the table generation before reading, see lookupSingleValue()
+        mGenerationRegistry.addGenerationData(ret, tableUserId, tableName, null, needArray);
+
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<String> values = new ArrayList<String>();
+        getSettingsStore(callingUserId, tableName).getValues(prefix, names, values);
+
+        final String[] namesArray = names.toArray(new String[names.size()]);
+        ret.putStringArray(LineageSettings.CALL_METHOD_LIST_NAMES_KEY, namesArray);
+        ret.putStringArray(LineageSettings.CALL_METHOD_LIST_VALUES_KEY,
+                values.toArray(new String[values.size()]));
+        if (ret.containsKey(LineageSettings.CALL_METHOD_GENERATION_INDEX_KEY)) {
+            mGenerationRegistry.addGenerationDataForListedKeys(ret, tableUserId, tableName,
+                    namesArray, ret.getInt(LineageSettings.CALL_METHOD_GENERATION_KEY));
+        }
+        return ret;
+    }
+
     // Helper for call() CALL_METHOD_PUT_* methods
     private void callHelperPut(int callingUserId, Uri contentUri, String key, Bundle args) {
         // New value is in the args bundle under the key named by
@@ -428,42 +858,196 @@ public class LineageSettingsProvider extends ContentProvider {
         insertForUser(callingUserId, contentUri, values);
     }
 
+    // Helper for call() CALL_METHOD_GET_MULTI_* methods
+    private Bundle callHelperGetMulti(int callingUserId, Uri contentUri, Bundle args) {
+        final String[] names = (args == null)
+                ? null : args.getStringArray(LineageSettings.CALL_METHOD_LIST_NAMES_KEY);
+        if (names == null) {
+            throw new IllegalArgumentException("Names cannot be null");
+        }
+
+        final String tableName = getTableNameFromUri(contentUri);
+        final Bundle ret = new Bundle();
+        if (args.getBoolean(LineageSettings.CALL_METHOD_TRACK_GENERATION_KEY)) {
+            // Sample the generations before reading, see lookupSingleValue()
+            mGenerationRegistry.addGenerationDataForKeys(ret,
+                    getUserIdForTable(tableName, callingUserId), tableName, names,
+                    args.getBoolean(LineageSettings.CALL_METHOD_NEED_GENERATION_ARRAY_KEY));
+        }
+
+        try {
+            ret.putStringArray(LineageSettings.CALL_METHOD_LIST_VALUES_KEY,
+                    getSettingsStore(callingUserId, tableName).getValues(names));
+        } catch (SQLiteException e) {
+            Log.w(TAG, "settings lookup error", e);
+            return null;
+        }
+        return ret;
+    }
+
+    // Helper for call() CALL_METHOD_PUT_MULTI_* methods
+    private void callHelperPutMulti(int callingUserId, Uri contentUri, Bundle args) {
+        final String[] names = (args == null)
+                ? null : args.getStringArray(LineageSettings.CALL_METHOD_LIST_NAMES_KEY);
+        final String[] values = (args == null)
+                ? null : args.getStringArray(LineageSettings.CALL_METHOD_LIST_VALUES_KEY);
+        if (names == null || values == null || names.length != values.length) {
+            throw new IllegalArgumentException("Names and values must be arrays of equal length");
+        }
+
+        final String tableName = getTableNameFromUri(contentUri);
+        checkWritePermissions(tableName);
+
+        // Validate every entry up front, so a bad one leaves the table untouched
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == null) {
+                throw new IllegalArgumentException("Name cannot be null");
+            }
+            validateSettingNameValue(tableName, names[i], values[i]);
+        }
+        if (names.length == 0) {
+            return;
+        }
+
+        getSettingsStore(callingUserId, tableName).putValues(names, values);
+
+        final Uri[] uris = new Uri[names.length];
+        for (int i = 0; i < names.length; i++) {
+            uris[i] = Uri.withAppendedPath(contentUri, names[i]);
+        }
+        notifyChange(uris, tableName, callingUserId, names);
+        if (LOCAL_LOGV) Log.d(TAG, "Inserted " + names.length + " rows into " + tableName);
+    }
+
     /**
      * Looks up a single value for a specific user, uri, and key.
      * @param userId The id of the user to perform the lookup for.
      * @param uri The uri for which table to perform the lookup in.
      * @param key The key to perform the lookup with.
+     * @param args The call() arguments, possibly asking for generation tracking.
      * @return A single value stored in a {@link Bundle}.
      */
-    private Bundle lookupSingleValue(int userId, Uri uri, String key) {
-        Cursor cursor = null;
+    private Bundle lookupSingleValue(int userId, Uri uri, String key, Bundle args) {
+        final boolean trackGeneration = args != null
+                && args.getBoolean(LineageSettings.CALL_METHOD_TRACK_GENERATION_KEY);
+        Bundle result = null;
+        if (trackGeneration) {
+            // Sample the generation before reading the value: a write racing with this lookup
+            // then leaves the client's entry stale instead of caching an old value as current.
+            final String tableName = getTableNameFromUri(uri);
+            result = new Bundle();
+            mGenerationRegistry.addGenerationData(result, getUserIdForTable(tableName, userId),
+                    tableName, key, args.getBoolean(
+                            LineageSettings.CALL_METHOD_NEED_GENERATION_ARRAY_KEY));
+        }
+
+        String value;
         try {
-            cursor = queryForUser(userId, uri, new String[]{ Settings.NameValueTable.VALUE },
-                    Settings.NameValueTable.NAME + " = ?", new String[]{ key }, null);
-
-            if (cursor != null && cursor.getCount() == 1) {
-                cursor.moveToFirst();
-                String value = cursor.getString(0);
-                return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
-                        value);
-            }
+            value = getSettingsStore(userId, getTableNameFromUri(uri)).getValue(key);
         } catch (SQLiteException e) {
             Log.w(TAG, "settings lookup error", e);
             return null;
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
         }
 
-        return NULL_SETTING;
+        if (result != null) {
+            result.putString(Settings.NameValueTable.VALUE, value);
+            return result;
+        }
+        return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
+                value);
+    }
+
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        if (isItemUri(sUriMatcher.match(uri))
+                || !ClipDescription.compareMimeTypes(LineageSettings.DUMP_MIME_TYPE,
+                        mimeTypeFilter)) {
+            return null;
+        }
+        return new String[] { LineageSettings.DUMP_MIME_TYPE };
+    }
+
+    /**
+     * Streams a table, or the keys of it starting with the prefix held by the options, over a
+     * pipe in the format read by {@link LineageSettings.SettingsDumpReader}. Unlike listing
+     * through call(), the size of the table is not bound by the binder transaction limit.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        if (getStreamTypes(uri, mimeTypeFilter) == null) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+
+        final String prefix = (opts == null)
+                ? null : opts.getString(LineageSettings.CALL_METHOD_PREFIX_KEY);
+        final SettingsDump dump = new SettingsDump(
+                getSettingsStore(UserHandle.getCallingUserId(), getTableNameFromUri(uri)),
+                prefix);
+        return new AssetFileDescriptor(openPipeHelper(uri, LineageSettings.DUMP_MIME_TYPE, opts,
+                dump, sDumpWriter), 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    // Entries copied out of the store at a time while streaming a dump
+    private static final int DUMP_PAGE_SIZE = 64;
+
+    private static final class SettingsDump {
+        final SettingsStore store;
+        final String prefix;
+
+        SettingsDump(SettingsStore store, String prefix) {
+            this.store = store;
+            this.prefix = prefix;
+        }
     }
 
+    private static final PipeDataWriter<SettingsDump> sDumpWriter =
+            new PipeDataWriter<SettingsDump>() {
+        @Override
+        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                Bundle opts, SettingsDump dump) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(output.getFileDescriptor())))) {
+                // Streamed a page at a time, so the table is never copied as a whole
+                final ArrayList<String> names = new ArrayList<String>(DUMP_PAGE_SIZE);
+                final ArrayList<String> values = new ArrayList<String>(DUMP_PAGE_SIZE);
+                String after = null;
+                boolean hasMore = true;
+                while (hasMore) {
+                    names.clear();
+                    values.clear();
+                    hasMore = dump.store.getPage(dump.prefix, after, DUMP_PAGE_SIZE, names,
+                            values);
+                    for (int i = 0; i < names.size(); i++) {
+                        LineageSettings.SettingsDumpReader.writeEntry(out, names.get(i),
+                                values.get(i));
+                    }
+                    if (!names.isEmpty()) {
+                        after = names.get(names.size() - 1);
+                    }
+                }
+                LineageSettings.SettingsDumpReader.writeEnd(out);
+            } catch (IOException e) {
+                // The reader went away, nothing left to do
+                if (LOCAL_LOGV) Log.v(TAG, "Dump of " + uri + " aborted", e);
+            }
+        }
+    };
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
-        return queryForUser(UserHandle.getCallingUserId(), uri, projection, selection,
-                selectionArgs, sortOrder);
+        final long sampleStartNs = mMetrics.begin();
+        try {
+            return queryForUser(UserHandle.getCallingUserId(), uri, projection, selection,
+                    selectionArgs, sortOrder);
+        } finally {
+            if (sampleStartNs >= 0) {
+                // Queries always go to the database
+                recordUriAccess(sampleStartNs, AccessMetrics.OP_QUERY, uri, null,
+                        AccessMetrics.SOURCE_STORAGE);
+            }
+        }
     }
 
     /**
@@ -486,6 +1070,9 @@ public class LineageSettingsProvider extends ContentProvider {
         int code = sUriMatcher.match(uri);
         String tableName = getTableNameFromUriMatchCode(code);
 
+        // Queries go straight to the database, make sure it has every write
+        getSettingsStore(userId, tableName).flush();
+
         LineageDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
         SQLiteDatabase db = dbHelper.getReadableDatabase();
 
@@ -530,7 +1117,7 @@ public class LineageSettingsProvider extends ContentProvider {
      *    This must not be {@code null}.
      * @return Number of rows inserted.
      */
-    int bulkInsertForUser(int userId, Uri uri, ContentValues[] values) {
+    int bulkInsertForUser(int userId, Uri uri, final ContentValues[] values) {
         if (uri == null) {
             throw new IllegalArgumentException("Uri cannot be null");
         }
@@ -539,37 +1126,44 @@ public class LineageSettingsProvider extends ContentProvider {
             throw new IllegalArgumentException("ContentValues cannot be null");
         }
 
-        int numRowsAffected = 0;
-
-        String tableName = getTableNameFromUri(uri);
+        final String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        LineageDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-
-        db.beginTransaction();
-        try {
-            for (ContentValues value : values) {
-                if (value == null) {
-                    continue;
-                }
-
-                long rowId = db.insert(tableName, null, value);
-
-                if (rowId >= 0) {
-                    numRowsAffected++;
-                } else {
-                    return 0;
+        // The rows go to the database in one transaction, ordered after any pending write
+        final SettingsStore store = getSettingsStore(userId, tableName);
+        final String[] names = new String[values.length];
+        final int numRowsAffected = store.insertValues(values,
+                new SettingsStore.DatabaseInsertion() {
+            @Override
+            public int insert(SQLiteDatabase db) {
+                int numRowsInserted = 0;
+                db.beginTransaction();
+                try {
+                    for (ContentValues value : values) {
+                        if (value == null) {
+                            continue;
+                        }
+
+                        long rowId = db.insert(tableName, null, value);
+
+                        if (rowId >= 0) {
+                            names[numRowsInserted++] =
+                                    value.getAsString(Settings.NameValueTable.NAME);
+                        } else {
+                            return 0;
+                        }
+                    }
+
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
                 }
+                return numRowsInserted;
             }
-
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
-        }
+        });
 
         if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, userId);
+            notifyChange(getUrisForNames(uri, names), tableName, userId, names);
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) inserted");
         }
 
@@ -578,7 +1172,16 @@ public class LineageSettingsProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        return insertForUser(UserHandle.getCallingUserId(), uri, values);
+        final long sampleStartNs = mMetrics.begin();
+        try {
+            return insertForUser(UserHandle.getCallingUserId(), uri, values);
+        } finally {
+            if (sampleStartNs >= 0) {
+                recordUriAccess(sampleStartNs, AccessMetrics.OP_INSERT, uri,
+                        values == null ? null : values.getAsString(Settings.NameValueTable.NAME),
+                        AccessMetrics.SOURCE_NONE);
+            }
+        }
     }
 
     /**
@@ -601,31 +1204,39 @@ public class LineageSettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        LineageDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
-
         // Validate value if inserting int System table
         final String name = values.getAsString(Settings.NameValueTable.NAME);
         final String value = values.getAsString(Settings.NameValueTable.VALUE);
-        if (LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM.equals(tableName)) {
-            validateSystemSettingNameValue(name, value);
-        } else if (LineageDatabaseHelper.LineageTableNames.TABLE_SECURE.equals(tableName)) {
-            validateSecureSettingValue(name, value);
+        validateSettingNameValue(tableName, name, value);
+
+        if (name == null) {
+            // Not a settings row, there's nothing to insert
+            return null;
         }
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        long rowId = db.insert(tableName, null, values);
+        // Served from memory right away, written to the database in the background
+        getSettingsStore(userId, tableName).putValue(name, value);
 
-        Uri returnUri = null;
-        if (rowId > -1) {
-            returnUri = Uri.withAppendedPath(uri, name);
-            notifyChange(returnUri, tableName, userId);
-            if (LOCAL_LOGV) Log.d(TAG, "Inserted row id: " + rowId + " into tableName: " +
-                    tableName);
-        }
+        Uri returnUri = Uri.withAppendedPath(uri, name);
+        notifyChange(returnUri, tableName, userId, new String[] { name });
+        if (LOCAL_LOGV) Log.d(TAG, "Inserted " + name + " into tableName: " + tableName);
 
         return returnUri;
     }
 
+    @Override
+    public ContentProviderResult[] applyBatch(String authority,
+            ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Observers hear about the whole batch at once
+        mChangeNotifier.beginBatch();
+        try {
+            return super.applyBatch(authority, operations);
+        } finally {
+            mChangeNotifier.endBatch();
+        }
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         return deleteForUser(UserHandle.getCallingUserId(), uri, selection, selectionArgs);
@@ -645,14 +1256,26 @@ public class LineageSettingsProvider extends ContentProvider {
             String tableName = getTableNameFromUri(uri);
             checkWritePermissions(tableName);
 
-            LineageDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
-                    callingUserId));
+            final SettingsStore store = getSettingsStore(callingUserId, tableName);
+            if (NAME_SELECTION.equals(selection) && selectionArgs.length == 1) {
+                // Deletes by key are handled in memory like any other write
+                numRowsAffected = store.deleteValue(selectionArgs[0]) ? 1 : 0;
+            } else {
+                store.prepareDatabaseChange();
+
+                LineageDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
+                        callingUserId));
 
-            SQLiteDatabase db = dbHelper.getWritableDatabase();
-            numRowsAffected = db.delete(tableName, selection, selectionArgs);
+                SQLiteDatabase db = dbHelper.getWritableDatabase();
+                numRowsAffected = db.delete(tableName, selection, selectionArgs);
+                store.invalidate();
+            }
 
             if (numRowsAffected > 0) {
-                notifyChange(uri, tableName, callingUserId);
+                // Deletes by key can be attributed, anything else touches the whole table
+                final String[] names = NAME_SELECTION.equals(selection) ? selectionArgs : null;
+                notifyChange(names != null ? getUrisForNames(uri, names) : new Uri[] { uri },
+                        tableName, callingUserId, names);
                 if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) deleted");
             }
         }
@@ -688,14 +1311,18 @@ public class LineageSettingsProvider extends ContentProvider {
         }
 
         int callingUserId = UserHandle.getCallingUserId();
+        final SettingsStore store = getSettingsStore(callingUserId, tableName);
+        store.prepareDatabaseChange();
+
         LineageDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
                 callingUserId));
 
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         int numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+        store.invalidate();
 
         if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, callingUserId);
+            notifyChange(uri, tableName, callingUserId, null);
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) updated");
         }
 
@@ -737,16 +1364,106 @@ public class LineageSettingsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Returns the in-memory copy of a table, creating it if needed. Global settings live in the
+     * owner's store whatever the user.
+     * @param userId The id of the user to get the table for.
+     * @param tableName The name of the table.
+     * @return The settings store of the table.
+     */
+    private SettingsStore getSettingsStore(int userId, String tableName) {
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        // The store opens the database once it needs to, it may not have to on a cold start
+        final LineageDatabaseHelper dbHelper = getOrCreateDbHelper(tableUserId);
+        synchronized (this) {
+            ArrayMap<String, SettingsStore> stores = mSettingsStores.get(tableUserId);
+            if (stores == null) {
+                stores = new ArrayMap<String, SettingsStore>();
+                mSettingsStores.put(tableUserId, stores);
+            }
+            SettingsStore store = stores.get(tableName);
+            if (store == null) {
+                store = new SettingsStore(dbHelper, tableName, mWriteHandler);
+                stores.put(tableName, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Returns the in-memory copy of a table if it was created already, without creating it.
+     * @param userId The id of the user to get the table for.
+     * @param tableName The name of the table.
+     * @return The settings store of the table, or null if there is none yet.
+     */
+    private SettingsStore peekSettingsStore(int userId, String tableName) {
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        synchronized (this) {
+            final ArrayMap<String, SettingsStore> stores = mSettingsStores.get(tableUserId);
+            return stores != null ? stores.get(tableName) : null;
+        }
+    }
+
+    /**
+     * Loads every table of a user into memory, so later reads don't touch the database.
+     * @param userId The id of the user.
+     */
+    private void loadSettingsStores(int userId) {
+        final long startTime = SystemClock.elapsedRealtime();
+        getSettingsStore(userId, LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM).load();
+        getSettingsStore(userId, LineageDatabaseHelper.LineageTableNames.TABLE_SECURE).load();
+        if (userId == UserHandle.USER_OWNER) {
+            getSettingsStore(userId, LineageDatabaseHelper.LineageTableNames.TABLE_GLOBAL).load();
+        }
+        if (LOCAL_LOGV) {
+            Log.d(TAG, "Loaded settings of user " + userId + " in "
+                    + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        }
+    }
+
+    /**
+     * Synchronously writes every pending change of a user's settings stores to the database.
+     * @param userId The id of the user, or {@link UserHandle#USER_ALL} for every user.
+     */
+    private void flushSettingsStores(int userId) {
+        final ArrayList<SettingsStore> stores = new ArrayList<SettingsStore>();
+        synchronized (this) {
+            for (int i = 0; i < mSettingsStores.size(); i++) {
+                if (userId == UserHandle.USER_ALL || mSettingsStores.keyAt(i) == userId) {
+                    stores.addAll(mSettingsStores.valueAt(i).values());
+                }
+            }
+        }
+        for (SettingsStore store : stores) {
+            store.flush();
+        }
+    }
+
     /**
      * Check if a {@link LineageDatabaseHelper} exists for a user and if it doesn't, a new helper is
      * created and added to the list of tracked database helpers
      * @param userId
      */
     private void establishDbTracking(int userId) {
-        LineageDatabaseHelper dbHelper;
+        LineageDatabaseHelper dbHelper = getOrCreateDbHelper(userId);
+
+        // Initialization of the db *outside* the locks.  It's possible that racing
+        // threads might wind up here, the second having read the cache entries
+        // written by the first, but that's benign: the SQLite helper implementation
+        // manages concurrency itself, and it's important that we not run the db
+        // initialization with any of our own locks held, so we're fine.
+        dbHelper.getWritableDatabase();
+    }
 
+    /**
+     * Gets the {@link LineageDatabaseHelper} of a user, creating it if needed, without opening
+     * the database.
+     * @param userId The id of the user.
+     * @return The database helper.
+     */
+    private LineageDatabaseHelper getOrCreateDbHelper(int userId) {
         synchronized (this) {
-            dbHelper = mDbHelpers.get(userId);
+            LineageDatabaseHelper dbHelper = mDbHelpers.get(userId);
             if (LOCAL_LOGV) {
                 Log.i(TAG, "Checking lineage settings db helper for user " + userId);
             }
@@ -757,14 +1474,8 @@ public class LineageSettingsProvider extends ContentProvider {
                 dbHelper = new LineageDatabaseHelper(getContext(), userId);
                 mDbHelpers.append(userId, dbHelper);
             }
+            return dbHelper;
         }
-
-        // Initialization of the db *outside* the locks.  It's possible that racing
-        // threads might wind up here, the second having read the cache entries
-        // written by the first, but that's benign: the SQLite helper implementation
-        // manages concurrency itself, and it's important that we not run the db
-        // initialization with any of our own locks held, so we're fine.
-        dbHelper.getWritableDatabase();
     }
 
     /**
@@ -850,14 +1561,41 @@ public class LineageSettingsProvider extends ContentProvider {
     }
 
     /**
-     * Modify setting version for an updated table before notifying of change. The
+     * Bump the generations of the changed keys before notifying of change. The
      * {@link LineageSettings} class uses these to provide client-side caches.
      * @param uri to send notifications for
+     * @param tableName
      * @param userId
+     * @param names The keys that changed, or null if the change can't be attributed to keys
      */
-    private void notifyChange(Uri uri, String tableName, int userId) {
-        String property = null;
+    private void notifyChange(Uri uri, String tableName, int userId, String[] names) {
+        notifyChange(new Uri[] { uri }, tableName, userId, names);
+    }
+
+    /**
+     * Bump the generations of the changed keys, then queue a notification covering every uri
+     * and a bump of the table's version.
+     * @param uris to send notifications for
+     * @param tableName
+     * @param userId
+     * @param names The keys that changed, or null if the change can't be attributed to keys
+     */
+    private void notifyChange(Uri[] uris, String tableName, int userId, String[] names) {
         final boolean isGlobal = tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_GLOBAL);
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        if (names == null) {
+            mGenerationRegistry.incrementGenerationForTable(tableUserId, tableName);
+        } else {
+            for (String name : names) {
+                if (name != null) {
+                    mGenerationRegistry.incrementGeneration(tableUserId, tableName, name);
+                }
+            }
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "generation bumped for " + tableName + ": " + uris[0]);
+
+        // Still kept up to date for anyone watching the version properties for changes
+        String property = null;
         if (tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM)) {
             property = LineageSettings.System.SYS_PROP_LINEAGE_SETTING_VERSION;
         } else if (tableName.equals(LineageDatabaseHelper.LineageTableNames.TABLE_SECURE)) {
@@ -866,20 +1604,39 @@ public class LineageSettingsProvider extends ContentProvider {
             property = LineageSettings.Global.SYS_PROP_LINEAGE_SETTING_VERSION;
         }
 
-        if (property != null) {
-            long version = SystemProperties.getLong(property, 0) + 1;
-            if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
-            SystemProperties.set(property, Long.toString(version));
+        // Generations are bumped right away so readers never see a stale cached value, the
+        // notifications and the version bump are coalesced
+        final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
+        mChangeNotifier.notifyChange(uris, notifyTarget, property);
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "notifying for " + notifyTarget + ": " + uris.length + " uri(s)");
         }
+    }
 
-        final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
-        final long oldId = Binder.clearCallingIdentity();
-        try {
-            getContext().getContentResolver().notifyChange(uri, null, true, notifyTarget);
-        } finally {
-            Binder.restoreCallingIdentity(oldId);
+    /**
+     * Returns the table uri followed by the uri of every named key, so observers of either
+     * hear about the change.
+     * @param tableUri
+     * @param names The keys that changed; null entries are skipped
+     * @return The uris to notify
+     */
+    private static Uri[] getUrisForNames(Uri tableUri, String[] names) {
+        final ArrayList<Uri> uris = new ArrayList<Uri>(names.length + 1);
+        uris.add(tableUri);
+        for (String name : names) {
+            if (name != null) {
+                uris.add(Uri.withAppendedPath(tableUri, name));
+            }
+        }
+        return uris.toArray(new Uri[uris.size()]);
+    }
+
+    private void validateSettingNameValue(String tableName, String name, String value) {
+        if (LineageDatabaseHelper.LineageTableNames.TABLE_SYSTEM.equals(tableName)) {
+            validateSystemSettingNameValue(name, value);
+        } else if (LineageDatabaseHelper.LineageTableNames.TABLE_SECURE.equals(tableName)) {
+            validateSecureSettingValue(name, value);
         }
-        if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
     }
 
     private void validateSystemSettingNameValue(String name, String value) {
@@ -904,6 +1661,4 @@ public class LineageSettingsProvider extends ContentProvider {
                     + " for setting: " + name);
         }
     }
-
-    // TODO Add caching
 }
@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * Read-only, memory mapped copy of a single settings table, used to serve reads on a cold start
+ * before the database is open.
+ *
+ * The file is a sorted string table: a header, an index of entry offsets sorted by the UTF-8
+ * bytes of the names, then the entries themselves. Each entry is the name and the value, each
+ * prefixed by its length in bytes, -1 standing for a null value. Lookups binary search the
+ * index without decoding any name.
+ */
+final class SettingsSnapshot {
+    private static final String TAG = "LineageSettingsSnapshot";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final int MAGIC = 0x4c534e50; // "LSNP"
+    private static final int FORMAT_VERSION = 1;
+    // magic, format version, database version, entry count
+    private static final int HEADER_SIZE = 4 * 4;
+
+    private static final Comparator<byte[]> UTF8_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            final int length = Math.min(a.length, b.length);
+            for (int i = 0; i < length; i++) {
+                final int diff = (a[i] & 0xff) - (b[i] & 0xff);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+
+    private SettingsSnapshot(ByteBuffer buffer, int count) {
+        mBuffer = buffer;
+        mCount = count;
+    }
+
+    /**
+     * Maps a snapshot file.
+     * @param file The snapshot file.
+     * @param databaseVersion The current database version. Snapshots written for another version
+     *     are ignored, since the database is going to be upgraded.
+     * @return The snapshot, or null if there is no usable one.
+     */
+    static SettingsSnapshot open(File file, int databaseVersion) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid once the channel is closed
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != FORMAT_VERSION
+                    || buffer.getInt(8) != databaseVersion) {
+                if (LOCAL_LOGV) Log.v(TAG, "Ignoring stale snapshot " + file);
+                return null;
+            }
+            final int count = buffer.getInt(12);
+            if (count < 0 || HEADER_SIZE + 4L * count > buffer.limit()
+                    || !hasValidEntries(buffer, count)) {
+                Log.w(TAG, "Ignoring corrupt snapshot " + file);
+                return null;
+            }
+            return new SettingsSnapshot(buffer, count);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to map snapshot " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Checks that every entry the index points to lies within the file, so lookups can't read
+     * past it however the file was truncated or damaged.
+     */
+    private static boolean hasValidEntries(ByteBuffer buffer, int count) {
+        final long limit = buffer.limit();
+        final long entriesStart = HEADER_SIZE + 4L * count;
+        for (int i = 0; i < count; i++) {
+            final long offset = buffer.getInt(HEADER_SIZE + 4 * i);
+            if (offset < entriesStart || offset + 4 > limit) {
+                return false;
+            }
+            final int nameLength = buffer.getInt((int) offset);
+            final long valueOffset = offset + 4 + nameLength;
+            if (nameLength < 0 || valueOffset + 4 > limit) {
+                return false;
+            }
+            final int valueLength = buffer.getInt((int) valueOffset);
+            if (valueLength < -1 || valueOffset + 4 + Math.max(valueLength, 0) > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param name The name of the setting.
+     * @return Whether the snapshot holds the setting.
+     */
+    boolean contains(String name) {
+        return find(name.getBytes(StandardCharsets.UTF_8)) >= 0;
+    }
+
+    /**
+     * @param name The name of the setting.
+     * @return The value of the setting, or null if it is not set.
+     */
+    String get(String name) {
+        final int offset = find(name.getBytes(StandardCharsets.UTF_8));
+        if (offset < 0) {
+            return null;
+        }
+        final int valueOffset = offset + 4 + mBuffer.getInt(offset);
+        final int valueLength = mBuffer.getInt(valueOffset);
+        if (valueLength < 0) {
+            return null;
+        }
+        final byte[] value = new byte[valueLength];
+        for (int i = 0; i < valueLength; i++) {
+            value[i] = mBuffer.get(valueOffset + 4 + i);
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The offset of the entry with the given name, or -1 if there is none.
+     */
+    private int find(byte[] name) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int offset = mBuffer.getInt(HEADER_SIZE + 4 * mid);
+            final int cmp = compareName(offset, name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private int compareName(int offset, byte[] name) {
+        final int length = mBuffer.getInt(offset);
+        final int common = Math.min(length, name.length);
+        for (int i = 0; i < common; i++) {
+            final int diff = (mBuffer.get(offset + 4 + i) & 0xff) - (name[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - name.length;
+    }
+
+    /**
+     * Writes a snapshot of a table, syncing it to disk. Callers write to a temporary file and
+     * rename it over the snapshot, so readers never see a partial one.
+     * @param file The file to write.
+     * @param databaseVersion The version of the database the values were read from.
+     * @param values The whole table.
+     */
+    static void write(File file, int databaseVersion, Map<String, String> values)
+            throws IOException {
+        final int count = values.size();
+        final byte[][] names = new byte[count][];
+        int i = 0;
+        for (String name : values.keySet()) {
+            names[i++] = name.getBytes(StandardCharsets.UTF_8);
+        }
+        Arrays.sort(names, UTF8_ORDER);
+
+        final byte[][] encodedValues = new byte[count][];
+        int offset = HEADER_SIZE + 4 * count;
+        final int[] offsets = new int[count];
+        for (i = 0; i < count; i++) {
+            final String value = values.get(new String(names[i], StandardCharsets.UTF_8));
+            encodedValues[i] = (value == null) ? null : value.getBytes(StandardCharsets.UTF_8);
+            offsets[i] = offset;
+            offset += 4 + names[i].length + 4
+                    + (encodedValues[i] == null ? 0 : encodedValues[i].length);
+        }
+
+        final FileOutputStream fos = new FileOutputStream(file);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(databaseVersion);
+            out.writeInt(count);
+            for (i = 0; i < count; i++) {
+                out.writeInt(offsets[i]);
+            }
+            for (i = 0; i < count; i++) {
+                out.writeInt(names[i].length);
+                out.write(names[i]);
+                if (encodedValues[i] == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(encodedValues[i].length);
+                    out.write(encodedValues[i]);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+}
@@ -0,0 +1,643 @@
+/**
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * In-memory authoritative copy of a single settings table of a single user.
+ *
+ * The table is loaded from its {@link LineageDatabaseHelper} on first access and serves every
+ * read from memory afterwards. Writes are applied to memory right away and written back to
+ * SQLite in batches on a background handler, at most {@link #MAX_FLUSH_DELAY_MS} after the
+ * first pending write. Callers that need the database itself to be current, such as queries
+ * or shutdown, call {@link #flush()}.
+ *
+ * After every flush that leaves memory and database identical, the table is also written to a
+ * {@link SettingsSnapshot}. Until the table is loaded, reads of single settings are served from
+ * that snapshot, so a cold start doesn't have to wait for the database to be opened and
+ * upgraded. A snapshot that may no longer match the database is deleted rather than used.
+ */
+final class SettingsStore {
+    private static final String TAG = "LineageSettingsStore";
+    private static final boolean LOCAL_LOGV = false;
+
+    // Writes arriving in a burst are coalesced into a single transaction
+    private static final long FLUSH_DELAY_MS = 200;
+    // ...but a steady stream of writes can't postpone the flush forever
+    private static final long MAX_FLUSH_DELAY_MS = 2000;
+
+    private static final String NAME_SELECTION = Settings.NameValueTable.NAME + " = ?";
+
+    private final String mTableName;
+    private final Handler mHandler;
+    private final File mSnapshotFile;
+
+    private final Object mLock = new Object();
+    // Serializes flushes, so batches reach the database in the order they were taken
+    private final Object mFlushLock = new Object();
+
+    // Changed with both mFlushLock and mLock held, so holding either is enough to use it
+    private LineageDatabaseHelper mDbHelper;
+
+    // Guarded by mLock. Null until loaded; values may be null.
+    private HashMap<String, String> mValues;
+    // Guarded by mLock. The names of mValues in order, built for the first page listed and
+    // kept up to date from then on. Null whenever mValues is.
+    private TreeSet<String> mSortedNames;
+    // Guarded by mLock. Writes not yet in the database.
+    private ArrayMap<String, String> mPendingPuts = new ArrayMap<String, String>();
+    private ArraySet<String> mPendingDeletes = new ArraySet<String>();
+    private long mFirstPendingTime;
+    // Guarded by mLock. Mapped on first read, and dropped once the table is loaded.
+    private SettingsSnapshot mSnapshot;
+    private boolean mSnapshotOpened;
+    // Guarded by mLock. Bumped whenever the database is changed behind the flushes.
+    private int mDatabaseChanges;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    SettingsStore(LineageDatabaseHelper dbHelper, String tableName, Handler handler) {
+        mDbHelper = dbHelper;
+        mTableName = tableName;
+        mHandler = handler;
+        mSnapshotFile = dbHelper.getSnapshotFile(tableName);
+    }
+
+    /**
+     * @param name The name of the setting.
+     * @return The value of the setting, or null if it is not set.
+     */
+    public String getValue(String name) {
+        synchronized (mLock) {
+            return getValueLocked(name);
+        }
+    }
+
+    /**
+     * @return Whether the table is in memory, so reads don't need the snapshot or database.
+     */
+    public boolean isLoaded() {
+        synchronized (mLock) {
+            return mValues != null;
+        }
+    }
+
+    /**
+     * Copies the settings whose names start with a prefix into parallel lists.
+     * @param prefix The prefix to filter names with, or null for the whole table.
+     * @param names Receives the names.
+     * @param values Receives the values.
+     */
+    public void getValues(String prefix, List<String> names, List<String> values) {
+        synchronized (mLock) {
+            for (Map.Entry<String, String> entry : getValuesLocked().entrySet()) {
+                if (prefix == null || entry.getKey().startsWith(prefix)) {
+                    names.add(entry.getKey());
+                    values.add(entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a page of the settings whose names start with a prefix, in name order, into
+     * parallel lists.
+     * @param prefix The prefix to filter names with, or null for the whole table.
+     * @param after The last name of the previous page, or null to start with the first page.
+     * @param limit The maximum number of settings to copy.
+     * @param names Receives the names.
+     * @param values Receives the values.
+     * @return Whether settings remain after this page.
+     */
+    public boolean getPage(String prefix, String after, int limit, List<String> names,
+            List<String> values) {
+        synchronized (mLock) {
+            final HashMap<String, String> all = getValuesLocked();
+            final TreeSet<String> sorted = getSortedNamesLocked();
+            // Names with the prefix are contiguous, start at whichever comes later of the
+            // prefix and the end of the previous page
+            final NavigableSet<String> tail;
+            if (after != null && (prefix == null || after.compareTo(prefix) >= 0)) {
+                tail = sorted.tailSet(after, false);
+            } else if (prefix != null) {
+                tail = sorted.tailSet(prefix, true);
+            } else {
+                tail = sorted;
+            }
+            int count = 0;
+            for (String name : tail) {
+                if (prefix != null && !name.startsWith(prefix)) {
+                    return false;
+                }
+                if (count == limit) {
+                    return true;
+                }
+                names.add(name);
+                values.add(all.get(name));
+                count++;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Reads several settings at once.
+     * @param names The names of the settings.
+     * @return The values of the settings, parallel to names, null for the ones not set.
+     */
+    public String[] getValues(String[] names) {
+        final String[] values = new String[names.length];
+        synchronized (mLock) {
+            for (int i = 0; i < names.length; i++) {
+                values[i] = getValueLocked(names[i]);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Sets several settings in memory at once, so readers see either none or all of them, and
+     * schedules writing them to the database in the same transaction.
+     * @param names The names of the settings.
+     * @param values The new values, parallel to names, which may be null.
+     */
+    public void putValues(String[] names, String[] values) {
+        synchronized (mLock) {
+            for (int i = 0; i < names.length; i++) {
+                putLocked(names[i], values[i]);
+                mPendingDeletes.remove(names[i]);
+                mPendingPuts.put(names[i], values[i]);
+            }
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * Sets a setting in memory and schedules writing it to the database.
+     * @param name The name of the setting.
+     * @param value The new value, which may be null.
+     */
+    public void putValue(String name, String value) {
+        synchronized (mLock) {
+            putLocked(name, value);
+            mPendingDeletes.remove(name);
+            mPendingPuts.put(name, value);
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * Removes a setting from memory and schedules removing it from the database.
+     * @param name The name of the setting.
+     * @return Whether the setting existed.
+     */
+    public boolean deleteValue(String name) {
+        synchronized (mLock) {
+            if (!containsLocked(name)) {
+                return false;
+            }
+            if (mValues != null) {
+                mValues.remove(name);
+                if (mSortedNames != null) {
+                    mSortedNames.remove(name);
+                }
+            }
+            mPendingPuts.remove(name);
+            mPendingDeletes.add(name);
+            scheduleFlushLocked();
+            return true;
+        }
+    }
+
+    /**
+     * Writes rows to the database directly, ordered after every pending write, and applies them
+     * in memory. No flush runs until the rows are in memory too, and writes to the same names
+     * made while the rows were written are dropped, since the rows are applied after them.
+     * @param values The rows to write.
+     * @param insertion Writes the rows to the database of the store in a single transaction.
+     * @return The number of rows written.
+     */
+    public int insertValues(ContentValues[] values, DatabaseInsertion insertion) {
+        synchronized (mFlushLock) {
+            prepareDatabaseChange();
+            final int inserted = insertion.insert(openDatabase());
+            if (inserted <= 0) {
+                return inserted;
+            }
+            synchronized (mLock) {
+                onDatabaseChangedLocked();
+                for (ContentValues value : values) {
+                    if (value == null) {
+                        continue;
+                    }
+                    final String name = value.getAsString(Settings.NameValueTable.NAME);
+                    mPendingPuts.remove(name);
+                    mPendingDeletes.remove(name);
+                    // Until the table is loaded the rows are picked up from the database
+                    putLocked(name, value.getAsString(Settings.NameValueTable.VALUE));
+                }
+            }
+            return inserted;
+        }
+    }
+
+    /**
+     * Writes rows to the database behind a store, see {@link #insertValues}.
+     */
+    interface DatabaseInsertion {
+        int insert(SQLiteDatabase db);
+    }
+
+    /**
+     * Writes every pending change to the database and drops the snapshot, ahead of changing
+     * the database directly. Once the database did change, call {@link #invalidate()}.
+     */
+    public void prepareDatabaseChange() {
+        flush();
+        synchronized (mLock) {
+            onDatabaseChangedLocked();
+        }
+    }
+
+    /**
+     * Forgets the in-memory copy after the database was changed in ways that can't be mirrored,
+     * so it is reloaded on next access. Pending writes must have been flushed before.
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            onDatabaseChangedLocked();
+            mValues = null;
+            mSortedNames = null;
+        }
+    }
+
+    /**
+     * Drops every pending write without touching the database, used once the database itself
+     * is going away.
+     */
+    public void discard() {
+        synchronized (mLock) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mPendingPuts.clear();
+            mPendingDeletes.clear();
+            mFirstPendingTime = 0;
+            onDatabaseChangedLocked();
+            mValues = null;
+            mSortedNames = null;
+        }
+    }
+
+    /**
+     * Loads the table from the database, if it isn't yet, without blocking readers meanwhile.
+     * Also writes the snapshot the next cold start will read from, if there is no usable one.
+     */
+    public void load() {
+        synchronized (mFlushLock) {
+            final int databaseChanges;
+            synchronized (mLock) {
+                if (mValues != null) {
+                    return;
+                }
+                databaseChanges = mDatabaseChanges;
+            }
+
+            // Holding mFlushLock, nothing reaches the database until the pending writes are
+            // applied on top of what is read here
+            final HashMap<String, String> values;
+            try {
+                values = readDatabase();
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Unable to load " + mTableName + " settings", e);
+                return;
+            }
+
+            final boolean hadSnapshot;
+            synchronized (mLock) {
+                if (mValues != null || databaseChanges != mDatabaseChanges) {
+                    return;
+                }
+                hadSnapshot = getSnapshotLocked() != null;
+                setValuesLocked(values);
+            }
+            if (!hadSnapshot) {
+                writeSnapshot();
+            }
+        }
+    }
+
+    /**
+     * Replaces the database files behind the store and moves it over to the helper of the new
+     * ones. Every pending write is flushed to the old database first, and reads and writes of
+     * the store wait until the replacement is done, so none of them reach the old files or a
+     * closed helper.
+     * @param replacement Replaces the files and returns the helper to use from then on.
+     * @return The new helper.
+     */
+    public LineageDatabaseHelper replaceDatabase(DatabaseReplacement replacement) {
+        synchronized (mFlushLock) {
+            flush();
+            synchronized (mLock) {
+                final LineageDatabaseHelper dbHelper = replacement.replace();
+                mDbHelper = dbHelper;
+                // The table is whatever the new files hold, pending writes go on top of it
+                onDatabaseChangedLocked();
+                mValues = null;
+                mSortedNames = null;
+                mSnapshot = null;
+                mSnapshotOpened = true;
+                return dbHelper;
+            }
+        }
+    }
+
+    /**
+     * Replaces the database files behind one or more stores, see {@link #replaceDatabase}.
+     */
+    interface DatabaseReplacement {
+        LineageDatabaseHelper replace();
+    }
+
+    /**
+     * Synchronously writes every pending change to the database in a single transaction.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            final boolean onSnapshot;
+            synchronized (mLock) {
+                onSnapshot = mValues == null && mSnapshot != null;
+            }
+            if (onSnapshot) {
+                // Reads on top of a snapshot only see writes while they're pending, so they
+                // have to be in memory before they can leave the pending set
+                load();
+            }
+
+            final ArrayMap<String, String> puts;
+            final ArraySet<String> deletes;
+            synchronized (mLock) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                if (mPendingPuts.isEmpty() && mPendingDeletes.isEmpty()) {
+                    return;
+                }
+                if (mValues == null && mSnapshot != null) {
+                    // The table couldn't be loaded, keep the writes pending and retry
+                    scheduleFlushLocked();
+                    return;
+                }
+                // The snapshot goes first, so a crash mid-flush can't leave a stale one behind
+                mSnapshotFile.delete();
+                puts = mPendingPuts;
+                deletes = mPendingDeletes;
+                mPendingPuts = new ArrayMap<String, String>();
+                mPendingDeletes = new ArraySet<String>();
+                mFirstPendingTime = 0;
+            }
+
+            try {
+                final SQLiteDatabase db = openDatabase();
+                db.beginTransaction();
+                try {
+                    final ContentValues row = new ContentValues(2);
+                    for (int i = 0; i < puts.size(); i++) {
+                        row.put(Settings.NameValueTable.NAME, puts.keyAt(i));
+                        row.put(Settings.NameValueTable.VALUE, puts.valueAt(i));
+                        db.insert(mTableName, null, row);
+                    }
+                    for (int i = 0; i < deletes.size(); i++) {
+                        db.delete(mTableName, NAME_SELECTION, new String[] { deletes.valueAt(i) });
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, mTableName + ": flushed " + puts.size() + " put(s) and "
+                            + deletes.size() + " delete(s)");
+                }
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Unable to write " + mTableName + " settings, will retry", e);
+                requeue(puts, deletes);
+                return;
+            }
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * Atomically replaces the snapshot with the in-memory copy, provided it matches the
+     * database. Must be called with mFlushLock held, so no flush changes the database meanwhile.
+     */
+    private void writeSnapshot() {
+        final HashMap<String, String> values;
+        final int databaseChanges;
+        synchronized (mLock) {
+            if (mValues == null || !mPendingPuts.isEmpty() || !mPendingDeletes.isEmpty()) {
+                // The database moved on and can't be described from memory; the next flush
+                // will write a fresh snapshot
+                mSnapshotFile.delete();
+                return;
+            }
+            values = new HashMap<String, String>(mValues);
+            databaseChanges = mDatabaseChanges;
+        }
+
+        final File tempFile = new File(mSnapshotFile.getPath() + ".tmp");
+        try {
+            SettingsSnapshot.write(tempFile, LineageDatabaseHelper.DATABASE_VERSION, values);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + mTableName + " snapshot", e);
+            tempFile.delete();
+            synchronized (mLock) {
+                mSnapshotFile.delete();
+            }
+            return;
+        }
+
+        synchronized (mLock) {
+            // The database was changed directly while writing, this snapshot is already stale
+            if (databaseChanges != mDatabaseChanges || !tempFile.renameTo(mSnapshotFile)) {
+                tempFile.delete();
+                mSnapshotFile.delete();
+            } else if (LOCAL_LOGV) {
+                Log.v(TAG, mTableName + ": wrote snapshot of " + values.size() + " values");
+            }
+        }
+    }
+
+    private void onDatabaseChangedLocked() {
+        mDatabaseChanges++;
+        mSnapshotFile.delete();
+    }
+
+    /**
+     * Puts back writes that failed to flush, unless they were superseded in the meantime.
+     */
+    private void requeue(ArrayMap<String, String> puts, ArraySet<String> deletes) {
+        synchronized (mLock) {
+            for (int i = 0; i < puts.size(); i++) {
+                final String name = puts.keyAt(i);
+                if (!mPendingPuts.containsKey(name) && !mPendingDeletes.contains(name)) {
+                    mPendingPuts.put(name, puts.valueAt(i));
+                }
+            }
+            for (int i = 0; i < deletes.size(); i++) {
+                final String name = deletes.valueAt(i);
+                if (!mPendingPuts.containsKey(name)) {
+                    mPendingDeletes.add(name);
+                }
+            }
+            scheduleFlushLocked();
+        }
+    }
+
+    private void scheduleFlushLocked() {
+        final long now = SystemClock.uptimeMillis();
+        if (mFirstPendingTime == 0) {
+            mFirstPendingTime = now;
+        }
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postAtTime(mFlushRunnable,
+                Math.min(now + FLUSH_DELAY_MS, mFirstPendingTime + MAX_FLUSH_DELAY_MS));
+    }
+
+    private String getValueLocked(String name) {
+        if (mValues == null) {
+            final SettingsSnapshot snapshot = getSnapshotLocked();
+            if (snapshot != null) {
+                if (mPendingPuts.containsKey(name)) {
+                    return mPendingPuts.get(name);
+                }
+                return mPendingDeletes.contains(name) ? null : snapshot.get(name);
+            }
+        }
+        return getValuesLocked().get(name);
+    }
+
+    private boolean containsLocked(String name) {
+        if (mValues == null) {
+            final SettingsSnapshot snapshot = getSnapshotLocked();
+            if (snapshot != null) {
+                if (mPendingPuts.containsKey(name)) {
+                    return true;
+                }
+                return !mPendingDeletes.contains(name) && snapshot.contains(name);
+            }
+        }
+        return getValuesLocked().containsKey(name);
+    }
+
+    private SettingsSnapshot getSnapshotLocked() {
+        if (!mSnapshotOpened) {
+            // Only the snapshot found on creation can match the database, later ones are
+            // written from memory
+            mSnapshotOpened = true;
+            mSnapshot = SettingsSnapshot.open(mSnapshotFile,
+                    LineageDatabaseHelper.DATABASE_VERSION);
+            if (LOCAL_LOGV && mSnapshot != null) Log.v(TAG, mTableName + ": using snapshot");
+        }
+        return mSnapshot;
+    }
+
+    private HashMap<String, String> getValuesLocked() {
+        if (mValues == null) {
+            setValuesLocked(readDatabase());
+        }
+        return mValues;
+    }
+
+    private TreeSet<String> getSortedNamesLocked() {
+        if (mSortedNames == null) {
+            mSortedNames = new TreeSet<String>(getValuesLocked().keySet());
+        }
+        return mSortedNames;
+    }
+
+    private void putLocked(String name, String value) {
+        // Until the table is loaded the pending writes are the in-memory copy
+        if (mValues != null) {
+            mValues.put(name, value);
+            if (mSortedNames != null) {
+                mSortedNames.add(name);
+            }
+        }
+    }
+
+    private void setValuesLocked(HashMap<String, String> values) {
+        // Writes made while the copy was dropped are not in the database yet
+        values.putAll(mPendingPuts);
+        for (int i = 0; i < mPendingDeletes.size(); i++) {
+            values.remove(mPendingDeletes.valueAt(i));
+        }
+        mValues = values;
+        mSortedNames = null;
+        mSnapshot = null;
+        mSnapshotOpened = true;
+        if (LOCAL_LOGV) Log.v(TAG, mTableName + ": loaded " + values.size() + " values");
+    }
+
+    /**
+     * Opens the database, which may create or upgrade it on first use. That is done as the
+     * provider rather than whichever caller happened to need it first.
+     */
+    private SQLiteDatabase openDatabase() {
+        final long oldId = Binder.clearCallingIdentity();
+        try {
+            return mDbHelper.getWritableDatabase();
+        } finally {
+            Binder.restoreCallingIdentity(oldId);
+        }
+    }
+
+    private HashMap<String, String> readDatabase() {
+        final HashMap<String, String> values = new HashMap<String, String>();
+        final Cursor cursor = openDatabase().query(mTableName,
+                new String[] { Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE },
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                values.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return values;
+    }
+}
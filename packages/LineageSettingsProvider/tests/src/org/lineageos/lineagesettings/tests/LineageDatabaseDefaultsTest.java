@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings.tests;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.UserInfo;
+import android.os.SystemClock;
+import android.os.UserManager;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import lineageos.providers.LineageSettings;
+
+/**
+ * Times the first read of a fresh user's settings through the provider, which creates the
+ * user's database and loads its defaults, and checks the defaults made it in.
+ */
+public class LineageDatabaseDefaultsTest extends AndroidTestCase {
+    private static final String TAG = "LineageDatabaseDefaultsTest";
+
+    // Every round creates and removes a user, so keep them few
+    private static final int ROUNDS = 3;
+
+    private ContentResolver mContentResolver;
+    private UserManager mUserManager;
+    private UserInfo mGuest;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContentResolver = getContext().getContentResolver();
+        mUserManager = (UserManager) getContext().getSystemService(Context.USER_SERVICE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        removeGuest();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testOnCreate() {
+        long totalNs = 0;
+        long bestNs = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            mGuest = mUserManager.createGuest(getContext(), "DefaultsTestGuest");
+            assertNotNull(mGuest);
+            try {
+                // Nothing opened the guest's database yet, the first read creates it
+                final long start = SystemClock.elapsedRealtimeNanos();
+                final String pulldown = LineageSettings.System.getStringForUser(mContentResolver,
+                        LineageSettings.System.STATUS_BAR_QUICK_QS_PULLDOWN, mGuest.id);
+                final long elapsedNs = SystemClock.elapsedRealtimeNanos() - start;
+                totalNs += elapsedNs;
+                bestNs = Math.min(bestNs, elapsedNs);
+
+                assertNotNull(pulldown);
+                assertNotNull(LineageSettings.Secure.getStringForUser(mContentResolver,
+                        LineageSettings.Secure.PROTECTED_COMPONENT_MANAGERS, mGuest.id));
+                assertNotNull(LineageSettings.Global.getString(mContentResolver,
+                        LineageSettings.Global.WEATHER_TEMPERATURE_UNIT));
+            } finally {
+                removeGuest();
+            }
+        }
+        Log.i(TAG, "onCreate: average " + totalNs / ROUNDS / 1000 + "us, best "
+                + bestNs / 1000 + "us");
+    }
+
+    private void removeGuest() {
+        if (mGuest != null) {
+            mUserManager.removeUser(mGuest.id);
+            mGuest = null;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.lineagesettings.tests;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Compares put/get latency and on-disk size of the version 14 table layout, in rollback journal
+ * mode, with the version 15 layout in WAL mode.
+ */
+public class LineageDatabaseLayoutTest extends AndroidTestCase {
+    private static final String TAG = "LineageDatabaseLayoutTest";
+
+    private static final String V14_TABLE_SQL = "CREATE TABLE system (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "name TEXT UNIQUE ON CONFLICT REPLACE," +
+            "value TEXT);";
+    private static final String V14_INDEX_SQL = "CREATE INDEX systemIndex1 ON system (name);";
+
+    private static final String V15_TABLE_SQL = "CREATE TABLE system (" +
+            "name TEXT PRIMARY KEY ON CONFLICT REPLACE," +
+            "value TEXT) WITHOUT ROWID;";
+
+    private static final int KEYS = 200;
+    private static final int ROUNDS = 5;
+
+    @MediumTest
+    public void testLayouts() {
+        final Result v14 = run("layout_v14.db", false, V14_TABLE_SQL, V14_INDEX_SQL);
+        final Result v15 = run("layout_v15.db", true, V15_TABLE_SQL);
+
+        Log.i(TAG, "v14: put " + v14.putNs / 1000 + "us, get " + v14.getNs / 1000
+                + "us, size " + v14.size + " bytes");
+        Log.i(TAG, "v15: put " + v15.putNs / 1000 + "us, get " + v15.getNs / 1000
+                + "us, size " + v15.size + " bytes");
+    }
+
+    private static final class Result {
+        long putNs;
+        long getNs;
+        long size;
+    }
+
+    private Result run(String name, boolean wal, String... schema) {
+        final File file = getContext().getDatabasePath(name);
+        SQLiteDatabase.deleteDatabase(file);
+        file.getParentFile().mkdirs();
+
+        final Result result = new Result();
+        final SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            if (wal) {
+                db.enableWriteAheadLogging();
+            }
+            for (String sql : schema) {
+                db.execSQL(sql);
+            }
+
+            final ContentValues row = new ContentValues(2);
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int i = 0; i < KEYS; i++) {
+                    // One transaction per put, like a single setting write
+                    row.put("name", "key" + i);
+                    row.put("value", Integer.toString(round));
+                    db.insert("system", null, row);
+                }
+            }
+            result.putNs = (SystemClock.elapsedRealtimeNanos() - start) / (ROUNDS * KEYS);
+
+            start = SystemClock.elapsedRealtimeNanos();
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int i = 0; i < KEYS; i++) {
+                    try (Cursor cursor = db.query("system", new String[] { "value" },
+                            "name = ?", new String[] { "key" + i }, null, null, null)) {
+                        assertTrue(cursor.moveToFirst());
+                        assertEquals(Integer.toString(ROUNDS - 1), cursor.getString(0));
+                    }
+                }
+            }
+            result.getNs = (SystemClock.elapsedRealtimeNanos() - start) / (ROUNDS * KEYS);
+
+            // Fold the log back in, so both layouts are measured as they'd sit on disk
+            if (wal) {
+                db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE);", null).close();
+            }
+        } finally {
+            db.close();
+        }
+        result.size = file.length();
+        SQLiteDatabase.deleteDatabase(file);
+        return result;
+    }
+}
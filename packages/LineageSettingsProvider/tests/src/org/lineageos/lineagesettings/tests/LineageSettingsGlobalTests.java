@@ -114,6 +114,22 @@ public class LineageSettingsGlobalTests extends AndroidTestCase {
         assertEquals(expectedStringValue, actualValue);
     }
 
+    @SmallTest
+    public void testStrings() {
+        final String[] names = new String[] {
+                LineageSettings.Global.__MAGICAL_TEST_PASSING_ENABLER, UNREALISTIC_SETTING };
+        final String[] expectedValues = new String[] { "5", "6" };
+        assertTrue(LineageSettings.Global.putStrings(mContentResolver, names, expectedValues));
+
+        final String[] actualValues = LineageSettings.Global.getStrings(mContentResolver, names);
+        assertEquals(expectedValues.length, actualValues.length);
+        for (int i = 0; i < expectedValues.length; i++) {
+            assertEquals(expectedValues[i], actualValues[i]);
+        }
+
+        LineageSettings.Global.putString(mContentResolver, UNREALISTIC_SETTING, null);
+    }
+
     @SmallTest
     public void testGetUri() {
         final Uri expectedUri = Uri.withAppendedPath(LineageSettings.Global.CONTENT_URI,
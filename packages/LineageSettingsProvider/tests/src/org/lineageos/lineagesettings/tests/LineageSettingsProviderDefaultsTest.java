@@ -72,6 +72,18 @@ public class LineageSettingsProviderDefaultsTest extends AndroidTestCase {
         SYSTEM_SETTINGS_DEFAULTS.add(new Setting(
                 LineageSettings.System.FORCE_SHOW_NAVBAR,
                 "R.integer.def_force_show_navbar"));
+        SYSTEM_SETTINGS_DEFAULTS.add(new Setting(
+                LineageSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL,
+                "R.integer.def_battery_brightness_level"));
+        SYSTEM_SETTINGS_DEFAULTS.add(new Setting(
+                LineageSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                "R.integer.def_battery_brightness_level_zen"));
+        SYSTEM_SETTINGS_DEFAULTS.add(new Setting(
+                LineageSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                "R.integer.def_notification_brightness_level_zen"));
+        SYSTEM_SETTINGS_DEFAULTS.add(new Setting(
+                LineageSettings.System.STATUS_BAR_CLOCK,
+                "R.integer.def_clock_position"));
     }
 
     //SECURE
@@ -85,6 +97,9 @@ public class LineageSettingsProviderDefaultsTest extends AndroidTestCase {
         SECURE_SETTINGS_DEFAULTS.add(new Setting(
                 LineageSettings.Secure.LOCKSCREEN_VISUALIZER_ENABLED,
                 "R.bool.def_lockscreen_visualizer"));
+        SECURE_SETTINGS_DEFAULTS.add(new Setting(
+                LineageSettings.Secure.VOLUME_PANEL_ON_LEFT,
+                "R.bool.def_volume_panel_on_left"));
         SECURE_SETTINGS_DEFAULTS.add(new Setting(
                 LineageSettings.Secure.PROTECTED_COMPONENT_MANAGERS,
                 "R.string.def_protected_component_managers"));
@@ -32,6 +32,9 @@ import android.text.TextUtils;
 
 import lineageos.providers.LineageSettings;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -179,6 +182,43 @@ import java.util.Map;
          }
      }
 
+     @MediumTest
+     public void testListPagesAndDump() throws IOException {
+         for (Map.Entry<String, String> kVPair : sMap.entrySet()) {
+             LineageSettings.Global.putString(mContentResolver, kVPair.getKey(),
+                     kVPair.getValue());
+         }
+
+         try {
+             // Pages come in name order and end with a null token
+             final ArrayList<String> names = new ArrayList<String>();
+             final ArrayList<String> values = new ArrayList<String>();
+             String token = LineageSettings.Global.listPage(mContentResolver, "testKey", null, 2,
+                     names, values);
+             assertNotNull(token);
+             assertEquals(2, names.size());
+             token = LineageSettings.Global.listPage(mContentResolver, "testKey", token, 2,
+                     names, values);
+             assertNull(token);
+             assertEquals(new ArrayList<String>(sMap.keySet()), names);
+             assertEquals(new ArrayList<String>(sMap.values()), values);
+
+             final HashMap<String, String> dumped = new HashMap<String, String>();
+             try (LineageSettings.SettingsDumpReader reader =
+                     LineageSettings.Global.openDump(mContentResolver, "testKey")) {
+                 while (reader.next()) {
+                     dumped.put(reader.getName(), reader.getValue());
+                 }
+             }
+             assertEquals(sMap, dumped);
+         } finally {
+             for (String key : sMap.keySet()) {
+                 mContentResolver.delete(LineageSettings.Global.CONTENT_URI,
+                         Settings.NameValueTable.NAME + " = ?", new String[]{ key });
+             }
+         }
+     }
+
      @MediumTest
      public void testInsertUpdateDeleteSuccess() {
          //testInsertUpdateDeleteForUri(LineageSettings.System.CONTENT_URI);
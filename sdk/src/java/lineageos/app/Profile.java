@@ -75,6 +75,9 @@ public final class Profile implements Parcelable, Comparable {
 
     private boolean mDirty;
 
+    // XML form as of the last getXmlString(), reused until the profile is dirty again
+    private String mXmlString;
+
     private static final String TAG = "Profile";
 
     private int mProfileType;
@@ -482,6 +485,7 @@ public final class Profile implements Parcelable, Comparable {
     public void removeProfileGroup(UUID uuid) {
         if (!profileGroups.get(uuid).isDefaultGroup()) {
             profileGroups.remove(uuid);
+            mDirty = true;
         } else {
             Log.e(TAG, "Cannot remove default group: " + uuid);
         }
@@ -953,11 +957,27 @@ public final class Profile implements Parcelable, Comparable {
         if (mBrightness.isDirty()) {
             return true;
         }
+        if (mScreenLockMode != null && mScreenLockMode.isDirty()) {
+            return true;
+        }
         return false;
     }
 
-    /** @hide */
+    /**
+     * Appends the XML form of this profile, only serializing it again if it changed since the
+     * last call.
+     * @hide
+     */
     public void getXmlString(StringBuilder builder, Context context) {
+        if (mXmlString == null || isDirty()) {
+            final StringBuilder xml = new StringBuilder();
+            writeXmlString(xml, context);
+            mXmlString = xml.toString();
+        }
+        builder.append(mXmlString);
+    }
+
+    private void writeXmlString(StringBuilder builder, Context context) {
         builder.append("<profile ");
         if (mNameResId > 0) {
             builder.append("nameres=\"");
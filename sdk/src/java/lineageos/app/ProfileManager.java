@@ -530,6 +530,22 @@ public class ProfileManager {
         return null;
     }
 
+    /**
+     * Get the NotificationGroups for several packages in one go
+     * @param pkgs names of the packages
+     * @return the group of each package, in the same order, null where a package is in no
+     *     group. Null if the groups could not be looked up.
+     * @hide
+     */
+    public NotificationGroup[] getNotificationGroupsForPackages(String[] pkgs) {
+        try {
+            return getService().getNotificationGroupsForPackages(pkgs);
+        } catch (RemoteException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+        return null;
+    }
+
     /**
      * Get a NotificationGroup from the available list via {@link UUID}
      * @param uuid {@link UUID} of the notification group
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lineageos.app;
+
+import android.app.NotificationGroup;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.ParcelUuid;
+
+import lineageos.os.Concierge;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Binary on-disk form of the profiles and notification groups, which loads a lot faster than
+ * the XML form.
+ *
+ * The profiles and groups are stored in their parcel layout, which {@link Profile} already
+ * versions through the {@link Concierge}. Parcels aren't meant to outlive the platform that
+ * wrote them though, so a store written by another build is ignored and the caller falls back
+ * to the XML form.
+ *
+ * @hide
+ */
+public final class ProfileStore {
+
+    private static final int MAGIC = 0x4c505246; // "LPRF"
+    private static final int FORMAT_VERSION = 1;
+
+    private final UUID mActiveProfile;
+    private final List<Profile> mProfiles;
+    private final List<NotificationGroup> mGroups;
+
+    /**
+     * @param activeProfile The {@link UUID} of the active profile, may be null
+     * @param profiles The profiles to store
+     * @param groups The notification groups to store
+     */
+    public ProfileStore(UUID activeProfile, Collection<Profile> profiles,
+            Collection<NotificationGroup> groups) {
+        mActiveProfile = activeProfile;
+        mProfiles = new ArrayList<Profile>(profiles);
+        mGroups = new ArrayList<NotificationGroup>(groups);
+    }
+
+    /**
+     * @return The {@link UUID} of the active profile, or null if none was stored
+     */
+    public UUID getActiveProfile() {
+        return mActiveProfile;
+    }
+
+    /**
+     * @return The stored profiles
+     */
+    public List<Profile> getProfiles() {
+        return mProfiles;
+    }
+
+    /**
+     * @return The stored notification groups
+     */
+    public List<NotificationGroup> getNotificationGroups() {
+        return mGroups;
+    }
+
+    /**
+     * Writes the store to a stream. The stream is flushed but not closed.
+     * @param out The stream to write to
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        final byte[] data;
+        final Parcel parcel = Parcel.obtain();
+        try {
+            if (mActiveProfile != null) {
+                parcel.writeInt(1);
+                new ParcelUuid(mActiveProfile).writeToParcel(parcel, 0);
+            } else {
+                parcel.writeInt(0);
+            }
+            parcel.writeInt(mProfiles.size());
+            for (Profile profile : mProfiles) {
+                profile.writeToParcel(parcel, 0);
+            }
+            parcel.writeInt(mGroups.size());
+            for (NotificationGroup group : mGroups) {
+                group.writeToParcel(parcel, 0);
+            }
+            data = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+
+        final DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeInt(FORMAT_VERSION);
+        dos.writeInt(Concierge.PARCELABLE_VERSION);
+        dos.writeUTF(Build.FINGERPRINT);
+        dos.writeInt(data.length);
+        dos.write(data);
+        dos.flush();
+    }
+
+    /**
+     * Reads a store written by {@link #writeTo(OutputStream)}.
+     * @param in The stream to read from, which is left open
+     * @return The store, or null if it was written by another build or format version
+     * @throws IOException if the stream can't be read or is corrupt
+     */
+    public static ProfileStore readFrom(InputStream in) throws IOException {
+        final DataInputStream dis = new DataInputStream(in);
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("Not a profile store");
+        }
+        if (dis.readInt() != FORMAT_VERSION
+                || dis.readInt() != Concierge.PARCELABLE_VERSION
+                || !Build.FINGERPRINT.equals(dis.readUTF())) {
+            return null;
+        }
+        final int length = dis.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt profile store");
+        }
+        final byte[] data = new byte[length];
+        dis.readFully(data);
+
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, length);
+            parcel.setDataPosition(0);
+
+            UUID activeProfile = null;
+            if (parcel.readInt() != 0) {
+                activeProfile = ParcelUuid.CREATOR.createFromParcel(parcel).getUuid();
+            }
+            final int profileCount = parcel.readInt();
+            final List<Profile> profiles = new ArrayList<Profile>(profileCount);
+            for (int i = 0; i < profileCount; i++) {
+                profiles.add(Profile.CREATOR.createFromParcel(parcel));
+            }
+            final int groupCount = parcel.readInt();
+            final List<NotificationGroup> groups = new ArrayList<NotificationGroup>(groupCount);
+            for (int i = 0; i < groupCount; i++) {
+                groups.add(NotificationGroup.CREATOR.createFromParcel(parcel));
+            }
+            return new ProfileStore(activeProfile, profiles, groups);
+        } catch (RuntimeException e) {
+            // Parcel reports a truncated or mangled buffer with runtime exceptions
+            throw new IOException("Corrupt profile store", e);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
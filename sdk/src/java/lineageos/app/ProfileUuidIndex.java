@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package lineageos.app;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Resolves both the primary and the secondary {@link UUID}s of a set of profiles to the
+ * profile, with a single map lookup.
+ *
+ * A primary UUID always wins over a secondary one. When several profiles list the same
+ * secondary UUID, the profile added first wins, and the next one takes over once it is
+ * removed.
+ *
+ * @hide
+ */
+public final class ProfileUuidIndex {
+
+    // Profiles by primary UUID
+    private final HashMap<UUID, Profile> mProfiles;
+    // Profiles listing a secondary UUID, in the order they were added
+    private final HashMap<UUID, ArrayList<Profile>> mSecondaryOwners;
+    // What each UUID resolves to
+    private final HashMap<UUID, Profile> mIndex;
+
+    public ProfileUuidIndex() {
+        mProfiles = new HashMap<UUID, Profile>();
+        mSecondaryOwners = new HashMap<UUID, ArrayList<Profile>>();
+        mIndex = new HashMap<UUID, Profile>();
+    }
+
+    /**
+     * Creates a copy of an index, which can be changed without affecting the original
+     * @param other the index to copy
+     */
+    public ProfileUuidIndex(ProfileUuidIndex other) {
+        mProfiles = new HashMap<UUID, Profile>(other.mProfiles);
+        mSecondaryOwners = new HashMap<UUID, ArrayList<Profile>>(other.mSecondaryOwners.size());
+        for (Map.Entry<UUID, ArrayList<Profile>> entry : other.mSecondaryOwners.entrySet()) {
+            mSecondaryOwners.put(entry.getKey(), new ArrayList<Profile>(entry.getValue()));
+        }
+        mIndex = new HashMap<UUID, Profile>(other.mIndex);
+    }
+
+    /**
+     * Adds a profile, replacing any profile with the same primary {@link UUID}
+     * @param profile the profile to add
+     */
+    public void put(Profile profile) {
+        final UUID uuid = profile.getUuid();
+        final Profile old = mProfiles.put(uuid, profile);
+        if (old != null) {
+            removeSecondaryUuids(old);
+        }
+        for (UUID secondary : profile.getSecondaryUuids()) {
+            ArrayList<Profile> owners = mSecondaryOwners.get(secondary);
+            if (owners == null) {
+                owners = new ArrayList<Profile>(1);
+                mSecondaryOwners.put(secondary, owners);
+            }
+            if (!owners.contains(profile)) {
+                owners.add(profile);
+            }
+            resolve(secondary);
+        }
+        resolve(uuid);
+    }
+
+    /**
+     * Removes a profile
+     * @param uuid the primary {@link UUID} of the profile
+     * @return the removed profile, or null if there was none
+     */
+    public Profile remove(UUID uuid) {
+        final Profile old = mProfiles.remove(uuid);
+        if (old != null) {
+            removeSecondaryUuids(old);
+            resolve(uuid);
+        }
+        return old;
+    }
+
+    /**
+     * Looks up a profile by its primary or any of its secondary {@link UUID}s
+     * @param uuid the {@link UUID} to look up
+     * @return the profile, or null if no profile has that {@link UUID}
+     */
+    public Profile get(UUID uuid) {
+        return mIndex.get(uuid);
+    }
+
+    private void removeSecondaryUuids(Profile profile) {
+        for (UUID secondary : profile.getSecondaryUuids()) {
+            final ArrayList<Profile> owners = mSecondaryOwners.get(secondary);
+            if (owners != null) {
+                owners.remove(profile);
+                if (owners.isEmpty()) {
+                    mSecondaryOwners.remove(secondary);
+                }
+            }
+            resolve(secondary);
+        }
+    }
+
+    private void resolve(UUID uuid) {
+        Profile profile = mProfiles.get(uuid);
+        if (profile == null) {
+            final ArrayList<Profile> owners = mSecondaryOwners.get(uuid);
+            if (owners != null) {
+                profile = owners.get(0);
+            }
+        }
+        if (profile != null) {
+            mIndex.put(uuid, profile);
+        } else {
+            mIndex.remove(uuid);
+        }
+    }
+}
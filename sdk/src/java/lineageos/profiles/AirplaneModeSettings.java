@@ -182,6 +182,7 @@ public final class AirplaneModeSettings implements Parcelable {
         builder.append("</value>\n<override>");
         builder.append(mOverride);
         builder.append("</override>\n</airplaneModeDescriptor>\n");
+        mDirty = false;
     }
 
     @Override
@@ -179,6 +179,7 @@ public final class BrightnessSettings implements Parcelable {
         builder.append("</value>\n<override>");
         builder.append(mOverride);
         builder.append("</override>\n</brightnessDescriptor>\n");
+        mDirty = false;
     }
 
     @Override
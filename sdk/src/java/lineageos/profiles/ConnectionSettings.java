@@ -434,6 +434,7 @@ public final class ConnectionSettings implements Parcelable {
             }
         }
         builder.append("</connectionDescriptor>\n");
+        mDirty = false;
     }
 
     @Override
@@ -138,6 +138,7 @@ public final class LockSettings implements Parcelable {
     /** @hide */
     public void writeXmlString(StringBuilder builder, Context context) {
         builder.append(mValue);
+        mDirty = false;
     }
 
     @Override
@@ -171,6 +171,7 @@ public final class RingModeSettings implements Parcelable {
         builder.append("</value>\n<override>");
         builder.append(mOverride);
         builder.append("</override>\n</ringModeDescriptor>\n");
+        mDirty = false;
     }
 
     @Override
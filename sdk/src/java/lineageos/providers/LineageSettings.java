@@ -19,8 +19,11 @@ package lineageos.providers;
 
 import com.android.internal.util.ArrayUtils;
 
+import android.app.ActivityManager;
+import android.app.ActivityThread;
 import android.content.ContentResolver;
 import android.content.IContentProvider;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
@@ -30,18 +33,27 @@ import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.AndroidException;
-import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.MemoryIntArray;
 
 import com.android.internal.util.ArrayUtils;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import lineageos.trust.TrustInterface;
@@ -98,6 +110,77 @@ public final class LineageSettings {
      */
     public static final String CALL_METHOD_USER_KEY = "_user";
 
+    /**
+     * @hide - Boolean argument extra to the fast-path call()-based get requests asking for the
+     * generation slot of the requested key
+     */
+    public static final String CALL_METHOD_TRACK_GENERATION_KEY = "_track_generation";
+
+    /**
+     * @hide - Boolean argument extra to the fast-path call()-based get requests asking for the
+     * shared generation array itself, which a client only needs once
+     */
+    public static final String CALL_METHOD_NEED_GENERATION_ARRAY_KEY = "_need_generation_array";
+
+    /**
+     * @hide - Result extra holding the shared {@link android.util.MemoryIntArray} of generations
+     */
+    public static final String CALL_METHOD_GENERATION_ARRAY_KEY = "_generation_array";
+
+    /**
+     * @hide - Result extra holding the epoch of the shared generation array, sent along with it
+     */
+    public static final String CALL_METHOD_GENERATION_EPOCH_KEY = "_generation_epoch";
+
+    /**
+     * @hide - System property holding the epoch of the provider's current generation array. It
+     * changes whenever the provider replaces the array, after which older arrays are no longer
+     * updated and can't be trusted.
+     */
+    public static final String SYS_PROP_GENERATION_EPOCH = "sys.lineage_settings_generation_epoch";
+
+    /**
+     * @hide - Result extra holding the index of the key's slot in the generation array
+     */
+    public static final String CALL_METHOD_GENERATION_INDEX_KEY = "_generation_index";
+
+    /**
+     * @hide - Result extra holding the generation the returned value was read at
+     */
+    public static final String CALL_METHOD_GENERATION_KEY = "_generation";
+
+    /**
+     * @hide - String argument extra to the call()-based list requests restricting the listing
+     * to the keys starting with it
+     */
+    public static final String CALL_METHOD_PREFIX_KEY = "_prefix";
+
+    /**
+     * @hide - Result extra of the call()-based list requests holding the listed names, when
+     * generation tracking was requested. Also the argument extra of the call()-based multi
+     * get and put requests holding the requested names.
+     */
+    public static final String CALL_METHOD_LIST_NAMES_KEY = "_names";
+
+    /**
+     * @hide - Result extra of the call()-based list and multi get requests holding the values,
+     * parallel to {@link #CALL_METHOD_LIST_NAMES_KEY}. Also the argument extra of the
+     * call()-based multi put requests holding the new values.
+     */
+    public static final String CALL_METHOD_LIST_VALUES_KEY = "_values";
+
+    /**
+     * @hide - Result extra of the call()-based list requests holding the generation slot index
+     * of each listed key, parallel to {@link #CALL_METHOD_LIST_NAMES_KEY}
+     */
+    public static final String CALL_METHOD_LIST_GENERATION_INDICES_KEY = "_generation_indices";
+
+    /**
+     * @hide - Result extra of the call()-based list requests holding the generation each listed
+     * value was read at, parallel to {@link #CALL_METHOD_LIST_NAMES_KEY}
+     */
+    public static final String CALL_METHOD_LIST_GENERATIONS_KEY = "_generations";
+
     /**
      * @hide - Private call() method on SettingsProvider to read from 'system' table.
      */
@@ -168,48 +251,552 @@ public final class LineageSettings {
      */
     public static final String CALL_METHOD_DELETE_GLOBAL = "DELETE_global";
 
+    /**
+     * @hide - Private call() method to read several entries of the system table at once
+     */
+    public static final String CALL_METHOD_GET_MULTI_SYSTEM = "GET_MULTI_system";
+
+    /**
+     * @hide - Private call() method to read several entries of the secure table at once
+     */
+    public static final String CALL_METHOD_GET_MULTI_SECURE = "GET_MULTI_secure";
+
+    /**
+     * @hide - Private call() method to read several entries of the global table at once
+     */
+    public static final String CALL_METHOD_GET_MULTI_GLOBAL = "GET_MULTI_global";
+
+    /**
+     * @hide - Private call() method to write several entries of the system table at once
+     */
+    public static final String CALL_METHOD_PUT_MULTI_SYSTEM = "PUT_MULTI_system";
+
+    /**
+     * @hide - Private call() method to write several entries of the secure table at once
+     */
+    public static final String CALL_METHOD_PUT_MULTI_SECURE = "PUT_MULTI_secure";
+
+    /**
+     * @hide - Private call() method to write several entries of the global table at once
+     */
+    public static final String CALL_METHOD_PUT_MULTI_GLOBAL = "PUT_MULTI_global";
+
+    /**
+     * @hide - Int argument extra to the call()-based list requests asking for at most that many
+     * entries, in name order, instead of the whole table
+     */
+    public static final String CALL_METHOD_PAGE_SIZE_KEY = "_page_size";
+
+    /**
+     * @hide - Argument and result extra of the paged call()-based list requests. The result holds
+     * the token to pass back for the next page, and is absent on the last page.
+     */
+    public static final String CALL_METHOD_PAGE_TOKEN_KEY = "_page_token";
+
+    /**
+     * @hide - Mime type of the streamed dump of a settings table, opened through
+     * {@link ContentResolver#openTypedAssetFileDescriptor} on the table uri. The options may
+     * hold {@link #CALL_METHOD_PREFIX_KEY}. See {@link SettingsDumpReader} for the format.
+     */
+    public static final String DUMP_MIME_TYPE = "application/vnd.lineageos.settings-dump";
+
+    /**
+     * @hide - Private call() method returning the provider's access metrics, which requires
+     * {@link android.Manifest.permission#DUMP}. Counts only cover the sampled accesses.
+     */
+    public static final String CALL_METHOD_GET_METRICS = "GET_METRICS";
+
+    /**
+     * @hide - Int argument and result extra of {@link #CALL_METHOD_GET_METRICS}: one access in
+     * that many is recorded, 0 turns recording off
+     */
+    public static final String CALL_METHOD_METRICS_SAMPLING_KEY = "_metrics_sampling";
+
+    /**
+     * @hide - Boolean argument extra of {@link #CALL_METHOD_GET_METRICS} clearing the metrics
+     * once returned
+     */
+    public static final String CALL_METHOD_METRICS_RESET_KEY = "_metrics_reset";
+
+    /**
+     * @hide - Int array result extra of {@link #CALL_METHOD_GET_METRICS} holding the calling
+     * uids seen, -1 standing for the uids that didn't fit
+     */
+    public static final String CALL_METHOD_METRICS_UIDS_KEY = "_metrics_uids";
+
+    /**
+     * @hide - Long array result extra of {@link #CALL_METHOD_GET_METRICS} holding, for each uid
+     * in turn, its reads, writes and total latency in microseconds
+     */
+    public static final String CALL_METHOD_METRICS_UID_COUNTS_KEY = "_metrics_uid_counts";
+
+    /**
+     * @hide - Long array result extra of {@link #CALL_METHOD_GET_METRICS} holding, for the
+     * system, secure and global tables in turn, their reads, writes, and reads served from
+     * memory and from the snapshot or database
+     */
+    public static final String CALL_METHOD_METRICS_TABLE_COUNTS_KEY = "_metrics_table_counts";
+
+    /**
+     * @hide - String array result extra of {@link #CALL_METHOD_GET_METRICS} holding the keys
+     * seen, as table/name
+     */
+    public static final String CALL_METHOD_METRICS_KEYS_KEY = "_metrics_keys";
+
+    /**
+     * @hide - Long array result extra of {@link #CALL_METHOD_GET_METRICS} holding, for each key
+     * in turn, its reads and writes
+     */
+    public static final String CALL_METHOD_METRICS_KEY_COUNTS_KEY = "_metrics_key_counts";
+
+    /**
+     * @hide - String array result extra of {@link #CALL_METHOD_GET_METRICS} naming the
+     * operations latencies are recorded for
+     */
+    public static final String CALL_METHOD_METRICS_OPS_KEY = "_metrics_ops";
+
+    /**
+     * @hide - Long array result extra of {@link #CALL_METHOD_GET_METRICS} holding, for each
+     * operation in turn, a latency histogram whose bucket i counts latencies below 2^i
+     * microseconds, the last bucket taking everything above
+     */
+    public static final String CALL_METHOD_METRICS_LATENCY_KEY = "_metrics_latency";
+
     // endregion
 
+    /**
+     * Returns the number of settings reads in this process that were served from a client-side
+     * cache instead of a call to the provider.
+     * @hide
+     */
+    public static long getAvoidedBinderCallCount() {
+        return NameValueCache.getAvoidedBinderCalls();
+    }
+
+    /**
+     * Reads a streamed dump of a settings table one entry at a time, so tables of any size can be
+     * walked with bounded memory. Each entry is the UTF-8 encoded name and value, each prefixed
+     * by its length in bytes as a big-endian int, with -1 standing for a null value. A name
+     * length of -1 ends the stream.
+     * @hide
+     */
+    public static final class SettingsDumpReader implements Closeable {
+        private static final int END_OF_DUMP = -1;
+
+        private final DataInputStream mIn;
+        private byte[] mBuffer = new byte[256];
+        private String mName;
+        private String mValue;
+
+        private SettingsDumpReader(AssetFileDescriptor fd) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(fd.createInputStream()));
+        }
+
+        /**
+         * Opens a dump of a settings table.
+         * @param resolver to access the provider with
+         * @param tableUri the content uri of the table to dump
+         * @param prefix to filter names with, or null for the whole table
+         * @return a reader positioned before the first entry
+         * @throws IOException if the dump can't be opened
+         */
+        public static SettingsDumpReader open(ContentResolver resolver, Uri tableUri,
+                String prefix) throws IOException {
+            Bundle opts = null;
+            if (prefix != null) {
+                opts = new Bundle();
+                opts.putString(CALL_METHOD_PREFIX_KEY, prefix);
+            }
+            final AssetFileDescriptor fd = resolver.openTypedAssetFileDescriptor(tableUri,
+                    DUMP_MIME_TYPE, opts);
+            if (fd == null) {
+                throw new FileNotFoundException("No dump available for " + tableUri);
+            }
+            return new SettingsDumpReader(fd);
+        }
+
+        /**
+         * Moves to the next entry.
+         * @return false once every entry was read
+         */
+        public boolean next() throws IOException {
+            mName = readString();
+            mValue = (mName != null) ? readString() : null;
+            return mName != null;
+        }
+
+        /** @return the name of the current entry */
+        public String getName() {
+            return mName;
+        }
+
+        /** @return the value of the current entry, which may be null */
+        public String getValue() {
+            return mValue;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+
+        private String readString() throws IOException {
+            final int length = mIn.readInt();
+            if (length == END_OF_DUMP) {
+                return null;
+            }
+            if (length > mBuffer.length) {
+                mBuffer = new byte[Math.max(length, mBuffer.length * 2)];
+            }
+            mIn.readFully(mBuffer, 0, length);
+            return new String(mBuffer, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Writes a single entry of a dump.
+         * @param out to write to
+         * @param name of the entry
+         * @param value of the entry, which may be null
+         */
+        public static void writeEntry(DataOutputStream out, String name, String value)
+                throws IOException {
+            writeString(out, name);
+            writeString(out, value);
+        }
+
+        /**
+         * Writes the end of a dump.
+         * @param out to write to
+         */
+        public static void writeEnd(DataOutputStream out) throws IOException {
+            out.writeInt(END_OF_DUMP);
+        }
+
+        private static void writeString(DataOutputStream out, String string)
+                throws IOException {
+            if (string == null) {
+                out.writeInt(END_OF_DUMP);
+                return;
+            }
+            final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
     // Thread-safe.
     private static class NameValueCache {
-        private final String mVersionSystemProperty;
         private final Uri mUri;
 
         private static final String[] SELECT_VALUE_PROJECTION =
                 new String[] { Settings.NameValueTable.VALUE };
         private static final String NAME_EQ_PLACEHOLDER = "name=?";
 
-        // Must synchronize on 'this' to access mValues and mValuesVersion.
-        private final HashMap<String, String> mValues = new HashMap<String, String>();
-        private long mValuesVersion = 0;
+        // Read-mostly caches, one per resolved user id. Readers never take a lock; every entry
+        // carries the generation slot and generation it was read at, so a change only drops
+        // the entries of the keys it touched instead of flushing the whole table.
+        private final ConcurrentHashMap<Integer, UserCache> mUserCaches =
+                new ConcurrentHashMap<Integer, UserCache>();
 
-        // Initially null; set lazily and held forever.  Synchronized on 'this'.
-        private IContentProvider mContentProvider = null;
+        // Shared memory generation counters published by the provider, covering every user.
+        // Set lazily from the first tracked response and dropped if it ever becomes unreadable
+        // or the provider replaces it.
+        private volatile MemoryIntArray mGenerations = null;
+        // The epoch mGenerations belongs to, written before it
+        private volatile long mGenerationsEpoch;
+
+        // Looked up once the provider first published an epoch
+        private static volatile SystemProperties.Handle sEpochHandle;
+
+        // Initially null; set lazily and held forever.
+        private volatile IContentProvider mContentProvider = null;
+
+        // Number of reads served locally by any cache in this process
+        private static final AtomicLong sAvoidedBinderCalls = new AtomicLong();
 
         // The method we'll call (or null, to not use) on the provider
         // for the fast path of retrieving settings.
         private final String mCallGetCommand;
         private final String mCallSetCommand;
+        private final String mCallListCommand;
+        private final String mCallGetMultiCommand;
+        private final String mCallPutMultiCommand;
+
+        /**
+         * Immutable cache entry. A null value is a valid entry -- negative caching.
+         */
+        private static final class CachedValue {
+            final String value;
+            final int index;
+            final int generation;
+
+            CachedValue(String value, int index, int generation) {
+                this.value = value;
+                this.index = index;
+                this.generation = generation;
+            }
+        }
+
+        /**
+         * Cached values of a single user.
+         */
+        private static final class UserCache {
+            final ConcurrentHashMap<String, CachedValue> values =
+                    new ConcurrentHashMap<String, CachedValue>();
+
+            // Prefixes, "" for the whole table, that were listed in full. Each maps to the table
+            // generation at that time; as long as it holds, keys under the prefix that are not
+            // in values are known to be absent.
+            final ConcurrentHashMap<String, CachedValue> filledPrefixes =
+                    new ConcurrentHashMap<String, CachedValue>();
+
+            // Whether the whole table was already loaded in bulk on a first cache miss
+            final AtomicBoolean fillAttempted = new AtomicBoolean();
+        }
 
-        public NameValueCache(String versionSystemProperty, Uri uri,
-                String getCommand, String setCommand) {
-            mVersionSystemProperty = versionSystemProperty;
+        public NameValueCache(Uri uri, String getCommand, String setCommand,
+                String listCommand, String getMultiCommand, String putMultiCommand) {
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
+            mCallListCommand = listCommand;
+            mCallGetMultiCommand = getMultiCommand;
+            mCallPutMultiCommand = putMultiCommand;
+        }
+
+        /**
+         * @return The number of reads served from a client-side cache in this process.
+         */
+        public static long getAvoidedBinderCalls() {
+            return sAvoidedBinderCalls.get();
         }
 
         private IContentProvider lazyGetProvider(ContentResolver cr) {
-            IContentProvider cp;
-            synchronized (this) {
-                cp = mContentProvider;
-                if (cp == null) {
-                    cp = mContentProvider = cr.acquireProvider(mUri.getAuthority());
+            IContentProvider cp = mContentProvider;
+            if (cp == null) {
+                synchronized (this) {
+                    cp = mContentProvider;
+                    if (cp == null) {
+                        cp = mContentProvider = cr.acquireProvider(mUri.getAuthority());
+                    }
                 }
             }
             return cp;
         }
 
+        /**
+         * Resolves the user whose cache a read should go through.
+         * @param userId The user id passed by the caller, possibly a special one.
+         * @return The resolved user id, or {@link UserHandle#USER_NULL} if the read can't be
+         *     cached.
+         */
+        private static int resolveCacheUserId(int userId) {
+            if (userId >= 0) {
+                return userId;
+            }
+            if (userId == UserHandle.USER_CURRENT || userId == UserHandle.USER_CURRENT_OR_SELF) {
+                // The activity manager is local to the system server, anywhere else resolving
+                // the current user would cost as much as the read itself. Apps sharing the
+                // system uid run in their own processes, so the uid doesn't tell.
+                if (ActivityThread.isSystem()) {
+                    return ActivityManager.getCurrentUser();
+                }
+            }
+            return UserHandle.USER_NULL;
+        }
+
+        private UserCache getUserCache(int userId) {
+            UserCache cache = mUserCaches.get(userId);
+            if (cache == null) {
+                final UserCache newCache = new UserCache();
+                cache = mUserCaches.putIfAbsent(userId, newCache);
+                if (cache == null) {
+                    cache = newCache;
+                }
+            }
+            return cache;
+        }
+
+        /**
+         * Checks whether a cached value is still current, which is a single read of its slot in
+         * the shared generation array.
+         * @param cached The cache entry to check.
+         * @return Whether the key has not changed since the entry was read.
+         */
+        private boolean isCurrent(CachedValue cached) {
+            final MemoryIntArray generations = mGenerations;
+            if (generations == null) {
+                return false;
+            }
+            if (getGenerationEpoch() != mGenerationsEpoch) {
+                // The provider replaced the array, this one isn't bumped anymore
+                dropGenerations(generations);
+                return false;
+            }
+            try {
+                return generations.get(cached.index) == cached.generation;
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading generation of " + mUri, e);
+                dropGenerations(generations);
+                return false;
+            }
+        }
+
+        /**
+         * Caches a value using the generation data the provider returned along with it. Values
+         * returned without generation data are not cached, since there is no way to tell when
+         * they become stale.
+         * @param cache The cache of the user the value belongs to.
+         * @param name The name of the key.
+         * @param value The value read from the provider.
+         * @param b The provider's response.
+         */
+        private void cacheValue(UserCache cache, String name, String value, Bundle b) {
+            setGenerations(b);
+            final int index = b.getInt(CALL_METHOD_GENERATION_INDEX_KEY, -1);
+            if (index < 0 || mGenerations == null) {
+                return;
+            }
+            cache.values.put(name, new CachedValue(value, index,
+                    b.getInt(CALL_METHOD_GENERATION_KEY)));
+        }
+
+        private void setGenerations(Bundle b) {
+            final MemoryIntArray array = b.getParcelable(CALL_METHOD_GENERATION_ARRAY_KEY);
+            if (array == null) {
+                return;
+            }
+            synchronized (this) {
+                if (mGenerations == null) {
+                    mGenerationsEpoch = b.getLong(CALL_METHOD_GENERATION_EPOCH_KEY);
+                    mGenerations = array;
+                    return;
+                }
+            }
+            // Another thread got there first, the duplicate is not needed
+            closeQuietly(array);
+        }
+
+        private void dropGenerations(MemoryIntArray generations) {
+            synchronized (this) {
+                if (mGenerations != generations) {
+                    return;
+                }
+                mGenerations = null;
+                mUserCaches.clear();
+            }
+            closeQuietly(generations);
+        }
+
+        private static long getGenerationEpoch() {
+            SystemProperties.Handle handle = sEpochHandle;
+            if (handle == null) {
+                handle = SystemProperties.find(SYS_PROP_GENERATION_EPOCH);
+                if (handle == null) {
+                    return 0;
+                }
+                sEpochHandle = handle;
+            }
+            return handle.getLong(0);
+        }
+
+        private static void closeQuietly(MemoryIntArray array) {
+            try {
+                array.close();
+            } catch (IOException e) {
+                // Nothing else to do with it
+            }
+        }
+
+        /**
+         * Checks whether a key is known to be absent, because it falls under a prefix that was
+         * listed in full and the table has not changed since.
+         * @param cache The cache of the user to check.
+         * @param name The name of the key.
+         * @return Whether the key is known to not exist.
+         */
+        private boolean isKnownAbsent(UserCache cache, String name) {
+            for (Map.Entry<String, CachedValue> entry : cache.filledPrefixes.entrySet()) {
+                if (name.startsWith(entry.getKey()) && isCurrent(entry.getValue())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Fetches every value of the table whose name starts with the specified prefix with a
+         * single call to the provider and caches them. Until the generation of a value changes,
+         * later reads of it are served locally, and so are reads of keys under the prefix that
+         * do not exist, until the table changes.
+         * @param cr The content resolver to use.
+         * @param prefix The prefix to filter names with, or null for the whole table.
+         * @param userId The user id of the cache to fill.
+         * @return Whether the cache was filled.
+         */
+        public boolean fillCacheForUser(ContentResolver cr, String prefix, final int userId) {
+            final int cacheUserId = resolveCacheUserId(userId);
+            if (cacheUserId == UserHandle.USER_NULL) {
+                return false;
+            }
+            return fillCache(cr, getUserCache(cacheUserId), cacheUserId, prefix);
+        }
+
+        private boolean fillCache(ContentResolver cr, UserCache cache, int userId,
+                String prefix) {
+            if (mCallListCommand == null) {
+                return false;
+            }
+
+            final Bundle b;
+            try {
+                Bundle args = new Bundle();
+                if (userId != UserHandle.myUserId()) {
+                    args.putInt(CALL_METHOD_USER_KEY, userId);
+                }
+                args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, true);
+                if (mGenerations == null) {
+                    args.putBoolean(CALL_METHOD_NEED_GENERATION_ARRAY_KEY, true);
+                }
+                if (prefix != null) {
+                    args.putString(CALL_METHOD_PREFIX_KEY, prefix);
+                }
+                IContentProvider cp = lazyGetProvider(cr);
+                b = cp.call(cr.getPackageName(), cr.getAttributionTag(),
+                        AUTHORITY, mCallListCommand, null, args);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't list " + mUri, e);
+                return false;
+            }
+            if (b == null) {
+                return false;
+            }
+
+            setGenerations(b);
+            final String[] names = b.getStringArray(CALL_METHOD_LIST_NAMES_KEY);
+            final String[] values = b.getStringArray(CALL_METHOD_LIST_VALUES_KEY);
+            final int[] indices = b.getIntArray(CALL_METHOD_LIST_GENERATION_INDICES_KEY);
+            final int[] generations = b.getIntArray(CALL_METHOD_LIST_GENERATIONS_KEY);
+            final int tableIndex = b.getInt(CALL_METHOD_GENERATION_INDEX_KEY, -1);
+            if (names == null || values == null || indices == null || generations == null
+                    || tableIndex < 0 || mGenerations == null) {
+                // The table changed while it was listed, or isn't tracked at all
+                return false;
+            }
+
+            for (int i = 0; i < names.length; i++) {
+                cache.values.put(names[i],
+                        new CachedValue(values[i], indices[i], generations[i]));
+            }
+            cache.filledPrefixes.put(prefix == null ? "" : prefix, new CachedValue(null,
+                    tableIndex, b.getInt(CALL_METHOD_GENERATION_KEY)));
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "filled [" + mUri.getLastPathSegment() + "] of user " + userId
+                        + " with " + names.length + " values for prefix " + prefix);
+            }
+            return true;
+        }
+
         /**
          * Puts a string name/value pair into the content provider for the specified user.
          * @param cr The content resolver to use.
@@ -234,36 +821,221 @@ public final class LineageSettings {
             return true;
         }
 
+        /**
+         * Lists a page of the table, in name order, with a single call to the provider.
+         * @param cr The content resolver to use.
+         * @param prefix The prefix to filter names with, or null for the whole table.
+         * @param pageToken The token returned with the previous page, or null for the first.
+         * @param pageSize The maximum number of entries to return.
+         * @param userId The user id of the table to list.
+         * @param names Receives the names.
+         * @param values Receives the values.
+         * @return The token of the next page, or null after the last page or on error.
+         */
+        public String listPageForUser(ContentResolver cr, String prefix, String pageToken,
+                int pageSize, int userId, List<String> names, List<String> values) {
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("pageSize must be positive");
+            }
+            final Bundle b;
+            try {
+                Bundle args = new Bundle();
+                if (userId != UserHandle.myUserId()) {
+                    args.putInt(CALL_METHOD_USER_KEY, userId);
+                }
+                args.putInt(CALL_METHOD_PAGE_SIZE_KEY, pageSize);
+                if (pageToken != null) {
+                    args.putString(CALL_METHOD_PAGE_TOKEN_KEY, pageToken);
+                }
+                if (prefix != null) {
+                    args.putString(CALL_METHOD_PREFIX_KEY, prefix);
+                }
+                IContentProvider cp = lazyGetProvider(cr);
+                b = cp.call(cr.getPackageName(), cr.getAttributionTag(),
+                        AUTHORITY, mCallListCommand, null, args);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't list " + mUri, e);
+                return null;
+            }
+            if (b == null) {
+                return null;
+            }
+            final String[] pageNames = b.getStringArray(CALL_METHOD_LIST_NAMES_KEY);
+            final String[] pageValues = b.getStringArray(CALL_METHOD_LIST_VALUES_KEY);
+            if (pageNames == null || pageValues == null) {
+                return null;
+            }
+            for (int i = 0; i < pageNames.length; i++) {
+                names.add(pageNames[i]);
+                values.add(pageValues[i]);
+            }
+            return b.getString(CALL_METHOD_PAGE_TOKEN_KEY);
+        }
+
+        /**
+         * Puts several string name/value pairs into the content provider for the specified user
+         * with a single call. Either every value is stored or none is.
+         * @param cr The content resolver to use.
+         * @param names The names of the keys to put into the content provider.
+         * @param values The values to put into the content provider, parallel to names.
+         * @param userId The user id to use for the content provider.
+         * @return Whether the put was successful.
+         */
+        public boolean putStringsForUser(ContentResolver cr, String[] names, String[] values,
+                final int userId) {
+            if (names.length != values.length) {
+                throw new IllegalArgumentException("names and values differ in length");
+            }
+            try {
+                Bundle arg = new Bundle();
+                arg.putStringArray(CALL_METHOD_LIST_NAMES_KEY, names);
+                arg.putStringArray(CALL_METHOD_LIST_VALUES_KEY, values);
+                arg.putInt(CALL_METHOD_USER_KEY, userId);
+                IContentProvider cp = lazyGetProvider(cr);
+                cp.call(cr.getPackageName(), cr.getAttributionTag(),
+                        AUTHORITY, mCallPutMultiCommand, null, arg);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set " + names.length + " keys in " + mUri, e);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Gets several string values, serving the ones the name/value cache holds locally and
+         * fetching all the others with a single call to the content provider.
+         * @param cr The content resolver to use for the values that are not cached.
+         * @param names The names of the keys to search for.
+         * @param userId The user id of the cache to look in.
+         * @return The string values of the specified keys, parallel to names.
+         */
+        public String[] getStringsForUser(ContentResolver cr, String[] names, final int userId) {
+            final String[] values = new String[names.length];
+            final int cacheUserId = resolveCacheUserId(userId);
+            final UserCache cache = (cacheUserId == UserHandle.USER_NULL)
+                    ? null : getUserCache(cacheUserId);
+
+            final ArrayList<String> missed = new ArrayList<String>(names.length);
+            final int[] missedPositions = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                if (cache != null) {
+                    final CachedValue cached = cache.values.get(names[i]);
+                    if (cached != null ? isCurrent(cached) : isKnownAbsent(cache, names[i])) {
+                        sAvoidedBinderCalls.incrementAndGet();
+                        values[i] = (cached != null) ? cached.value : null;
+                        continue;
+                    }
+                }
+                missedPositions[missed.size()] = i;
+                missed.add(names[i]);
+            }
+            if (missed.isEmpty()) {
+                return values;
+            }
+
+            final String[] missedNames = missed.toArray(new String[missed.size()]);
+            final String[] missedValues = fetchStrings(cr, cache, cacheUserId, missedNames,
+                    userId);
+            if (missedValues != null) {
+                for (int i = 0; i < missedValues.length; i++) {
+                    values[missedPositions[i]] = missedValues[i];
+                }
+            } else {
+                // Multi get not supported by the remote side? Look the keys up one by one.
+                for (int i = 0; i < missedNames.length; i++) {
+                    values[missedPositions[i]] = getStringForUser(cr, missedNames[i], userId);
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Reads several keys with a single call to the provider, caching them if possible.
+         * @return The values parallel to names, or null if the call failed.
+         */
+        private String[] fetchStrings(ContentResolver cr, UserCache cache, int cacheUserId,
+                String[] names, int userId) {
+            if (mCallGetMultiCommand == null) {
+                return null;
+            }
+
+            final Bundle b;
+            try {
+                // Ask for the user we resolved, so the values match the cache they go to
+                final int requestUserId = (cache != null) ? cacheUserId : userId;
+                Bundle args = new Bundle();
+                if (requestUserId != UserHandle.myUserId()) {
+                    args.putInt(CALL_METHOD_USER_KEY, requestUserId);
+                }
+                args.putStringArray(CALL_METHOD_LIST_NAMES_KEY, names);
+                if (cache != null) {
+                    args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, true);
+                    if (mGenerations == null) {
+                        args.putBoolean(CALL_METHOD_NEED_GENERATION_ARRAY_KEY, true);
+                    }
+                }
+                IContentProvider cp = lazyGetProvider(cr);
+                b = cp.call(cr.getPackageName(), cr.getAttributionTag(),
+                        AUTHORITY, mCallGetMultiCommand, null, args);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't get " + names.length + " keys from " + mUri, e);
+                return null;
+            }
+            if (b == null) {
+                return null;
+            }
+            final String[] values = b.getStringArray(CALL_METHOD_LIST_VALUES_KEY);
+            if (values == null || values.length != names.length) {
+                return null;
+            }
+
+            if (cache != null) {
+                setGenerations(b);
+                final int[] indices = b.getIntArray(CALL_METHOD_LIST_GENERATION_INDICES_KEY);
+                final int[] generations = b.getIntArray(CALL_METHOD_LIST_GENERATIONS_KEY);
+                if (indices != null && generations != null && mGenerations != null) {
+                    for (int i = 0; i < names.length; i++) {
+                        cache.values.put(names[i],
+                                new CachedValue(values[i], indices[i], generations[i]));
+                    }
+                }
+            }
+            return values;
+        }
+
         /**
          * Gets a string value with the specified name from the name/value cache if possible. If
          * not, it will use the content resolver and perform a query.
          * @param cr Content resolver to use if name/value cache does not contain the name or if
-         *           the cache version is older than the current version.
+         *           the generation of the name changed since it was cached.
          * @param name The name of the key to search for.
          * @param userId The user id of the cache to look in.
          * @return The string value of the specified key.
          */
         public String getStringForUser(ContentResolver cr, String name, final int userId) {
-            final boolean isSelf = (userId == UserHandle.myUserId());
-            if (isSelf) {
-                if (LOCAL_LOGV) Log.d(TAG, "get setting for self");
-                long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
-
-                // Our own user's settings data uses a client-side cache
-                synchronized (this) {
-                    if (mValuesVersion != newValuesVersion) {
-                        if (LOCAL_LOGV || false) {
-                            Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
-                                    + newValuesVersion + " != cached " + mValuesVersion);
-                        }
-
-                        mValues.clear();
-                        mValuesVersion = newValuesVersion;
+            final int cacheUserId = resolveCacheUserId(userId);
+            final UserCache cache = (cacheUserId == UserHandle.USER_NULL)
+                    ? null : getUserCache(cacheUserId);
+            if (cache != null) {
+                if (LOCAL_LOGV) Log.d(TAG, "get setting for user " + cacheUserId);
+
+                CachedValue cached = cache.values.get(name);
+                if (cached == null && cache.fillAttempted.compareAndSet(false, true)
+                        && fillCache(cr, cache, cacheUserId, null)) {
+                    // First miss, the whole table was just loaded in one go
+                    cached = cache.values.get(name);
+                }
+                if (cached != null) {
+                    if (isCurrent(cached)) {
+                        sAvoidedBinderCalls.incrementAndGet();
+                        return cached.value;  // Could be null, that's OK -- negative caching
                     }
-
-                    if (mValues.containsKey(name)) {
-                        return mValues.get(name);  // Could be null, that's OK -- negative caching
+                    if (LOCAL_LOGV) {
+                        Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: " + name);
                     }
+                } else if (isKnownAbsent(cache, name)) {
+                    sAvoidedBinderCalls.incrementAndGet();
+                    return null;
                 }
             } else {
                 if (LOCAL_LOGV) Log.v(TAG, "get setting for user " + userId
@@ -278,20 +1050,24 @@ public final class LineageSettings {
             // interface.
             if (mCallGetCommand != null) {
                 try {
-                    Bundle args = null;
-                    if (!isSelf) {
-                        args = new Bundle();
-                        args.putInt(CALL_METHOD_USER_KEY, userId);
+                    // Ask for the user we resolved, so the value matches the cache it goes to
+                    final int requestUserId = (cache != null) ? cacheUserId : userId;
+                    Bundle args = new Bundle();
+                    if (requestUserId != UserHandle.myUserId()) {
+                        args.putInt(CALL_METHOD_USER_KEY, requestUserId);
+                    }
+                    if (cache != null) {
+                        args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, true);
+                        if (mGenerations == null) {
+                            args.putBoolean(CALL_METHOD_NEED_GENERATION_ARRAY_KEY, true);
+                        }
                     }
                     Bundle b = cp.call(cr.getPackageName(), cr.getAttributionTag(),
                             AUTHORITY, mCallGetCommand, name, args);
                     if (b != null) {
-                        String value = b.getPairValue();
-                        // Don't update our cache for reads of other users' data
-                        if (isSelf) {
-                            synchronized (this) {
-                                mValues.put(name, value);
-                            }
+                        String value = b.getString(Settings.NameValueTable.VALUE);
+                        if (cache != null) {
+                            cacheValue(cache, name, value, b);
                         } else {
                             if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userId
                                     + " by " + UserHandle.myUserId()
@@ -318,10 +1094,8 @@ public final class LineageSettings {
                     return null;
                 }
 
+                // Not cached, a query carries no generation data
                 String value = c.moveToNext() ? c.getString(0) : null;
-                synchronized (this) {
-                    mValues.put(name, value);
-                }
                 if (LOCAL_LOGV) {
                     Log.v(TAG, "cache miss [" + mUri.getLastPathSegment() + "]: " +
                             name + " = " + (value == null ? "(null)" : value));
@@ -440,41 +1214,71 @@ public final class LineageSettings {
     }
 
     private static final class DelimitedListValidator implements Validator {
-        private final ArraySet<String> mValidValueSet;
+        private final String[] mValidValues;
         private final String mDelimiter;
         private final boolean mAllowEmptyList;
 
         public DelimitedListValidator(String[] validValues, String delimiter,
                                       boolean allowEmptyList) {
-            mValidValueSet = new ArraySet<String>(Arrays.asList(validValues));
+            mValidValues = validValues.clone();
             mDelimiter = delimiter;
             mAllowEmptyList = allowEmptyList;
         }
 
         @Override
         public boolean validate(String value) {
-            ArraySet<String> values = new ArraySet<String>();
-            if (!TextUtils.isEmpty(value)) {
-                final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                for (String item : array) {
-                    if (TextUtils.isEmpty(item)) {
-                        continue;
+            // Walk the items in place rather than splitting, validation runs on every put
+            boolean hasItems = false;
+            if (value != null) {
+                final int length = value.length();
+                int start = 0;
+                while (start <= length) {
+                    int end = value.indexOf(mDelimiter, start);
+                    if (end < 0) {
+                        end = length;
                     }
-                    values.add(item);
+                    if (end > start) {
+                        if (!isValidItem(value, start, end - start)) {
+                            return false;
+                        }
+                        hasItems = true;
+                    }
+                    start = end + mDelimiter.length();
                 }
             }
-            if (values.size() > 0) {
-                values.removeAll(mValidValueSet);
-                // values.size() will be non-zero if it contains any values not in
-                // mValidValueSet
-                return values.size() == 0;
-            } else if (mAllowEmptyList) {
-                return true;
-            }
+            return hasItems || mAllowEmptyList;
+        }
 
+        private boolean isValidItem(String value, int offset, int length) {
+            for (String validValue : mValidValues) {
+                if (validValue.length() == length
+                        && value.regionMatches(offset, validValue, 0, length)) {
+                    return true;
+                }
+            }
             return false;
         }
     }
+
+    private static final class NonEmptyItemListValidator implements Validator {
+        private final String mDelimiter;
+        private final String mEmptyItem;
+
+        public NonEmptyItemListValidator(String delimiter) {
+            mDelimiter = delimiter;
+            mEmptyItem = delimiter + delimiter;
+        }
+
+        @Override
+        public boolean validate(String value) {
+            if (TextUtils.isEmpty(value)) {
+                return true;  // Empty list is allowed though.
+            }
+            // Empty components not allowed, including at either end
+            return !value.startsWith(mDelimiter) && !value.endsWith(mDelimiter)
+                    && !value.contains(mEmptyItem);
+        }
+    }
     // endregion Validators
 
     /**
@@ -484,13 +1288,19 @@ public final class LineageSettings {
     public static final class System extends Settings.NameValueTable {
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/system");
 
+        /**
+         * System property holding the version of this table. It grows whenever the table
+         * changes, though a burst of changes may move it only once.
+         */
         public static final String SYS_PROP_LINEAGE_SETTING_VERSION = "sys.lineage_settings_system_version";
 
         private static final NameValueCache sNameValueCache = new NameValueCache(
-                SYS_PROP_LINEAGE_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_SYSTEM,
-                CALL_METHOD_PUT_SYSTEM);
+                CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_LIST_SYSTEM,
+                CALL_METHOD_GET_MULTI_SYSTEM,
+                CALL_METHOD_PUT_MULTI_SYSTEM);
 
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_SECURE;
@@ -538,6 +1348,50 @@ public final class LineageSettings {
             return list;
         }
 
+        /**
+         * Load every setting whose name starts with the specified prefix into the local cache
+         * with a single call to the provider. Later reads of those settings are served locally
+         * until they change.
+         * @param resolver to access the database with
+         * @param prefix to filter names with, or null for the whole table
+         * @return true if the cache was filled
+         * @hide
+         */
+        public static boolean prefetch(ContentResolver resolver, String prefix) {
+            return sNameValueCache.fillCacheForUser(resolver, prefix, UserHandle.myUserId());
+        }
+
+        /**
+         * List a page of the settings, in name order. Pass the returned token back to list the
+         * next page, which keeps the memory used by each call bounded for large tables.
+         * @param resolver to access the database with
+         * @param prefix to filter names with, or null for the whole table
+         * @param pageToken returned with the previous page, or null to start with the first
+         * @param pageSize the maximum number of settings to list
+         * @param names receives the names
+         * @param values receives the values
+         * @return the token of the next page, or null once the last page was listed
+         * @hide
+         */
+        public static String listPage(ContentResolver resolver, String prefix, String pageToken,
+                int pageSize, List<String> names, List<String> values) {
+            return sNameValueCache.listPageForUser(resolver, prefix, pageToken, pageSize,
+                    UserHandle.myUserId(), names, values);
+        }
+
+        /**
+         * Stream every setting whose name starts with the specified prefix.
+         * @param resolver to access the database with
+         * @param prefix to filter names with, or null for the whole table
+         * @return a reader over the settings, which must be closed
+         * @throws IOException if the dump can't be opened
+         * @hide
+         */
+        public static SettingsDumpReader openDump(ContentResolver resolver, String prefix)
+                throws IOException {
+            return SettingsDumpReader.open(resolver, CONTENT_URI, prefix);
+        }
+
         /**
          * Construct the content URI for a particular name/value pair, useful for monitoring changes
          * with a ContentObserver.
@@ -581,6 +1435,32 @@ public final class LineageSettings {
             return sNameValueCache.getStringForUser(resolver, name, userId);
         }
 
+        /**
+         * Look up several names in the database with at most a single call to the provider.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the corresponding values, null for the names not present
+         * @hide
+         */
+        public static String[] getStrings(ContentResolver resolver, String[] names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userId) {
+            for (String name : names) {
+                if (MOVED_TO_SECURE.contains(name)) {
+                    final String[] values = new String[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        values[i] = getStringForUser(resolver, names[i], userId);
+                    }
+                    return values;
+                }
+            }
+            return sNameValueCache.getStringsForUser(resolver, names, userId);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -592,6 +1472,33 @@ public final class LineageSettings {
             return putStringForUser(resolver, name, value, UserHandle.myUserId());
         }
 
+        /**
+         * Store several name/value pairs into the database with a single call to the provider.
+         * Either every value is stored or none is.
+         * @param resolver to access the database with
+         * @param names to store
+         * @param values to associate with the names, parallel to names
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStrings(ContentResolver resolver, String[] names,
+                String[] values) {
+            return putStringsForUser(resolver, names, values, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean putStringsForUser(ContentResolver resolver, String[] names,
+                String[] values, int userId) {
+            for (String name : names) {
+                if (MOVED_TO_SECURE.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from LineageSettings.System"
+                            + " to LineageSettings.Secure, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, names, values, userId);
+        }
+
         /** @hide */
         public static boolean putStringForUser(ContentResolver resolver, String name, String value,
                int userId) {
@@ -2306,7 +3213,7 @@ public final class LineageSettings {
          * @hide
          */
         public static final Map<String, Validator> VALIDATORS =
-                new ArrayMap<String, Validator>();
+                new HashMap<String, Validator>(256);
         static {
             VALIDATORS.put(NOTIFICATION_PLAY_QUEUE, NOTIFICATION_PLAY_QUEUE_VALIDATOR);
             VALIDATORS.put(HIGH_TOUCH_SENSITIVITY_ENABLE,
@@ -2481,13 +3388,19 @@ public final class LineageSettings {
     public static final class Secure extends Settings.NameValueTable {
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/secure");
 
+        /**
+         * System property holding the version of this table. It grows whenever the table
+         * changes, though a burst of changes may move it only once.
+         */
         public static final String SYS_PROP_LINEAGE_SETTING_VERSION = "sys.lineage_settings_secure_version";
 
         private static final NameValueCache sNameValueCache = new NameValueCache(
-                SYS_PROP_LINEAGE_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
-                CALL_METHOD_PUT_SECURE);
+                CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_LIST_SECURE,
+                CALL_METHOD_GET_MULTI_SECURE,
+                CALL_METHOD_PUT_MULTI_SECURE);
 
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_GLOBAL;
@@ -2535,6 +3448,50 @@ public final class LineageSettings {
             return list;
         }
 
+        /**
+         * Load every setting whose name starts with the specified prefix into the local cache
+         * with a single call to the provider. Later reads of those settings are served locally
+         * until they change.
+         * @param resolver to access the database with
+         * @param prefix to filter names with, or null for the whole table
+         * @return true if the cache was filled
+         * @hide
+         */
+        public static boolean prefetch(ContentResolver resolver, String prefix) {
+            return sNameValueCache.fillCacheForUser(resolver, prefix, UserHandle.myUserId());
+        }
+
+        /**
+         * List a page of the settings, in name order. Pass the returned token back to list the
+         * next page, which keeps the memory used by each call bounded for large tables.
+         * @param resolver to access the database with
+         * @param prefix to filter names with, or null for the whole table
+         * @param pageToken returned with the previous page, or null to start with the first
+         * @param pageSize the maximum number of settings to list
+         * @param names receives the names
+         * @param values receives the values
+         * @return the token of the next page, or null once the last page was listed
+         * @hide
+         */
+        public static String listPage(ContentResolver resolver, String prefix, String pageToken,
+                int pageSize, List<String> names, List<String> values) {
+            return sNameValueCache.listPageForUser(resolver, prefix, pageToken, pageSize,
+                    UserHandle.myUserId(), names, values);
+        }
+
+        /**
+         * Stream every setting whose name starts with the specified prefix.
+         * @param resolver to access the database with
+         * @param prefix to filter names with, or null for the whole table
+         * @return a reader over the settings, which must be closed
+         * @throws IOException if the dump can't be opened
+         * @hide
+         */
+        public static SettingsDumpReader openDump(ContentResolver resolver, String prefix)
+                throws IOException {
+            return SettingsDumpReader.open(resolver, CONTENT_URI, prefix);
+        }
+
         /**
          * Construct the content URI for a particular name/value pair, useful for monitoring changes
          * with a ContentObserver.
@@ -2578,6 +3535,32 @@ public final class LineageSettings {
             return sNameValueCache.getStringForUser(resolver, name, userId);
         }
 
+        /**
+         * Look up several names in the database with at most a single call to the provider.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the corresponding values, null for the names not present
+         * @hide
+         */
+        public static String[] getStrings(ContentResolver resolver, String[] names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userId) {
+            for (String name : names) {
+                if (MOVED_TO_GLOBAL.contains(name)) {
+                    final String[] values = new String[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        values[i] = getStringForUser(resolver, names[i], userId);
+                    }
+                    return values;
+                }
+            }
+            return sNameValueCache.getStringsForUser(resolver, names, userId);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -2589,6 +3572,33 @@ public final class LineageSettings {
             return putStringForUser(resolver, name, value, UserHandle.myUserId());
         }
 
+        /**
+         * Store several name/value pairs into the database with a single call to the provider.
+         * Either every value is stored or none is.
+         * @param resolver to access the database with
+         * @param names to store
+         * @param values to associate with the names, parallel to names
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStrings(ContentResolver resolver, String[] names,
+                String[] values) {
+            return putStringsForUser(resolver, names, values, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean putStringsForUser(ContentResolver resolver, String[] names,
+                String[] values, int userId) {
+            for (String name : names) {
+                if (MOVED_TO_GLOBAL.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from LineageSettings.Secure"
+                            + " to LineageSettings.Global, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, names, values, userId);
+        }
+
         /** @hide */
         public static boolean putStringForUser(ContentResolver resolver, String name, String value,
                int userId) {
@@ -3334,42 +4344,14 @@ public final class LineageSettings {
         /**
          * @hide
          */
-        public static final Validator PROTECTED_COMPONENTS_VALIDATOR = new Validator() {
-            private final String mDelimiter = "|";
-
-            @Override
-            public boolean validate(String value) {
-                if (!TextUtils.isEmpty(value)) {
-                    final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                    for (String item : array) {
-                        if (TextUtils.isEmpty(item)) {
-                            return false; // Empty components not allowed
-                        }
-                    }
-                }
-                return true;  // Empty list is allowed though.
-            }
-        };
+        public static final Validator PROTECTED_COMPONENTS_VALIDATOR =
+                new NonEmptyItemListValidator("|");
 
         /**
          * @hide
          */
-        public static final Validator PROTECTED_COMPONENTS_MANAGER_VALIDATOR = new Validator() {
-            private final String mDelimiter = "|";
-
-            @Override
-            public boolean validate(String value) {
-                if (!TextUtils.isEmpty(value)) {
-                    final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                    for (String item : array) {
-                        if (TextUtils.isEmpty(item)) {
-                            return false; // Empty components not allowed
-                        }
-                    }
-                }
-                return true;  // Empty list is allowed though.
-            }
-        };
+        public static final Validator PROTECTED_COMPONENTS_MANAGER_VALIDATOR =
+                new NonEmptyItemListValidator("|");
 
         /**
          * Mapping of validators for all secure settings.  This map is used to validate both valid
@@ -3381,7 +4363,7 @@ public final class LineageSettings {
          * @hide
          */
         public static final Map<String, Validator> VALIDATORS =
-                new ArrayMap<String, Validator>();
+                new HashMap<String, Validator>(32);
         static {
             VALIDATORS.put(GESTURE_BACK_EXCLUDE_TOP, GESTURE_BACK_EXCLUDE_TOP_VALIDATOR);
             VALIDATORS.put(PROTECTED_COMPONENTS, PROTECTED_COMPONENTS_VALIDATOR);
@@ -3406,13 +4388,19 @@ public final class LineageSettings {
     public static final class Global extends Settings.NameValueTable {
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/global");
 
+        /**
+         * System property holding the version of this table. It grows whenever the table
+         * changes, though a burst of changes may move it only once.
+         */
         public static final String SYS_PROP_LINEAGE_SETTING_VERSION = "sys.lineage_settings_global_version";
 
         private static final NameValueCache sNameValueCache = new NameValueCache(
-                SYS_PROP_LINEAGE_SETTING_VERSION,
                 CONTENT_URI,
                 CALL_METHOD_GET_GLOBAL,
-                CALL_METHOD_PUT_GLOBAL);
+                CALL_METHOD_PUT_GLOBAL,
+                CALL_METHOD_LIST_GLOBAL,
+                CALL_METHOD_GET_MULTI_GLOBAL,
+                CALL_METHOD_PUT_MULTI_GLOBAL);
 
         // region Methods
 
@@ -3455,6 +4443,50 @@ public final class LineageSettings {
             return list;
         }
 
+        /**
+         * Load every setting whose name starts with the specified prefix into the local cache
+         * with a single call to the provider. Later reads of those settings are served locally
+         * until they change.
+         * @param resolver to access the database with
+         * @param prefix to filter names with, or null for the whole table
+         * @return true if the cache was filled
+         * @hide
+         */
+        public static boolean prefetch(ContentResolver resolver, String prefix) {
+            return sNameValueCache.fillCacheForUser(resolver, prefix, UserHandle.myUserId());
+        }
+
+        /**
+         * List a page of the settings, in name order. Pass the returned token back to list the
+         * next page, which keeps the memory used by each call bounded for large tables.
+         * @param resolver to access the database with
+         * @param prefix to filter names with, or null for the whole table
+         * @param pageToken returned with the previous page, or null to start with the first
+         * @param pageSize the maximum number of settings to list
+         * @param names receives the names
+         * @param values receives the values
+         * @return the token of the next page, or null once the last page was listed
+         * @hide
+         */
+        public static String listPage(ContentResolver resolver, String prefix, String pageToken,
+                int pageSize, List<String> names, List<String> values) {
+            return sNameValueCache.listPageForUser(resolver, prefix, pageToken, pageSize,
+                    UserHandle.myUserId(), names, values);
+        }
+
+        /**
+         * Stream every setting whose name starts with the specified prefix.
+         * @param resolver to access the database with
+         * @param prefix to filter names with, or null for the whole table
+         * @return a reader over the settings, which must be closed
+         * @throws IOException if the dump can't be opened
+         * @hide
+         */
+        public static SettingsDumpReader openDump(ContentResolver resolver, String prefix)
+                throws IOException {
+            return SettingsDumpReader.open(resolver, CONTENT_URI, prefix);
+        }
+
         /**
          * Construct the content URI for a particular name/value pair, useful for monitoring changes
          * with a ContentObserver.
@@ -3493,6 +4525,23 @@ public final class LineageSettings {
             return sNameValueCache.getStringForUser(resolver, name, userId);
         }
 
+        /**
+         * Look up several names in the database with at most a single call to the provider.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the corresponding values, null for the names not present
+         * @hide
+         */
+        public static String[] getStrings(ContentResolver resolver, String[] names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userId) {
+            return sNameValueCache.getStringsForUser(resolver, names, userId);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -3504,6 +4553,26 @@ public final class LineageSettings {
             return putStringForUser(resolver, name, value, UserHandle.myUserId());
         }
 
+        /**
+         * Store several name/value pairs into the database with a single call to the provider.
+         * Either every value is stored or none is.
+         * @param resolver to access the database with
+         * @param names to store
+         * @param values to associate with the names, parallel to names
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStrings(ContentResolver resolver, String[] names,
+                String[] values) {
+            return putStringsForUser(resolver, names, values, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean putStringsForUser(ContentResolver resolver, String[] names,
+                String[] values, int userId) {
+            return sNameValueCache.putStringsForUser(resolver, names, values, userId);
+        }
+
         /** @hide */
         public static boolean putStringForUser(ContentResolver resolver, String name, String value,
                 int userId) {
@@ -25,15 +25,15 @@ import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 import lineageos.app.LineageContextConstants;
 import lineageos.providers.LineageSettings;
 import lineageos.providers.WeatherContract;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -44,10 +44,12 @@ public class LineageWeatherManager {
     private static ILineageWeatherManager sWeatherManagerService;
     private static LineageWeatherManager sInstance;
     private Context mContext;
-    private Map<RequestInfo,WeatherUpdateRequestListener> mWeatherUpdateRequestListeners
-            = Collections.synchronizedMap(new HashMap<RequestInfo,WeatherUpdateRequestListener>());
-    private Map<RequestInfo,LookupCityRequestListener> mLookupNameRequestListeners
-            = Collections.synchronizedMap(new HashMap<RequestInfo,LookupCityRequestListener>());
+    // Listeners of requests in progress by request id, guarded by themselves
+    private final SparseArray<WeatherUpdateRequestListener> mWeatherUpdateRequestListeners
+            = new SparseArray<>();
+    private final SparseArray<LookupCityRequestListener> mLookupNameRequestListeners
+            = new SparseArray<>();
+    private final SparseArray<BatchRequest> mBatchRequests = new SparseArray<>();
     private Handler mHandler;
     private Set<WeatherServiceProviderChangeListener> mProviderChangedListeners = new ArraySet<>();
 
@@ -138,22 +140,25 @@ public class LineageWeatherManager {
             return -1;
         }
 
+        int tempUnit = LineageSettings.Global.getInt(mContext.getContentResolver(),
+                LineageSettings.Global.WEATHER_TEMPERATURE_UNIT,
+                    WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
+
+        RequestInfo info = new RequestInfo
+                .Builder(mRequestInfoListener)
+                .setLocation(location)
+                .setTemperatureUnit(tempUnit)
+                .build();
+        if (listener != null) {
+            putListener(mWeatherUpdateRequestListeners, info.hashCode(), listener);
+        }
         try {
-            int tempUnit = LineageSettings.Global.getInt(mContext.getContentResolver(),
-                    LineageSettings.Global.WEATHER_TEMPERATURE_UNIT,
-                        WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
-
-            RequestInfo info = new RequestInfo
-                    .Builder(mRequestInfoListener)
-                    .setLocation(location)
-                    .setTemperatureUnit(tempUnit)
-                    .build();
-            if (listener != null) mWeatherUpdateRequestListeners.put(info, listener);
             sWeatherManagerService.updateWeather(info);
-            return info.hashCode();
         } catch (RemoteException e) {
+            removeListener(mWeatherUpdateRequestListeners, info.hashCode());
             return -1;
         }
+        return info.hashCode();
     }
 
     /**
@@ -176,22 +181,82 @@ public class LineageWeatherManager {
             return -1;
         }
 
+        int tempUnit = LineageSettings.Global.getInt(mContext.getContentResolver(),
+                LineageSettings.Global.WEATHER_TEMPERATURE_UNIT,
+                    WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
+
+        RequestInfo info = new RequestInfo
+                .Builder(mRequestInfoListener)
+                .setWeatherLocation(weatherLocation)
+                .setTemperatureUnit(tempUnit)
+                .build();
+        if (listener != null) {
+            putListener(mWeatherUpdateRequestListeners, info.hashCode(), listener);
+        }
         try {
-            int tempUnit = LineageSettings.Global.getInt(mContext.getContentResolver(),
-                    LineageSettings.Global.WEATHER_TEMPERATURE_UNIT,
-                        WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
+            sWeatherManagerService.updateWeather(info);
+        } catch (RemoteException e) {
+            removeListener(mWeatherUpdateRequestListeners, info.hashCode());
+            return -1;
+        }
+        return info.hashCode();
+    }
+
+    /**
+     * Forces the weather service to request the latest weather information for several
+     * WeatherLocations at once. All the requests are submitted to the weather service in a single
+     * call, and handed together to the active weather service provider, which may fetch them in
+     * one go.
+     *
+     * @param weatherLocations The {@link lineageos.weather.WeatherLocation}s, previously
+     *                         obtained by calling
+     *                         {@link #lookupCity(String, LookupCityRequestListener)}
+     * @param listener {@link WeatherUpdatesRequestListener} To be notified once the active
+     *                                                      weather service provider has finished
+     *                                                      processing all the requests
+     * @return The IDs of the requests submitted to the weather service, one per location in the
+     * same order. Note that this method might return null if an error occurred while trying to
+     * submit the requests.
+     */
+    public int[] requestWeatherUpdates(@NonNull List<WeatherLocation> weatherLocations,
+            @NonNull WeatherUpdatesRequestListener listener) {
+        if (weatherLocations.isEmpty()) {
+            throw new IllegalArgumentException("No weather locations to request");
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null");
+        }
+        if (sWeatherManagerService == null) {
+            return null;
+        }
+
+        int tempUnit = LineageSettings.Global.getInt(mContext.getContentResolver(),
+                LineageSettings.Global.WEATHER_TEMPERATURE_UNIT,
+                    WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
 
-            RequestInfo info = new RequestInfo
+        final RequestInfo[] infos = new RequestInfo[weatherLocations.size()];
+        final int[] requestIds = new int[infos.length];
+        for (int i = 0; i < infos.length; i++) {
+            infos[i] = new RequestInfo
                     .Builder(mRequestInfoListener)
-                    .setWeatherLocation(weatherLocation)
+                    .setWeatherLocation(weatherLocations.get(i))
                     .setTemperatureUnit(tempUnit)
                     .build();
-            if (listener != null) mWeatherUpdateRequestListeners.put(info, listener);
-            sWeatherManagerService.updateWeather(info);
-            return info.hashCode();
+            requestIds[i] = infos[i].hashCode();
+        }
+        final BatchRequest batch = new BatchRequest(listener, requestIds);
+        for (int requestId : requestIds) {
+            putListener(mBatchRequests, requestId, batch);
+        }
+        try {
+            sWeatherManagerService.updateWeatherBatch(infos);
         } catch (RemoteException e) {
-            return -1;
+            for (int requestId : requestIds) {
+                removeListener(mBatchRequests, requestId);
+            }
+            return null;
         }
+        return requestIds;
     }
 
     /**
@@ -210,17 +275,18 @@ public class LineageWeatherManager {
         if (sWeatherManagerService == null) {
             return -1;
         }
+        RequestInfo info = new RequestInfo
+                .Builder(mRequestInfoListener)
+                .setCityName(city)
+                .build();
+        if (listener != null) putListener(mLookupNameRequestListeners, info.hashCode(), listener);
         try {
-            RequestInfo info = new RequestInfo
-                    .Builder(mRequestInfoListener)
-                    .setCityName(city)
-                    .build();
-            if (listener != null) mLookupNameRequestListeners.put(info, listener);
             sWeatherManagerService.lookupCity(info);
-            return info.hashCode();
         } catch (RemoteException e) {
+            removeListener(mLookupNameRequestListeners, info.hashCode());
             return -1;
         }
+        return info.hashCode();
     }
 
     /**
@@ -232,12 +298,30 @@ public class LineageWeatherManager {
             return;
         }
 
+        // The request won't be reported anymore
+        removeListener(mWeatherUpdateRequestListeners, requestId);
+        removeListener(mLookupNameRequestListeners, requestId);
+        removeListener(mBatchRequests, requestId);
         try {
             sWeatherManagerService.cancelRequest(requestId);
         }catch (RemoteException e){
         }
     }
 
+    private static <T> void putListener(SparseArray<T> listeners, int requestId, T listener) {
+        synchronized (listeners) {
+            listeners.put(requestId, listener);
+        }
+    }
+
+    private static <T> T removeListener(SparseArray<T> listeners, int requestId) {
+        synchronized (listeners) {
+            final T listener = listeners.get(requestId);
+            listeners.remove(requestId);
+            return listener;
+        }
+    }
+
     /**
      * Registers a {@link WeatherServiceProviderChangeListener} to be notified when a new weather
      * service provider becomes active.
@@ -334,7 +418,7 @@ public class LineageWeatherManager {
         public void onWeatherRequestCompleted(final RequestInfo requestInfo, final int status,
                 final WeatherInfo weatherInfo) {
             final WeatherUpdateRequestListener listener
-                    = mWeatherUpdateRequestListeners.remove(requestInfo);
+                    = removeListener(mWeatherUpdateRequestListeners, requestInfo.hashCode());
             if (listener != null) {
                 mHandler.post(new Runnable() {
                     @Override
@@ -342,6 +426,27 @@ public class LineageWeatherManager {
                         listener.onWeatherRequestCompleted(status, weatherInfo);
                     }
                 });
+                return;
+            }
+
+            final BatchRequest batch
+                    = removeListener(mBatchRequests, requestInfo.hashCode());
+            if (batch != null && batch.setResult(requestInfo.hashCode(), status, weatherInfo)) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        batch.listener.onWeatherRequestsCompleted(batch.statuses,
+                                batch.weatherInfos);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onWeatherRequestsCompleted(RequestInfo[] requestInfos, int[] statuses,
+                WeatherInfo[] weatherInfos) {
+            for (int i = 0; i < requestInfos.length; i++) {
+                onWeatherRequestCompleted(requestInfos[i], statuses[i], weatherInfos[i]);
             }
         }
 
@@ -350,7 +455,7 @@ public class LineageWeatherManager {
             final List<WeatherLocation> weatherLocations) {
 
             final LookupCityRequestListener listener
-                    = mLookupNameRequestListeners.remove(requestInfo);
+                    = removeListener(mLookupNameRequestListeners, requestInfo.hashCode());
             if (listener != null) {
                 mHandler.post(new Runnable() {
                     @Override
@@ -378,6 +483,62 @@ public class LineageWeatherManager {
         void onWeatherRequestCompleted(int status, WeatherInfo weatherInfo);
     }
 
+    /**
+     * The results of a batch of weather update requests, filled in as they come
+     */
+    private static final class BatchRequest {
+        final WeatherUpdatesRequestListener listener;
+        final int[] statuses;
+        final List<WeatherInfo> weatherInfos;
+        // Position of each request in the batch by request id
+        private final SparseIntArray mIndices;
+        private int mRemaining;
+
+        BatchRequest(WeatherUpdatesRequestListener listener, int[] requestIds) {
+            this.listener = listener;
+            statuses = new int[requestIds.length];
+            weatherInfos = new ArrayList<>(Collections.nCopies(requestIds.length,
+                    (WeatherInfo) null));
+            mIndices = new SparseIntArray(requestIds.length);
+            for (int i = 0; i < requestIds.length; i++) {
+                mIndices.put(requestIds[i], i);
+            }
+            mRemaining = requestIds.length;
+        }
+
+        /**
+         * @return Whether this was the last result the batch was waiting for
+         */
+        synchronized boolean setResult(int requestId, int status, WeatherInfo weatherInfo) {
+            final int index = mIndices.get(requestId, -1);
+            if (index < 0) {
+                return false;
+            }
+            mIndices.delete(requestId);
+            statuses[index] = status;
+            weatherInfos.set(index, weatherInfo);
+            return --mRemaining == 0;
+        }
+    }
+
+    /**
+     * Interface used to receive notifications upon completion of a batch of weather update
+     * requests
+     */
+    public interface WeatherUpdatesRequestListener {
+        /**
+         * This method will be called when the weather service provider has finished processing
+         * all the requests of the batch. It won't be called if any of them was cancelled.
+         *
+         * @param statuses The status of each request, in the order the locations were given.
+         *                 See {@link RequestStatus}
+         *
+         * @param weatherInfos A fully populated {@link WeatherInfo} for each request whose status
+         *                     is {@link RequestStatus#COMPLETED}, null for the others
+         */
+        void onWeatherRequestsCompleted(int[] statuses, List<WeatherInfo> weatherInfos);
+    }
+
     /**
      * Interface used to receive notifications upon completion of a request to lookup a city name
      */
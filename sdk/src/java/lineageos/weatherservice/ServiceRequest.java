@@ -28,15 +28,26 @@ public final class ServiceRequest {
 
     private final RequestInfo mInfo;
     private final IWeatherProviderServiceClient mClient;
+    private final OnFinishedListener mOnFinishedListener;
+
+    /**
+     * Notified once a request is no longer in progress because it was completed, failed or
+     * rejected. Cancelled requests are not reported.
+     */
+    /* package */ interface OnFinishedListener {
+        void onRequestFinished(ServiceRequest request);
+    }
 
     private enum Status {
         IN_PROGRESS, COMPLETED, CANCELLED, FAILED, REJECTED
     }
     private Status mStatus;
 
-    /* package */ ServiceRequest(RequestInfo info, IWeatherProviderServiceClient client) {
+    /* package */ ServiceRequest(RequestInfo info, IWeatherProviderServiceClient client,
+            OnFinishedListener listener) {
         mInfo = info;
         mClient = client;
+        mOnFinishedListener = listener;
         mStatus = Status.IN_PROGRESS;
     }
 
@@ -82,8 +93,11 @@ public final class ServiceRequest {
                 } catch (RemoteException e) {
                 }
                 mStatus = Status.COMPLETED;
+            } else {
+                return;
             }
         }
+        notifyFinished();
     }
 
     /**
@@ -109,8 +123,11 @@ public final class ServiceRequest {
                 } catch (RemoteException e) {
                 }
                 mStatus = Status.FAILED;
+            } else {
+                return;
             }
         }
+        notifyFinished();
     }
 
     /**
@@ -139,8 +156,11 @@ public final class ServiceRequest {
                         throw new IllegalArgumentException("Can't reject with status " + status);
                 }
                 mStatus = Status.REJECTED;
+            } else {
+                return;
             }
         }
+        notifyFinished();
     }
 
     /**
@@ -154,4 +174,31 @@ public final class ServiceRequest {
             mStatus = Status.CANCELLED;
         }
     }
+
+    /* package */ IWeatherProviderServiceClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * Marks the request as completed or failed without reporting it to the system, for the
+     * caller to report it along with other requests.
+     * @return Whether the request was still in progress
+     */
+    /* package */ boolean markFinished(boolean completed) {
+        synchronized (this) {
+            if (!mStatus.equals(Status.IN_PROGRESS)) {
+                return false;
+            }
+            mStatus = completed ? Status.COMPLETED : Status.FAILED;
+        }
+        notifyFinished();
+        return true;
+    }
+
+    private void notifyFinished() {
+        // Called without holding the request lock, the listener takes its own
+        if (mOnFinishedListener != null) {
+            mOnFinishedListener.onRequestFinished(this);
+        }
+    }
 }
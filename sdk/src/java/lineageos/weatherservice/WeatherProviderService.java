@@ -24,11 +24,16 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.RemoteException;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+import lineageos.weather.LineageWeatherManager;
 import lineageos.weather.RequestInfo;
 
-import java.util.Collections;
-import java.util.Set;
-import java.util.WeakHashMap;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This is the base class for implementing a weather provider service. A weather provider service
@@ -59,8 +64,8 @@ public abstract class WeatherProviderService extends Service {
 
     private Handler mHandler;
     private IWeatherProviderServiceClient mClient;
-    private Set<ServiceRequest> mWeakRequestsSet
-            = Collections.newSetFromMap(new WeakHashMap<ServiceRequest, Boolean>());
+    // Requests in progress by request id, guarded by itself
+    private final SparseArray<ServiceRequest> mRequests = new SparseArray<>();
 
     /**
      * The {@link android.content.Intent} action that must be declared as handled by a service in
@@ -96,6 +101,11 @@ public abstract class WeatherProviderService extends Service {
             mHandler.obtainMessage(ServiceHandler.MSG_ON_NEW_REQUEST, info).sendToTarget();
         }
 
+        @Override
+        public void processWeatherUpdateRequests(final RequestInfo[] infos) {
+            mHandler.obtainMessage(ServiceHandler.MSG_ON_NEW_REQUESTS, infos).sendToTarget();
+        }
+
         @Override
         public void processCityNameLookupRequest(final RequestInfo info) {
             mHandler.obtainMessage(ServiceHandler.MSG_ON_NEW_REQUEST, info).sendToTarget();
@@ -108,27 +118,46 @@ public abstract class WeatherProviderService extends Service {
 
         @Override
         public void cancelOngoingRequests() {
-            synchronized (mWeakRequestsSet) {
-                for (final ServiceRequest request : mWeakRequestsSet) {
-                    request.cancel();
-                    mWeakRequestsSet.remove(request);
-                    mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request)
-                            .sendToTarget();
+            final ServiceRequest[] requests;
+            synchronized (mRequests) {
+                requests = new ServiceRequest[mRequests.size()];
+                for (int i = 0; i < requests.length; i++) {
+                    requests[i] = mRequests.valueAt(i);
                 }
+                mRequests.clear();
+            }
+            for (final ServiceRequest request : requests) {
+                cancel(request);
             }
         }
 
         @Override
         public void cancelRequest(int requestId) {
-            synchronized (mWeakRequestsSet) {
-                for (final ServiceRequest request : mWeakRequestsSet) {
-                    if (request.getRequestInfo().hashCode() == requestId) {
-                        mWeakRequestsSet.remove(request);
-                        request.cancel();
-                        mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request)
-                                .sendToTarget();
-                        break;
-                    }
+            final ServiceRequest request;
+            synchronized (mRequests) {
+                request = mRequests.get(requestId);
+                mRequests.remove(requestId);
+            }
+            if (request != null) {
+                cancel(request);
+            }
+        }
+
+        // Called without holding mRequests, the request takes its own lock
+        private void cancel(ServiceRequest request) {
+            request.cancel();
+            mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request).sendToTarget();
+        }
+    };
+
+    private final ServiceRequest.OnFinishedListener mOnRequestFinishedListener =
+            new ServiceRequest.OnFinishedListener() {
+        @Override
+        public void onRequestFinished(ServiceRequest request) {
+            final int requestId = request.getRequestInfo().hashCode();
+            synchronized (mRequests) {
+                if (mRequests.get(requestId) == request) {
+                    mRequests.remove(requestId);
                 }
             }
         }
@@ -142,6 +171,7 @@ public abstract class WeatherProviderService extends Service {
         public static final int MSG_SET_CLIENT = 1;
         public static final int MSG_ON_NEW_REQUEST = 2;
         public static final int MSG_CANCEL_REQUEST = 3;
+        public static final int MSG_ON_NEW_REQUESTS = 4;
 
         @Override
         public void handleMessage(Message msg) {
@@ -149,6 +179,11 @@ public abstract class WeatherProviderService extends Service {
                 case MSG_SET_CLIENT: {
                     mClient = (IWeatherProviderServiceClient) msg.obj;
                     if (mClient != null) {
+                        try {
+                            // Providers built before batches existed can't say so
+                            mClient.setBatchRequestsSupported(true);
+                        } catch (RemoteException e) {
+                        }
                         onConnected();
                     } else {
                         onDisconnected();
@@ -158,11 +193,22 @@ public abstract class WeatherProviderService extends Service {
                 case MSG_ON_NEW_REQUEST: {
                     RequestInfo info = (RequestInfo) msg.obj;
                     if (info != null) {
-                        ServiceRequest request = new ServiceRequest(info, mClient);
-                        synchronized (mWeakRequestsSet) {
-                            mWeakRequestsSet.add(request);
+                        onRequestSubmitted(addRequest(info));
+                    }
+                    return;
+                }
+                case MSG_ON_NEW_REQUESTS: {
+                    RequestInfo[] infos = (RequestInfo[]) msg.obj;
+                    if (infos != null) {
+                        List<ServiceRequest> requests = new ArrayList<>(infos.length);
+                        for (RequestInfo info : infos) {
+                            if (info != null) {
+                                requests.add(addRequest(info));
+                            }
+                        }
+                        if (!requests.isEmpty()) {
+                            onRequestsSubmitted(requests);
                         }
-                        onRequestSubmitted(request);
                     }
                     return;
                 }
@@ -175,6 +221,14 @@ public abstract class WeatherProviderService extends Service {
         }
     }
 
+    private ServiceRequest addRequest(RequestInfo info) {
+        ServiceRequest request = new ServiceRequest(info, mClient, mOnRequestFinishedListener);
+        synchronized (mRequests) {
+            mRequests.put(info.hashCode(), request);
+        }
+        return request;
+    }
+
     /**
      * The system has connected to this service.
      */
@@ -195,6 +249,87 @@ public abstract class WeatherProviderService extends Service {
      */
     protected abstract void onRequestSubmitted(ServiceRequest request);
 
+    /**
+     * Several weather update requests have been submitted to this service at once. By default
+     * each of them is handed to {@link #onRequestSubmitted(ServiceRequest)}. Services able to
+     * fetch the weather of several locations in one go should override this, and report the
+     * results with {@link #completeRequests(List, List)}.
+     * @param requests The service requests to be processed by this service
+     */
+    protected void onRequestsSubmitted(List<ServiceRequest> requests) {
+        for (ServiceRequest request : requests) {
+            onRequestSubmitted(request);
+        }
+    }
+
+    /**
+     * Completes several weather update requests, reporting all of them to the system in a
+     * single call. Requests which are no longer in progress are skipped.
+     * @param requests The requests to complete
+     * @param results The result of each request, in the same order. A request with a null
+     *                result, or a result without a {@link lineageos.weather.WeatherInfo}, is
+     *                marked as failed
+     */
+    protected final void completeRequests(List<ServiceRequest> requests,
+            List<ServiceRequestResult> results) {
+        if (requests.size() != results.size()) {
+            throw new IllegalArgumentException("Expected " + requests.size() + " results, got "
+                    + results.size());
+        }
+
+        for (ServiceRequest request : requests) {
+            final int requestType = request.getRequestInfo().getRequestType();
+            if (requestType != RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ
+                    && requestType != RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ) {
+                throw new IllegalArgumentException("Not a weather update request: "
+                        + request.getRequestInfo());
+            }
+        }
+
+        // Requests created before a reconnection could belong to another client
+        final ArrayMap<IWeatherProviderServiceClient, ArrayList<Integer>> byClient =
+                new ArrayMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            final ServiceRequest request = requests.get(i);
+            final ServiceRequestResult result = results.get(i);
+            if (!request.markFinished(result != null && result.getWeatherInfo() != null)) {
+                continue;
+            }
+            ArrayList<Integer> indices = byClient.get(request.getClient());
+            if (indices == null) {
+                indices = new ArrayList<>();
+                byClient.put(request.getClient(), indices);
+            }
+            indices.add(i);
+        }
+
+        for (int i = 0; i < byClient.size(); i++) {
+            final IWeatherProviderServiceClient client = byClient.keyAt(i);
+            final ArrayList<Integer> indices = byClient.valueAt(i);
+            if (client == null) continue;
+
+            final int count = indices.size();
+            final RequestInfo[] infos = new RequestInfo[count];
+            final ServiceRequestResult[] batchResults = new ServiceRequestResult[count];
+            final int[] states = new int[count];
+            for (int j = 0; j < count; j++) {
+                final int index = indices.get(j);
+                final ServiceRequestResult result = results.get(index);
+                infos[j] = requests.get(index).getRequestInfo();
+                if (result != null && result.getWeatherInfo() != null) {
+                    batchResults[j] = result;
+                    states[j] = LineageWeatherManager.RequestStatus.COMPLETED;
+                } else {
+                    states[j] = LineageWeatherManager.RequestStatus.FAILED;
+                }
+            }
+            try {
+                client.setServiceRequestStates(infos, batchResults, states);
+            } catch (RemoteException e) {
+            }
+        }
+    }
+
     /**
      * Called when the system is not interested on this request anymore. Note that the service
      * <b>has marked the request as cancelled</b> and you must stop any ongoing operation
@@ -204,4 +339,18 @@ public abstract class WeatherProviderService extends Service {
      * @param request The request cancelled by the system
      */
     protected abstract void onRequestCancelled(ServiceRequest request);
+
+    /**
+     * Prints the requests in progress. Services overriding this should call through to it.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        synchronized (mRequests) {
+            pw.println("Requests in progress: " + mRequests.size());
+            for (int i = 0; i < mRequests.size(); i++) {
+                pw.println("  " + mRequests.keyAt(i) + ": "
+                        + mRequests.valueAt(i).getRequestInfo());
+            }
+        }
+    }
 }
\ No newline at end of file
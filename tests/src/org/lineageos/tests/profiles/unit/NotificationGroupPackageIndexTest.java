@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.profiles.unit;
+
+import android.app.NotificationGroup;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import lineageos.app.LineageContextConstants;
+import lineageos.app.ProfileManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Covers the package to notification group index of the profile manager service, through
+ * the single and batch lookups.
+ */
+public class NotificationGroupPackageIndexTest extends AndroidTestCase {
+    private static final String PACKAGE_PREFIX = "org.lineageos.tests.groupindex.";
+    private static final String PACKAGE_A = PACKAGE_PREFIX + "a";
+    private static final String PACKAGE_B = PACKAGE_PREFIX + "b";
+    private static final String PACKAGE_SHARED = PACKAGE_PREFIX + "shared";
+    private static final String PACKAGE_UNKNOWN = PACKAGE_PREFIX + "unknown";
+
+    private ProfileManager mProfileManager;
+    private final List<NotificationGroup> mGroups = new ArrayList<NotificationGroup>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProfileManager = ProfileManager.getInstance(mContext);
+        // Only run this if we support profiles service
+        org.junit.Assume.assumeTrue(mContext.getPackageManager().hasSystemFeature(
+                LineageContextConstants.Features.PROFILES));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (NotificationGroup group : mGroups) {
+            mProfileManager.removeNotificationGroup(group);
+        }
+        mGroups.clear();
+        super.tearDown();
+    }
+
+    private NotificationGroup addGroup(String name, String... pkgs) {
+        NotificationGroup group = new NotificationGroup(name);
+        for (String pkg : pkgs) {
+            group.addPackage(pkg);
+        }
+        mProfileManager.addNotificationGroup(group);
+        mGroups.add(group);
+        return group;
+    }
+
+    private void assertGroup(NotificationGroup expected, NotificationGroup actual) {
+        if (expected == null) {
+            assertNull(actual);
+        } else {
+            assertNotNull(actual);
+            assertEquals(expected.getUuid(), actual.getUuid());
+        }
+    }
+
+    @SmallTest
+    public void testAdd() {
+        NotificationGroup group = addGroup("Group A", PACKAGE_A);
+
+        assertGroup(group, mProfileManager.getNotificationGroupForPackage(PACKAGE_A));
+        assertNull(mProfileManager.getNotificationGroupForPackage(PACKAGE_UNKNOWN));
+    }
+
+    @SmallTest
+    public void testFirstGroupWins() {
+        NotificationGroup first = addGroup("First", PACKAGE_SHARED);
+        addGroup("Second", PACKAGE_SHARED);
+
+        assertGroup(first, mProfileManager.getNotificationGroupForPackage(PACKAGE_SHARED));
+    }
+
+    @SmallTest
+    public void testUpdateChangesPackages() {
+        NotificationGroup group = addGroup("Group", PACKAGE_A);
+
+        group.removePackage(PACKAGE_A);
+        group.addPackage(PACKAGE_B);
+        mProfileManager.updateNotificationGroup(group);
+
+        assertNull(mProfileManager.getNotificationGroupForPackage(PACKAGE_A));
+        assertGroup(group, mProfileManager.getNotificationGroupForPackage(PACKAGE_B));
+    }
+
+    @SmallTest
+    public void testUpdateHandsOverDroppedPackage() {
+        NotificationGroup first = addGroup("First", PACKAGE_SHARED);
+        NotificationGroup second = addGroup("Second", PACKAGE_SHARED);
+
+        first.removePackage(PACKAGE_SHARED);
+        mProfileManager.updateNotificationGroup(first);
+
+        assertGroup(second, mProfileManager.getNotificationGroupForPackage(PACKAGE_SHARED));
+    }
+
+    @SmallTest
+    public void testRemoveHandsOverPackage() {
+        NotificationGroup first = addGroup("First", PACKAGE_A, PACKAGE_SHARED);
+        NotificationGroup second = addGroup("Second", PACKAGE_SHARED);
+
+        mProfileManager.removeNotificationGroup(first);
+        mGroups.remove(first);
+
+        assertNull(mProfileManager.getNotificationGroupForPackage(PACKAGE_A));
+        assertGroup(second, mProfileManager.getNotificationGroupForPackage(PACKAGE_SHARED));
+
+        mProfileManager.removeNotificationGroup(second);
+        mGroups.remove(second);
+
+        assertNull(mProfileManager.getNotificationGroupForPackage(PACKAGE_SHARED));
+    }
+
+    @SmallTest
+    public void testRemoveKeepsOtherOwner() {
+        NotificationGroup first = addGroup("First", PACKAGE_SHARED);
+        NotificationGroup second = addGroup("Second", PACKAGE_SHARED);
+
+        // The package never moved to the second group, removing it leaves the first in place
+        mProfileManager.removeNotificationGroup(second);
+        mGroups.remove(second);
+
+        assertGroup(first, mProfileManager.getNotificationGroupForPackage(PACKAGE_SHARED));
+    }
+
+    @SmallTest
+    public void testBatchLookup() {
+        NotificationGroup groupA = addGroup("Group A", PACKAGE_A);
+        NotificationGroup groupB = addGroup("Group B", PACKAGE_B);
+
+        NotificationGroup[] groups = mProfileManager.getNotificationGroupsForPackages(
+                new String[] { PACKAGE_B, null, PACKAGE_UNKNOWN, PACKAGE_A });
+
+        assertNotNull(groups);
+        assertEquals(4, groups.length);
+        assertGroup(groupB, groups[0]);
+        assertNull(groups[1]);
+        assertNull(groups[2]);
+        assertGroup(groupA, groups[3]);
+    }
+
+    @SmallTest
+    public void testBatchLookupEmpty() {
+        NotificationGroup[] groups = mProfileManager.getNotificationGroupsForPackages(null);
+        assertNotNull(groups);
+        assertEquals(0, groups.length);
+
+        groups = mProfileManager.getNotificationGroupsForPackages(new String[0]);
+        assertNotNull(groups);
+        assertEquals(0, groups.length);
+    }
+}
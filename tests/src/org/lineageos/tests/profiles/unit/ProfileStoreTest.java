@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.profiles.unit;
+
+import android.app.NotificationGroup;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import lineageos.app.Profile;
+import lineageos.app.ProfileGroup;
+import lineageos.app.ProfileStore;
+import lineageos.profiles.ConnectionSettings;
+import lineageos.profiles.StreamSettings;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ProfileStoreTest extends AndroidTestCase {
+    private static final String TAG = "ProfileStoreTest";
+
+    private static final int PROFILES = 100;
+    private static final int GROUPS = 50;
+    private static final int ROUNDS = 5;
+
+    private List<Profile> mProfiles;
+    private List<NotificationGroup> mGroups;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mGroups = new ArrayList<NotificationGroup>(GROUPS);
+        for (int i = 0; i < GROUPS; i++) {
+            NotificationGroup group = new NotificationGroup("Group " + i);
+            group.addPackage("org.lineageos.tests.package" + i);
+            mGroups.add(group);
+        }
+        mProfiles = new ArrayList<Profile>(PROFILES);
+        for (int i = 0; i < PROFILES; i++) {
+            Profile profile = new Profile("Profile " + i);
+            for (NotificationGroup group : mGroups) {
+                profile.addProfileGroup(new ProfileGroup(group.getUuid(), false));
+            }
+            profile.setStreamSettings(new StreamSettings(i % 5, i % 7, true));
+            profile.setConnectionSettings(new ConnectionSettings(
+                    ConnectionSettings.PROFILE_CONNECTION_WIFI, i % 2, true));
+            profile.setTrigger(Profile.TriggerType.WIFI, "ssid" + i,
+                    Profile.TriggerState.ON_CONNECT, "Network " + i);
+            mProfiles.add(profile);
+        }
+    }
+
+    @SmallTest
+    public void testRoundTrip() throws Exception {
+        ProfileStore store = readStore(writeStore());
+
+        assertNotNull(store);
+        assertEquals(mProfiles.get(0).getUuid(), store.getActiveProfile());
+        assertEquals(PROFILES, store.getProfiles().size());
+        assertEquals(GROUPS, store.getNotificationGroups().size());
+        for (int i = 0; i < PROFILES; i++) {
+            Profile expected = mProfiles.get(i);
+            Profile actual = store.getProfiles().get(i);
+            assertEquals(expected.getUuid(), actual.getUuid());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(GROUPS, actual.getProfileGroups().length);
+            assertEquals(expected.getTriggerState(Profile.TriggerType.WIFI, "ssid" + i),
+                    actual.getTriggerState(Profile.TriggerType.WIFI, "ssid" + i));
+        }
+        for (int i = 0; i < GROUPS; i++) {
+            assertEquals(mGroups.get(i).getUuid(),
+                    store.getNotificationGroups().get(i).getUuid());
+            assertTrue(store.getNotificationGroups().get(i)
+                    .hasPackage("org.lineageos.tests.package" + i));
+        }
+    }
+
+    @MediumTest
+    public void testLoadTimes() throws Exception {
+        final String xml = writeXml();
+        final byte[] binary = writeStore();
+
+        long xmlNs = Long.MAX_VALUE;
+        long binaryNs = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            assertEquals(PROFILES + GROUPS, readXml(xml));
+            xmlNs = Math.min(xmlNs, SystemClock.elapsedRealtimeNanos() - start);
+
+            start = SystemClock.elapsedRealtimeNanos();
+            ProfileStore store = readStore(binary);
+            assertEquals(PROFILES + GROUPS,
+                    store.getProfiles().size() + store.getNotificationGroups().size());
+            binaryNs = Math.min(binaryNs, SystemClock.elapsedRealtimeNanos() - start);
+        }
+        Log.i(TAG, "xml: " + xmlNs / 1000 + "us, " + xml.length() + " chars; binary: "
+                + binaryNs / 1000 + "us, " + binary.length + " bytes");
+    }
+
+    private byte[] writeStore() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ProfileStore(mProfiles.get(0).getUuid(), mProfiles, mGroups).writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static ProfileStore readStore(byte[] data) throws Exception {
+        return ProfileStore.readFrom(new ByteArrayInputStream(data));
+    }
+
+    // Same layout ProfileManagerService writes
+    private String writeXml() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("<profiles>\n<active>");
+        builder.append(mProfiles.get(0).getUuid());
+        builder.append("</active>\n");
+        for (Profile profile : mProfiles) {
+            profile.getXmlString(builder, getContext());
+        }
+        for (NotificationGroup group : mGroups) {
+            group.getXmlString(builder, getContext());
+        }
+        builder.append("</profiles>\n");
+        return builder.toString();
+    }
+
+    private int readXml(String xml) throws Exception {
+        XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+        xpp.setInput(new StringReader(xml));
+        int count = 0;
+        int event = xpp.next();
+        while (event != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG) {
+                if ("profile".equals(xpp.getName())) {
+                    Profile.fromXml(xpp, getContext());
+                    count++;
+                } else if ("notificationGroup".equals(xpp.getName())) {
+                    NotificationGroup.fromXml(xpp, getContext());
+                    count++;
+                }
+            }
+            event = xpp.next();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.profiles.unit;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import lineageos.app.Profile;
+import lineageos.app.ProfileUuidIndex;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+public class ProfileUuidIndexTest extends AndroidTestCase {
+
+    private static Profile createProfile(String name, UUID... secondaryUuids) {
+        Profile profile = new Profile(name);
+        profile.setSecondaryUuids(Arrays.asList(secondaryUuids));
+        return profile;
+    }
+
+    @SmallTest
+    public void testPrimaryAndSecondaryLookup() {
+        UUID legacy = UUID.randomUUID();
+        Profile profile = createProfile("Profile", legacy);
+        ProfileUuidIndex index = new ProfileUuidIndex();
+        index.put(profile);
+
+        assertSame(profile, index.get(profile.getUuid()));
+        assertSame(profile, index.get(legacy));
+        assertNull(index.get(UUID.randomUUID()));
+    }
+
+    @SmallTest
+    public void testPrimaryWinsOverSecondary() {
+        Profile primary = createProfile("Primary");
+        Profile secondary = createProfile("Secondary", primary.getUuid());
+        ProfileUuidIndex index = new ProfileUuidIndex();
+
+        // Added after the profile using its UUID as a secondary one
+        index.put(secondary);
+        index.put(primary);
+        assertSame(primary, index.get(primary.getUuid()));
+
+        // ... and before
+        index = new ProfileUuidIndex();
+        index.put(primary);
+        index.put(secondary);
+        assertSame(primary, index.get(primary.getUuid()));
+
+        // The secondary owner takes over once the primary one is gone
+        assertSame(primary, index.remove(primary.getUuid()));
+        assertSame(secondary, index.get(primary.getUuid()));
+    }
+
+    @SmallTest
+    public void testSharedSecondaryUuid() {
+        UUID legacy = UUID.randomUUID();
+        Profile first = createProfile("First", legacy);
+        Profile second = createProfile("Second", legacy);
+        ProfileUuidIndex index = new ProfileUuidIndex();
+        index.put(first);
+        index.put(second);
+
+        assertSame(first, index.get(legacy));
+        index.remove(first.getUuid());
+        assertSame(second, index.get(legacy));
+        index.remove(second.getUuid());
+        assertNull(index.get(legacy));
+    }
+
+    @SmallTest
+    public void testReplaceDropsStaleSecondaryUuids() {
+        UUID oldLegacy = UUID.randomUUID();
+        UUID newLegacy = UUID.randomUUID();
+        Profile profile = createProfile("Profile", oldLegacy);
+        ProfileUuidIndex index = new ProfileUuidIndex();
+        index.put(profile);
+
+        // Same primary UUID, as updateProfile() hands over
+        Profile updated = new Profile("Profile", 0, profile.getUuid());
+        updated.setSecondaryUuids(Arrays.asList(newLegacy));
+        index.put(updated);
+
+        assertSame(updated, index.get(profile.getUuid()));
+        assertSame(updated, index.get(newLegacy));
+        assertNull(index.get(oldLegacy));
+    }
+
+    @SmallTest
+    public void testCopyIsIndependent() {
+        UUID legacy = UUID.randomUUID();
+        Profile profile = createProfile("Profile", legacy);
+        ProfileUuidIndex index = new ProfileUuidIndex();
+        index.put(profile);
+
+        ProfileUuidIndex copy = new ProfileUuidIndex(index);
+        copy.remove(profile.getUuid());
+
+        assertNull(copy.get(legacy));
+        assertSame(profile, index.get(legacy));
+        assertSame(profile, index.get(profile.getUuid()));
+    }
+}
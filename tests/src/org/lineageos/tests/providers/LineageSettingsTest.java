@@ -20,6 +20,7 @@ import android.content.ContentResolver;
 import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.test.AndroidTestCase;
@@ -30,6 +31,8 @@ public class LineageSettingsTest extends AndroidTestCase{
     private ContentResolver mContentResolver;
     private LineageSettingsTestObserver mTestObserver;
 
+    private static final long ON_CHANGE_TIMEOUT_MS = 1000;
+
     private static boolean sIsOnChangedCalled = false;
     private static Uri sExpectedUriChange = null;
 
@@ -77,6 +80,20 @@ public class LineageSettingsTest extends AndroidTestCase{
                 Settings.NameValueTable.NAME + " = ?", new String[]{ key });
         assertEquals(1, rowsAffected);
 
+        // Change notifications are coalesced and delivered asynchronously
+        synchronized (mTestObserver) {
+            final long deadline = SystemClock.uptimeMillis() + ON_CHANGE_TIMEOUT_MS;
+            long remaining;
+            while (!sIsOnChangedCalled
+                    && (remaining = deadline - SystemClock.uptimeMillis()) > 0) {
+                try {
+                    mTestObserver.wait(remaining);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
         if (!sIsOnChangedCalled) {
             fail("On change was never called or was called with the wrong uri");
         }
@@ -168,7 +185,10 @@ public class LineageSettingsTest extends AndroidTestCase{
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             if (sExpectedUriChange.equals(uri)) {
-                sIsOnChangedCalled = true;
+                synchronized (this) {
+                    sIsOnChangedCalled = true;
+                    notifyAll();
+                }
             }
         }
     }
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.providers;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import lineageos.providers.LineageSettings;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the validators against the split based implementation they replaced, and measures
+ * the per-put validation cost of both.
+ */
+public class LineageSettingsValidatorTest extends AndroidTestCase {
+    private static final String TAG = "LineageSettingsValidatorTest";
+
+    private static final String[] NAV_BUTTONS = new String[] {"empty", "home", "back", "search",
+            "recent", "menu0", "menu1", "menu2", "dpad_left", "dpad_right"};
+
+    private static final ArraySet<String> NAV_BUTTONS_SET =
+            new ArraySet<String>(Arrays.asList(NAV_BUTTONS));
+
+    private static final String[] NAV_BUTTONS_VALUES = new String[] {
+            null, "", "|", "home", "empty|home|back", "home||back", "|home|", "home|bogus",
+            "dpad_left|dpad_right|menu0|menu1|menu2", "homeback", "hom", "home|back|",
+    };
+
+    private static final int ITERATIONS = 20000;
+
+    @SmallTest
+    public void testDelimitedListValidatorMatchesSplit() {
+        final LineageSettings.Validator validator =
+                LineageSettings.System.VALIDATORS.get(LineageSettings.System.NAV_BUTTONS);
+        assertNotNull(validator);
+        for (String value : NAV_BUTTONS_VALUES) {
+            assertEquals("Mismatch for " + value, splitValidate(value), validator.validate(value));
+        }
+    }
+
+    @SmallTest
+    public void testNonEmptyItemListValidator() {
+        final LineageSettings.Validator validator =
+                LineageSettings.Secure.PROTECTED_COMPONENTS_VALIDATOR;
+        assertTrue(validator.validate(null));
+        assertTrue(validator.validate(""));
+        assertTrue(validator.validate("a/b"));
+        assertTrue(validator.validate("a/b|c/d"));
+        assertFalse(validator.validate("|"));
+        assertFalse(validator.validate("a/b||c/d"));
+        assertFalse(validator.validate("|a/b"));
+        assertFalse(validator.validate("a/b|"));
+    }
+
+    @MediumTest
+    public void testValidationCost() {
+        final Map<String, LineageSettings.Validator> validators =
+                LineageSettings.System.VALIDATORS;
+        final ArrayMap<String, LineageSettings.Validator> arrayMap =
+                new ArrayMap<String, LineageSettings.Validator>(validators.size());
+        arrayMap.putAll(validators);
+        final String[] names = validators.keySet().toArray(new String[validators.size()]);
+        final String navButtons = "empty|home|back|recent|menu0|dpad_left|dpad_right";
+
+        // Warm up both paths before measuring
+        runLookups(arrayMap, names);
+        runLookups(validators, names);
+        runSplitValidation(navButtons);
+        runValidation(validators.get(LineageSettings.System.NAV_BUTTONS), navButtons);
+
+        final long arrayMapNs = runLookups(arrayMap, names);
+        final long hashMapNs = runLookups(validators, names);
+        final long splitNs = runSplitValidation(navButtons);
+        final long scanNs = runValidation(
+                validators.get(LineageSettings.System.NAV_BUTTONS), navButtons);
+
+        Log.i(TAG, "lookup per put: ArrayMap " + arrayMapNs / ITERATIONS + "ns, HashMap "
+                + hashMapNs / ITERATIONS + "ns");
+        Log.i(TAG, "NAV_BUTTONS per put: split " + splitNs / ITERATIONS + "ns, in place "
+                + scanNs / ITERATIONS + "ns");
+    }
+
+    private static long runLookups(Map<String, LineageSettings.Validator> validators,
+            String[] names) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertNotNull(validators.get(names[i % names.length]));
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private static long runValidation(LineageSettings.Validator validator, String value) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertTrue(validator.validate(value));
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    private static long runSplitValidation(String value) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertTrue(splitValidate(value));
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    // The previous DelimitedListValidator for NAV_BUTTONS, kept as a reference
+    private static boolean splitValidate(String value) {
+        final ArraySet<String> values = new ArraySet<String>();
+        if (!TextUtils.isEmpty(value)) {
+            final String[] array = TextUtils.split(value, Pattern.quote("|"));
+            for (String item : array) {
+                if (TextUtils.isEmpty(item)) {
+                    continue;
+                }
+                values.add(item);
+            }
+        }
+        if (values.size() > 0) {
+            values.removeAll(NAV_BUTTONS_SET);
+            return values.size() == 0;
+        }
+        return true;
+    }
+}
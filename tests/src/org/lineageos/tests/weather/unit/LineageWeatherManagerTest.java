@@ -24,6 +24,7 @@ import lineageos.weather.LineageWeatherManager;
 import lineageos.weather.LineageWeatherManager.LookupCityRequestListener;
 import lineageos.weather.LineageWeatherManager.WeatherServiceProviderChangeListener;
 import lineageos.weather.LineageWeatherManager.WeatherUpdateRequestListener;
+import lineageos.weather.LineageWeatherManager.WeatherUpdatesRequestListener;
 import lineageos.weather.ILineageWeatherManager;
 import lineageos.weather.RequestInfo;
 import lineageos.weather.WeatherInfo;
@@ -67,6 +68,10 @@ public class LineageWeatherManagerTest extends AndroidTestCase {
             Mockito.doAnswer(new WeatherUpdateRequestAnswer())
                     .when(mILineageWeatherManagerSpy).updateWeather(Mockito.any(RequestInfo.class));
 
+            Mockito.doAnswer(new WeatherUpdateBatchAnswer())
+                    .when(mILineageWeatherManagerSpy).updateWeatherBatch(
+                            Mockito.any(RequestInfo[].class));
+
             Mockito.doAnswer(new LookUpCityAnswer())
                     .when(mILineageWeatherManagerSpy).lookupCity(Mockito.any(RequestInfo.class));
 
@@ -98,6 +103,29 @@ public class LineageWeatherManagerTest extends AndroidTestCase {
         }
     }
 
+    private static class WeatherUpdateBatchAnswer implements Answer<Void> {
+
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+            final RequestInfo[] requestInfos = (RequestInfo[]) invocation.getArguments()[0];
+            final int[] statuses = new int[requestInfos.length];
+            final WeatherInfo[] weatherInfos = new WeatherInfo[requestInfos.length];
+            // Answer in reverse order, the manager must put the results back in place
+            final RequestInfo[] reversed = new RequestInfo[requestInfos.length];
+            for (int i = 0; i < requestInfos.length; i++) {
+                final RequestInfo requestInfo = requestInfos[requestInfos.length - 1 - i];
+                reversed[i] = requestInfo;
+                statuses[i] = LineageWeatherManager.RequestStatus.COMPLETED;
+                weatherInfos[i] = new WeatherInfo.Builder(
+                        requestInfo.getWeatherLocation().getCity(), 30d,
+                        requestInfo.getTemperatureUnit()).build();
+            }
+            requestInfos[0].getRequestListener().onWeatherRequestsCompleted(reversed, statuses,
+                    weatherInfos);
+            return null;
+        }
+    }
+
     private static class LookUpCityAnswer implements Answer<Integer> {
 
         @Override
@@ -212,6 +240,68 @@ public class LineageWeatherManagerTest extends AndroidTestCase {
         }
     }
 
+    @MediumTest
+    public void testRequestWeatherUpdates() {
+        final CountDownLatch signal = new CountDownLatch(COUNTDOWN);
+        final List<WeatherLocation> weatherLocations = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            weatherLocations.add(new WeatherLocation.Builder(CITY_NAME + " " + i).build());
+        }
+        final boolean[] error = {false};
+        final int[] requestIds = mWeatherManager.requestWeatherUpdates(weatherLocations,
+                new WeatherUpdatesRequestListener() {
+            @Override
+            public void onWeatherRequestsCompleted(int[] statuses,
+                    List<WeatherInfo> weatherInfos) {
+                if (statuses.length != weatherLocations.size()
+                        || weatherInfos.size() != weatherLocations.size()) {
+                    error[0] = true;
+                } else {
+                    for (int i = 0; i < statuses.length; i++) {
+                        if (statuses[i] != LineageWeatherManager.RequestStatus.COMPLETED
+                                || !weatherInfos.get(i).getCity().equals(
+                                        weatherLocations.get(i).getCity())) {
+                            error[0] = true;
+                        }
+                    }
+                }
+                signal.countDown();
+            }
+        });
+        assertNotNull(requestIds);
+        assertEquals(weatherLocations.size(), requestIds.length);
+        try {
+            signal.await();
+            assertFalse(error[0]);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @SmallTest
+    public void testRequestWeatherUpdatesInvalidArguments() {
+        try {
+            mWeatherManager.requestWeatherUpdates(new ArrayList<WeatherLocation>(),
+                    new WeatherUpdatesRequestListener() {
+                @Override
+                public void onWeatherRequestsCompleted(int[] statuses,
+                        List<WeatherInfo> weatherInfos) {}
+            });
+            throw new AssertionError("Requested updates for no locations!");
+        } catch (IllegalArgumentException e) {
+            //EXPECTED
+        }
+
+        final List<WeatherLocation> weatherLocations = new ArrayList<>();
+        weatherLocations.add(new WeatherLocation.Builder(CITY_NAME).build());
+        try {
+            mWeatherManager.requestWeatherUpdates(weatherLocations, null);
+            throw new AssertionError("Requested updates without a listener!");
+        } catch (IllegalArgumentException e) {
+            //EXPECTED
+        }
+    }
+
     @MediumTest
     public void testRequestWeatherUpdateByLocation() {
         final CountDownLatch signal = new CountDownLatch(COUNTDOWN);
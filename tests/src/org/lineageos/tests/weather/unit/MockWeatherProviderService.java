@@ -17,9 +17,12 @@
 package org.lineageos.tests.weather.unit;
 
 import lineageos.weatherservice.ServiceRequest;
+import lineageos.weatherservice.ServiceRequestResult;
 import lineageos.weatherservice.WeatherProviderService;
 import org.mockito.Mockito;
 
+import java.util.List;
+
 public class MockWeatherProviderService extends WeatherProviderService {
 
     private MockWeatherProviderService mCallTracker;
@@ -47,8 +50,17 @@ public class MockWeatherProviderService extends WeatherProviderService {
         mCallTracker.onRequestSubmitted(request);
     }
 
+    @Override
+    protected void onRequestsSubmitted(List<ServiceRequest> requests) {
+        mCallTracker.onRequestsSubmitted(requests);
+    }
+
     @Override
     protected void onRequestCancelled(ServiceRequest request) {
         mCallTracker.onRequestCancelled(request);
     }
+
+    public void completeAll(List<ServiceRequest> requests, List<ServiceRequestResult> results) {
+        completeRequests(requests, results);
+    }
 }
@@ -18,8 +18,11 @@ package org.lineageos.tests.weather.unit;
 
 import android.location.Location;
 import android.os.IBinder;
+import android.util.Log;
+import lineageos.providers.WeatherContract;
 import lineageos.weather.LineageWeatherManager;
 import lineageos.weather.RequestInfo;
+import lineageos.weather.WeatherInfo;
 import lineageos.weather.WeatherLocation;
 import lineageos.weatherservice.IWeatherProviderService;
 import lineageos.weatherservice.IWeatherProviderServiceClient;
@@ -36,7 +39,9 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WeatherProviderServiceTest extends ThreadServiceTestCase<MockWeatherProviderService> {
 
@@ -44,8 +49,10 @@ public class WeatherProviderServiceTest extends ThreadServiceTestCase<MockWeathe
         super(MockWeatherProviderService.class);
     }
 
+    private static final String TAG = "WeatherProviderServiceTest";
     private static final String CITY_NAME = "Seattle";
     private static final int TIMEOUT = 5000;
+    private static final int BATCH_SIZE = 8;
 
     public void testCityNameLookupRequest() throws Exception {
         IBinder binder = bindService((ServiceRunnable) null);
@@ -264,6 +271,140 @@ public class WeatherProviderServiceTest extends ThreadServiceTestCase<MockWeathe
 
     }
 
+    public void testBatchedWeatherUpdateRequests() throws Exception {
+        IBinder binder = bindService((ServiceRunnable) null);
+        assertNotNull(binder);
+
+        final IWeatherProviderService provider = IWeatherProviderService.Stub.asInterface(binder);
+        assertNotNull(provider);
+
+        // Each call in either direction is a binder round trip between system and provider
+        final AtomicInteger providerCalls = new AtomicInteger();
+        final AtomicInteger clientCalls = new AtomicInteger();
+        final AtomicInteger completedRequests = new AtomicInteger();
+
+        IWeatherProviderServiceClient client =
+                MockIBinderStubForInterface.getMockInterface(
+                        IWeatherProviderServiceClient.Stub.class);
+
+        Mockito.doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                assertEquals(LineageWeatherManager.RequestStatus.COMPLETED,
+                        (int) invocation.getArguments()[2]);
+                clientCalls.incrementAndGet();
+                completedRequests.incrementAndGet();
+                return null;
+            }
+        }).when(client)
+                .setServiceRequestState(Mockito.any(RequestInfo.class),
+                        Mockito.any(ServiceRequestResult.class), Mockito.anyInt());
+
+        Mockito.doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                RequestInfo[] infos = (RequestInfo[]) invocation.getArguments()[0];
+                ServiceRequestResult[] results
+                        = (ServiceRequestResult[]) invocation.getArguments()[1];
+                int[] states = (int[]) invocation.getArguments()[2];
+
+                assertEquals(infos.length, results.length);
+                assertEquals(infos.length, states.length);
+                for (int i = 0; i < infos.length; i++) {
+                    assertNotNull(infos[i]);
+                    assertNotNull(results[i].getWeatherInfo());
+                    assertEquals(LineageWeatherManager.RequestStatus.COMPLETED, states[i]);
+                }
+                clientCalls.incrementAndGet();
+                completedRequests.addAndGet(infos.length);
+                return null;
+            }
+        }).when(client)
+                .setServiceRequestStates(Mockito.any(RequestInfo[].class),
+                        Mockito.any(ServiceRequestResult[].class), Mockito.any(int[].class));
+
+        provider.setServiceClient(client);
+        Mockito.verify(client, Mockito.timeout(TIMEOUT)).setBatchRequestsSupported(true);
+
+        final RequestInfo[] infos = new RequestInfo[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            infos[i] = buildMockdRequestInfo(RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ);
+            setRequestKey(infos[i], UUID.randomUUID().toString());
+        }
+
+        // One request at a time
+        Mockito.reset(getService().getCallTracker());
+        for (RequestInfo info : infos) {
+            provider.processWeatherUpdateRequest(info);
+            providerCalls.incrementAndGet();
+        }
+        runOnServiceThread(new Runnable() {
+            @Override
+            public void run() {
+                ArgumentCaptor<ServiceRequest> params
+                        = ArgumentCaptor.forClass(ServiceRequest.class);
+
+                Mockito.verify(getService().getCallTracker(),
+                        Mockito.timeout(TIMEOUT).times(BATCH_SIZE))
+                        .onRequestSubmitted(params.capture());
+
+                for (ServiceRequest request : params.getAllValues()) {
+                    request.complete(buildMockdResult());
+                }
+            }
+        });
+        final int singleRoundTrips = providerCalls.getAndSet(0) + clientCalls.getAndSet(0);
+        assertEquals(BATCH_SIZE, completedRequests.getAndSet(0));
+
+        // All of them at once
+        Mockito.reset(getService().getCallTracker());
+        provider.processWeatherUpdateRequests(infos);
+        providerCalls.incrementAndGet();
+        runOnServiceThread(new Runnable() {
+            @Override
+            public void run() {
+                ArgumentCaptor<List> params = ArgumentCaptor.forClass(List.class);
+
+                Mockito.verify(getService().getCallTracker(), Mockito.timeout(TIMEOUT).times(1))
+                        .onRequestsSubmitted(params.capture());
+                Mockito.verify(getService().getCallTracker(), Mockito.never())
+                        .onRequestSubmitted(Mockito.any(ServiceRequest.class));
+
+                List<ServiceRequest> requests = params.getValue();
+                assertEquals(BATCH_SIZE, requests.size());
+                List<ServiceRequestResult> results = new ArrayList<>(requests.size());
+                for (int i = 0; i < requests.size(); i++) {
+                    results.add(buildMockdResult());
+                }
+                getService().completeAll(requests, results);
+            }
+        });
+        final int batchRoundTrips = providerCalls.getAndSet(0) + clientCalls.getAndSet(0);
+        assertEquals(BATCH_SIZE, completedRequests.get());
+
+        Log.i(TAG, BATCH_SIZE + " locations: " + singleRoundTrips + " round trips one at a time, "
+                + batchRoundTrips + " batched, " + (singleRoundTrips - batchRoundTrips)
+                + " saved");
+        assertEquals(2 * BATCH_SIZE, singleRoundTrips);
+        assertEquals(2, batchRoundTrips);
+    }
+
+    private ServiceRequestResult buildMockdResult() {
+        WeatherInfo weatherInfo = new WeatherInfo.Builder(CITY_NAME, 21d,
+                WeatherContract.WeatherColumns.TempUnit.CELSIUS).build();
+        return new ServiceRequestResult.Builder(weatherInfo).build();
+    }
+
+    private void setRequestKey(RequestInfo info, String key) {
+        try {
+            Field field = info.getClass().getDeclaredField("mKey");
+            field.setAccessible(true);
+            field.set(info, key);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
     private RequestInfo buildMockdRequestInfo(int requestType) {
         try {
             Constructor<RequestInfo> c = RequestInfo.class.getDeclaredConstructor();